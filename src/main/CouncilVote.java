@@ -1,6 +1,10 @@
 import member.Member;
 import member.MemberImpl;
+import member.Quorums;
+import member.Topology;
+import statemachine.KeyValueStore;
 
+import java.nio.file.Path;
 import java.util.logging.Logger;
 
 public class CouncilVote {
@@ -20,24 +24,73 @@ public class CouncilVote {
      *             quirks: quirks are where the process will behave according to a set of pre-defined quirks.
      *             For example, a process may be incredibly responsive, unreliable, or slow. This is to allow
      *             for testing of scenarios such as processes acting according to their quirks, or acting as normal.
+     *             --serve may be passed after args[1], in which case the member keeps serving the replicated log
+     *             and accepts commands from clients once the president has been elected.
+     *             --data <directory> may be passed after args[1], in which case the member keeps a write-ahead
+     *             log in the directory, and recovers its promises, accepts and log entries from it when restarted.
+     *             --groups <count> may be passed after args[1], in which case the member shards the key-value store
+     *             over that many independent log groups. Every member must be given the same count.
+     *             --regions <region>=<member>,...;... may be passed after args[1], in which case members send to
+     *             their own region first, and the leader batches the entries it sends to other regions.
+     *             --phase2 <size> may be passed after args[1], in which case an entry or vote is decided once that
+     *             many members accept it, and elections need the rest of the council plus one, as in Flexible
+     *             Paxos. Every member must be given the same regions and size.
+     *             --thrifty may be passed after args[1], in which case the member sends each round only to the
+     *             fastest members that can make up a quorum, and only widens it to everyone if they don't reply.
+     *             --relays <count> may be passed after args[1], in which case the president sends each log entry to
+     *             one relay in each of that many groups of members, which passes it on to the rest of its group.
      */
     public static void main(String[] args) throws InterruptedException {
-        if (args.length < 2 || args.length > 3) {
-            System.out.println("Usage: java member.CouncilVote <member number> <-a|-p> [quirks]");
+        if (args.length < 2 || args.length > 15) {
+            System.out.println("Usage: java member.CouncilVote <member number> <-a|-p> [quirks] [--serve] " +
+                    "[--data <directory>] [--groups <count>] [--regions <regions>] [--phase2 <size>] [--thrifty] " +
+                    "[--relays <count>]");
             System.exit(1);
         }
         int memberNumber = readMemberNumberArg(args[0]);
         boolean isProposer = readProposerArg(args[1]);
-        boolean isTestMode = args.length == 3;
+        boolean isServing = false;
+        boolean isThrifty = false;
+        int relays = 0;
+        boolean isTestMode = false;
+        Path dataDirectory = null;
+        int groups = 1;
+        Topology topology = Topology.FLAT;
+        Quorums quorums = Quorums.MAJORITY;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--serve")) {
+                isServing = true;
+            } else if (args[i].equals("--thrifty")) {
+                isThrifty = true;
+            } else if (args[i].equals("--data") && i + 1 < args.length) {
+                dataDirectory = Path.of(args[++i]);
+            } else if (args[i].equals("--groups") && i + 1 < args.length) {
+                groups = readGroupsArg(args[++i]);
+            } else if (args[i].equals("--regions") && i + 1 < args.length) {
+                topology = readRegionsArg(args[++i]);
+            } else if (args[i].equals("--relays") && i + 1 < args.length) {
+                relays = readRelaysArg(args[++i]);
+            } else if (args[i].equals("--phase2") && i + 1 < args.length) {
+                quorums = readPhase2Arg(args[++i]);
+            } else {
+                isTestMode = true;
+            }
+        }
 
         if (isTestMode) {
             logger.info("Running in test mode.");
             logger.info("Creating Member " + memberNumber + " as " + (isProposer ? "Proposer" : "Acceptor"));
 
-            Member member = new MemberImpl(memberNumber, isProposer, true);
+            Member member = new MemberImpl(memberNumber, isProposer, true, KeyValueStore::new, groups);
+            member.setServing(isServing);
+            member.setDataDirectory(dataDirectory);
+            member.setTopology(topology, quorums);
+            member.setThrifty(isThrifty);
+            member.setRelays(relays);
             member.run();
         } else {
-            createAndRunMember(memberNumber, isProposer);
+            createAndRunMember(memberNumber, isProposer, isServing, isThrifty, relays, dataDirectory, groups,
+                    topology, quorums);
         }
     }
 
@@ -64,6 +117,86 @@ public class CouncilVote {
     }
 
 
+    /**
+     * Reads the log groups argument and returns how many log groups to host.
+     * Exits the program if the argument is not a positive integer.
+     *
+     * @param arg : String : the argument to read.
+     * @return int : the number of log groups.
+     */
+    private static int readGroupsArg(String arg) {
+        int groups = 0;
+        try {
+            groups = Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            // reported below.
+        }
+        if (groups < 1) {
+            System.out.println("The number of log groups must be a positive integer.");
+            System.exit(1);
+        }
+        return groups;
+    }
+
+
+    /**
+     * Reads the relays argument and returns how many relay groups to send log entries through.
+     * Exits the program if the argument is not a non-negative integer.
+     *
+     * @param arg : String : the argument to read.
+     * @return int : the number of relay groups.
+     */
+    private static int readRelaysArg(String arg) {
+        int relays = -1;
+        try {
+            relays = Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            // reported below.
+        }
+        if (relays < 0) {
+            System.out.println("The number of relay groups must be a non-negative integer.");
+            System.exit(1);
+        }
+        return relays;
+    }
+
+
+    /**
+     * Reads the regions argument and returns which region each member is in.
+     * Exits the program if the argument is malformed.
+     *
+     * @param arg : String : the argument to read.
+     * @return Topology : the regions.
+     */
+    private static Topology readRegionsArg(String arg) {
+        try {
+            return Topology.parse(arg);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Regions must be <region>=<member>,<member>;<region>=... " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads the phase 2 quorum argument and returns the quorums.
+     * Exits the program if the argument is not an integer between 1 and a majority of the council.
+     *
+     * @param arg : String : the argument to read.
+     * @return Quorums : the quorums.
+     */
+    private static Quorums readPhase2Arg(String arg) {
+        try {
+            return Quorums.withPhase2(Integer.parseInt(arg));
+        } catch (IllegalArgumentException e) { // including a NumberFormatException.
+            System.out.println("The phase 2 quorum must be an integer between 1 and a majority of the council.");
+            System.exit(1);
+            return null;
+        }
+    }
+
+
     /**
      * Reads the proposer argument and returns whether the member is a proposer or not.
      *
@@ -85,12 +218,26 @@ public class CouncilVote {
      * Creates and runs a member of the council.
      * Determines which kind of member to run based on the member number.
      *
-     * @param memberNumber : int : the number of the member in the council.
-     * @param isProposer   : boolean : whether the member is a proposer or not.
+     * @param memberNumber  : int : the number of the member in the council.
+     * @param isProposer    : boolean : whether the member is a proposer or not.
+     * @param isServing     : boolean : whether the member keeps serving clients after the election.
+     * @param isThrifty     : boolean : whether the member sends each round to the fastest quorum first.
+     * @param relays        : int : how many relay groups log entries are sent through, 0 for none.
+     * @param dataDirectory : Path : where the member keeps its write-ahead log, null to keep it in memory.
+     * @param groups        : int : how many log groups the member hosts.
+     * @param topology      : Topology : which region each member is in.
+     * @param quorums       : Quorums : the phase 1 and phase 2 quorum sizes.
      */
-    private static void createAndRunMember(int memberNumber, boolean isProposer) throws InterruptedException {
+    private static void createAndRunMember(int memberNumber, boolean isProposer, boolean isServing,
+                                           boolean isThrifty, int relays, Path dataDirectory, int groups,
+                                           Topology topology, Quorums quorums) throws InterruptedException {
         logger.info("Creating Member " + memberNumber + " as " + (isProposer ? "Proposer" : "Acceptor"));
-        Member member = new MemberImpl(memberNumber, isProposer, false);
+        Member member = new MemberImpl(memberNumber, isProposer, false, KeyValueStore::new, groups);
+        member.setServing(isServing);
+        member.setDataDirectory(dataDirectory);
+        member.setTopology(topology, quorums);
+        member.setThrifty(isThrifty);
+        member.setRelays(relays);
         member.run();
     }
 }
@@ -0,0 +1,319 @@
+package client;
+
+import log.ReplicatedLog;
+import log.Result;
+import log.SessionTable;
+import member.Members;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A client of the Adelaide Suburbs Council's replicated log. Commands are submitted without blocking, and each
+ * returns a future that completes once the council has decided and applied the command.
+ * The client keeps a single connection to the president and pipelines commands over it, with at most a fixed
+ * number in flight at once. Commands submitted while the window is full are queued and sent as replies come back.
+ * If the member we are connected to isn't the president, it redirects us, and if the connection is lost, we try
+ * the next member. Either way, we reconnect and send every command still waiting for a reply again. Every command
+ * carries our session and a sequence number, so the council applies a resent command only once.
+ * A reply we can't parse could be for any command, so it fails every command in flight, and we reconnect.
+ */
+public class CouncilClient implements AutoCloseable {
+    private final static Logger logger = Logger.getLogger(CouncilClient.class.getName());
+
+    private final String host; // The host the council is running on.
+    private final long sessionId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE); // Our session.
+    private final AtomicLong nextSeq = new AtomicLong(1); // The sequence number of our next command.
+    private final Semaphore window; // Permits for commands in flight.
+    private final Queue<Request> queued = new ConcurrentLinkedQueue<>(); // Commands waiting for the window.
+    private final Map<Long, Request> inFlight = new ConcurrentSkipListMap<>(); // seq -> command awaiting a reply.
+    private volatile Members target; // The member we are, or will next be, connected to.
+    private volatile boolean closed = false;
+    private Socket socket; // Guarded by this.
+    private PrintWriter out; // Guarded by this.
+
+    /**
+     * Creates a client for the council running on the given host, and connects to it.
+     *
+     * @param host           : String : the host the council is running on.
+     * @param inFlightWindow : int : the most commands to have in flight at once.
+     * @throws IOException : if no member of the council could be reached.
+     */
+    public CouncilClient(String host, int inFlightWindow) throws IOException {
+        if (inFlightWindow < 1) {
+            throw new IllegalArgumentException("The in-flight window must be at least 1.");
+        }
+        this.host = host;
+        this.window = new Semaphore(inFlightWindow);
+        this.target = Members.M1;
+        connectToAny();
+        Thread reader = new Thread(this::readReplies, "council-client-" + sessionId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+
+    /**
+     * Submits a command to the council without blocking.
+     *
+     * @param command : String : the command.
+     * @return : CompletableFuture<Result> : completes with the slot the command was decided in, and its result.
+     */
+    public CompletableFuture<Result> submit(String command) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The client is closed."));
+        }
+        Request request;
+        synchronized (this) { // numbered and queued together, so the queue is in sequence order.
+            request = new Request(nextSeq.getAndIncrement(), command, new CompletableFuture<>());
+            queued.add(request);
+        }
+        drain();
+        return request.future;
+    }
+
+
+    /**
+     * Sends queued commands for as long as there is room in the window. Taking a command off the queue and sending
+     * it happen together, so commands are sent in the order they were submitted, whichever threads drain.
+     */
+    private synchronized void drain() {
+        while (!queued.isEmpty() && window.tryAcquire()) {
+            Request request = queued.poll();
+            if (request == null) {
+                window.release(); // someone else sent it.
+                return;
+            }
+            inFlight.put(request.seq, request);
+            send(request);
+        }
+    }
+
+
+    /**
+     * Sends a command on the current connection. If the connection has been lost, the command stays in flight
+     * and is sent again once we reconnect.
+     *
+     * @param request : Request : the command to send.
+     */
+    private synchronized void send(Request request) {
+        if (out != null) {
+            out.println("SUBMIT " + sessionId + ":" + request.seq + " " + ReplicatedLog.encode(request.command));
+        }
+    }
+
+
+    /**
+     * Reads replies from the council until the client is closed, completing commands as their results arrive,
+     * and following redirects and reconnecting when the connection is lost.
+     */
+    private void readReplies() {
+        while (!closed) {
+            try {
+                BufferedReader in;
+                synchronized (this) {
+                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    boolean redirected;
+                    try {
+                        redirected = handleReply(line);
+                    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                        // we can't tell which command the reply was for, or whether the rest can be trusted.
+                        logger.warning("Malformed reply from " + target + ": " + line);
+                        failInFlight(new IllegalStateException("Malformed reply from the council: " + line));
+                        redirected = true; // so reconnect.
+                    }
+                    if (redirected) {
+                        break; // reconnect.
+                    }
+                }
+                if (line == null) {
+                    target = next(target); // the member went away, try the next one.
+                }
+                reconnect();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                logger.fine("Lost connection to " + target + ". " + e.getMessage());
+                target = next(target);
+                reconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Handles a reply from the council. A result of SessionTable.EXPIRED means the council has forgotten our
+     * session, and can't tell whether the command was applied, so its future fails.
+     *
+     * @param line : String : the reply.
+     * @return : boolean : true if we were redirected to another member, false otherwise.
+     * @throws IllegalArgumentException  : if a number or result in the reply is malformed.
+     * @throws IndexOutOfBoundsException : if the reply is missing parts.
+     */
+    private boolean handleReply(String line) {
+        String[] parts = line.split(" ");
+        long seq = Long.parseLong(parts[1].split(":")[1]);
+        switch (parts[0]) {
+            case "RESULT":
+                Result result = new Result(Integer.parseInt(parts[2]), ReplicatedLog.decode(parts[3]));
+                Request request = inFlight.remove(seq);
+                if (request != null) {
+                    window.release();
+                    if (result.value().equals(SessionTable.EXPIRED)) {
+                        request.future.completeExceptionally(new IllegalStateException("The council forgot our " +
+                                "session, so can't tell whether command " + seq + " was applied."));
+                    } else {
+                        request.future.complete(result);
+                    }
+                    drain();
+                }
+                return false;
+            case "REDIRECT":
+                // if the member doesn't know the president yet, try the next member.
+                target = parts[2].equals("_") ? next(target) : Members.getMember(Integer.parseInt(parts[2]));
+                logger.fine("Redirected to " + target);
+                return true;
+            default:
+                logger.fine("Unknown reply from the council: " + line);
+                return false;
+        }
+    }
+
+
+    /**
+     * Reconnects to the target member, trying each member in turn until one answers, and sends every command
+     * still waiting for a reply again. We pause between attempts so we don't hammer a council that is still
+     * electing its president.
+     */
+    private void reconnect() {
+        while (!closed) {
+            try {
+                Thread.sleep(100);
+                synchronized (this) { // so no new command is sent before the ones in flight.
+                    connect();
+                    for (Request request : inFlight.values()) {
+                        send(request); // in sequence order, so the log sees them in the order they were submitted.
+                    }
+                }
+                drain();
+                return;
+            } catch (IOException e) {
+                target = next(target);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Fails every command waiting for a reply, giving up their room in the window.
+     *
+     * @param e : Exception : what to fail them with.
+     */
+    private void failInFlight(Exception e) {
+        for (Request request : inFlight.values()) {
+            if (inFlight.remove(request.seq, request)) {
+                window.release();
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+
+    /**
+     * Connects to the first member of the council that answers, starting with the target member.
+     *
+     * @throws IOException : if no member of the council could be reached.
+     */
+    private void connectToAny() throws IOException {
+        for (int i = 0; i < Members.values().length; i++) {
+            try {
+                connect();
+                return;
+            } catch (IOException e) {
+                target = next(target);
+            }
+        }
+        throw new IOException("Could not connect to any member of the council on " + host);
+    }
+
+
+    /**
+     * Opens a connection to the target member's client port, closing the previous connection.
+     *
+     * @throws IOException : if the target member could not be reached.
+     */
+    private synchronized void connect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        out = null;
+        socket = new Socket(host, target.getClientPort());
+        out = new PrintWriter(socket.getOutputStream(), true);
+    }
+
+
+    /**
+     * Returns the member after the given one, wrapping around from M9 to M1.
+     *
+     * @param member : Members : the member.
+     * @return : Members : the next member.
+     */
+    private static Members next(Members member) {
+        return Members.getMember(Members.getMemberNumber(member) % Members.values().length + 1);
+    }
+
+
+    /**
+     * Returns the member the client is connected to, which is the president once we have been redirected.
+     *
+     * @return : Members : the member the client is connected to.
+     */
+    public Members getLeader() {
+        return target;
+    }
+
+
+    /**
+     * Closes the connection. Commands still waiting for a reply fail.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (socket != null) {
+            socket.close();
+        }
+        IllegalStateException e = new IllegalStateException("The client was closed.");
+        for (Request request : inFlight.values()) {
+            request.future.completeExceptionally(e);
+        }
+        for (Request request : queued) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+
+    /**
+     * A command submitted to the council, and the future to complete with its result.
+     */
+    private record Request(long seq, String command, CompletableFuture<Result> future) {
+    }
+}
@@ -0,0 +1,226 @@
+package log;
+
+import member.Members;
+import message.MessageView;
+import util.CouncilConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sends a log group's entries to members in other regions in batches, rather than one message per entry, as each
+ * message to a far away member costs a slow round trip. Entries for a member are gathered for BATCH_WINDOW_MS,
+ * then sent together, compressed with Deflate, in a single "APPEND-BATCH <leader port>:<first slot> _
+ * <ballot>:<commit index>:<batch>" message, which the member acknowledges once with an APPEND-OK for the first
+ * slot when it has stored them all. Entries sent under different ballots of the leader go in different batches.
+ * A batch is its number of entries, then each entry's slot, length and UTF-8 bytes, deflated and Base64 encoded.
+ * The leader commits with a phase 2 quorum of nearby members, so it doesn't wait for the batches to arrive.
+ */
+class RegionBatcher {
+    private final static Logger logger = Logger.getLogger(RegionBatcher.class.getName());
+    private static final long BATCH_WINDOW_MS = 5; // How long entries for a member are gathered before sending.
+    private static final int MAX_BATCH = 512; // The most entries sent in one batch.
+
+    private final String HOST = "localhost"; // The host to connect to.
+
+    private final Members self; // The leader.
+    private final int group; // The log group the entries are of.
+    private final Executor executor; // Sends the batches.
+    private final ToIntFunction<Members> commitIndex; // The leader's commit index, to send to a member.
+    private final ObjIntConsumer<Members> announce; // Told once a member has received a commit index.
+    private final Map<Members, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    /**
+     * An entry waiting to be sent, and the future to complete once the member has stored it.
+     *
+     * @param slot   : int : the entry's slot.
+     * @param ballot : int : the leader's ballot the entry was proposed with.
+     * @param entry  : String : the entry.
+     * @param done   : CompletableFuture<Boolean> : completed with whether the member stored the entry.
+     */
+    private record Pending(int slot, int ballot, String entry, CompletableFuture<Boolean> done) {
+    }
+
+    /**
+     * The entries waiting to be sent to a member, and whether a send is already scheduled.
+     */
+    private static final class Outbox {
+        private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    }
+
+    /**
+     * Creates a batcher for the given log group.
+     *
+     * @param self        : Members : the leader.
+     * @param group       : int : the log group.
+     * @param executor    : Executor : sends the batches.
+     * @param commitIndex : ToIntFunction<Members> : returns the leader's commit index to send to a member.
+     * @param announce    : ObjIntConsumer<Members> : told which commit index a member received, once it has.
+     */
+    RegionBatcher(Members self, int group, Executor executor, ToIntFunction<Members> commitIndex,
+                  ObjIntConsumer<Members> announce) {
+        this.self = self;
+        this.group = group;
+        this.executor = executor;
+        this.commitIndex = commitIndex;
+        this.announce = announce;
+    }
+
+
+    /**
+     * Queues an entry to be sent to a member in its next batch.
+     *
+     * @param member : Members : the member.
+     * @param slot   : int : the entry's slot.
+     * @param ballot : int : the leader's ballot the entry was proposed with.
+     * @param entry  : String : the entry.
+     * @return : CompletableFuture<Boolean> : completes with true once the member has stored the entry, or false if
+     * it couldn't.
+     */
+    CompletableFuture<Boolean> append(Members member, int slot, int ballot, String entry) {
+        Outbox outbox = outboxes.computeIfAbsent(member, _ -> new Outbox());
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        outbox.queue.add(new Pending(slot, ballot, entry, done));
+        if (outbox.scheduled.compareAndSet(false, true)) {
+            CompletableFuture.delayedExecutor(BATCH_WINDOW_MS, TimeUnit.MILLISECONDS, executor)
+                    .execute(() -> flush(member, outbox));
+        }
+        return done;
+    }
+
+
+    /**
+     * Sends everything queued for a member, in batches of at most MAX_BATCH entries of the same ballot.
+     *
+     * @param member : Members : the member.
+     * @param outbox : Outbox : the member's queued entries.
+     */
+    private void flush(Members member, Outbox outbox) {
+        outbox.scheduled.set(false); // anything queued from now on schedules another send.
+        List<Pending> batch = new ArrayList<>();
+        Pending pending;
+        while ((pending = outbox.queue.poll()) != null) {
+            if (!batch.isEmpty() && batch.getFirst().ballot() != pending.ballot()) {
+                send(member, batch);
+                batch = new ArrayList<>();
+            }
+            batch.add(pending);
+            if (batch.size() == MAX_BATCH) {
+                send(member, batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            send(member, batch);
+        }
+    }
+
+
+    /**
+     * Sends a batch to a member, and completes each entry's future with whether the member stored it.
+     *
+     * @param member : Members : the member.
+     * @param batch  : List<Pending> : the entries.
+     */
+    private void send(Members member, List<Pending> batch) {
+        boolean stored = false;
+        try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
+            if (socket != null) {
+                int firstSlot = batch.getFirst().slot();
+                int index = commitIndex.applyAsInt(member);
+                String payload = batch.getFirst().ballot() + ":" + index + ":" + encode(batch);
+                CouncilConnection.writeMessage(socket, "APPEND-BATCH", self, group, firstSlot, null, payload);
+                try (MessageView response = CouncilConnection.readView(socket)) {
+                    stored = response.message().equals("APPEND-OK") && response.group() == group
+                            && response.proposalNum() == firstSlot;
+                }
+                if (stored) {
+                    announce.accept(member, index);
+                }
+            }
+        } catch (IOException e) {
+            logger.fine(self + " couldn't send a batch to " + member + ". " + e.getMessage());
+        }
+        for (Pending sent : batch) {
+            sent.done().complete(stored);
+        }
+    }
+
+
+    /**
+     * Encodes a batch of entries.
+     *
+     * @param batch : List<Pending> : the entries.
+     * @return : String : the batch, deflated and Base64 encoded.
+     */
+    private static String encode(List<Pending> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(batch.size());
+            for (Pending pending : batch) {
+                byte[] entry = pending.entry().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(pending.slot());
+                out.writeInt(entry.length);
+                out.write(entry);
+            }
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+
+    /**
+     * Decodes a batch of entries sent by encode().
+     *
+     * @param batch : String : the batch.
+     * @return : Map<Integer, String> : slot -> entry, in the order they were sent.
+     * @throws IOException : if the batch is corrupt. An entry claiming to be longer than what is left of the
+     *                     batch is corrupt, and is found without allocating its claimed length.
+     */
+    static Map<Integer, String> decode(String batch) throws IOException {
+        Map<Integer, String> entries = new LinkedHashMap<>();
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(batch);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt batch.", e);
+        }
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int slot = in.readInt();
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Corrupt batch, an entry has length " + length + ".");
+                }
+                byte[] entry = in.readNBytes(length); // only grows as far as the input goes.
+                if (entry.length < length) {
+                    throw new IOException("Corrupt batch, an entry is cut short.");
+                }
+                entries.put(slot, new String(entry, StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+}
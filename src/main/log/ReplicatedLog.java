@@ -0,0 +1,1816 @@
+package log;
+
+import member.Members;
+import member.Quorums;
+import member.RttTracker;
+import member.Topology;
+import message.MessageView;
+import statemachine.ParallelApplier;
+import statemachine.StateMachine;
+import util.CouncilConnection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A member's replica of the council's replicated log. Once the council has elected a president, the president
+ * acts as the leader of the log: clients submit commands to it, it assigns each command the next slot of the log,
+ * and sends it to every member in an APPEND message. Once a majority of the council, counting the president, has
+ * stored the command, the slot is decided. Every member applies decided commands in slot order.
+ * Rather than telling everyone of each decision in a message of its own, the president sends its commit index,
+ * the last slot it has applied, with every APPEND, as Multi-Paxos and Raft do, and a member applies every slot up
+ * to it. Only once the log goes quiet for HEARTBEAT_MS does the president send the commit index in a COMMIT
+ * message, and only to members that haven't heard it yet, so under load decisions cost no messages at all.
+ * The president was chosen by the council through Paxos, and members only store commands sent by the member they
+ * know to be president. A president that restarts, or takes over from one that didn't finish a slot, could still
+ * reuse slots or leave them undecided, so the log has ballots of its own, as Multi-Paxos does. Before it fills a
+ * slot, a leader runs a prepare phase for the log: it picks a ballot, unique to it, higher than any it has seen,
+ * and sends "LOG-PREPARE <leader port>:<ballot> _ <applied slot>". A member that hasn't promised a higher ballot
+ * promises this one, and replies "LOG-PROMISE <leader port>:<ballot> _ <applied slot>;<slot>,<ballot>,<entry>;..."
+ * with every entry it has stored after both our applied slots, and the ballot each was stored for, or "LOG-REJECT
+ * <leader port>:<ballot> _ <promised ballot>". Once a phase 1 quorum has promised, the leader catches up from
+ * whoever applied the most, then proposes again, with its own ballot, the entry with the highest ballot in each
+ * slot after that, or a no-op where none was stored, and only then fills new slots. Every log message carries the
+ * leader's ballot, and members refuse those with a lower ballot than they promised. A member never acknowledges an
+ * entry for a slot it knows was decided with another, and a commit index only decides the entries a member stored
+ * for the ballot that sent it. It catches up on the rest.
+ * Each command carries the client's session and sequence number, and is applied through a session table, so a
+ * command a client retries is applied exactly once. Decided commands are applied in batches, in parallel where
+ * the state machine says they don't conflict.
+ * Every COMPACT_EVERY slots, each replica snapshots its state and drops the entries the snapshot covers. A member
+ * that falls behind, such as one that went camping, notices the gap when it is told of a slot it can't apply yet,
+ * and asks the leader to catch it up with "CATCHUP <member port>:<applied slot> _". The leader replies on the same
+ * connection with its snapshot, if the member is behind it, streamed by SnapshotTransfer, followed by every decided
+ * entry after that, which the member replays. Snapshots are kept in files, so they can be sent without loading
+ * them onto the heap. A durable member keeps them in its data directory, as "snapshot-<group>-<last slot>.bin",
+ * and only lets the write-ahead log drop the entries one covers once it is on disk, so a restarted member loads
+ * its latest snapshot and replays the entries after it.
+ * Entries themselves are kept off the heap by a SlotStore, so a long-running log doesn't grow the heap.
+ * Messages between members are in the usual format, with the slot in place of the proposal number:
+ * "APPEND <leader port>:<slot> _ <ballot>:<commit index>:<entry>", "APPEND-OK <leader port>:<slot> _", and
+ * "COMMIT <leader port>:<commit index> _ <ballot>". A member refusing an entry replies "APPEND-REJECT <leader
+ * port>:<slot> _ <promised ballot>". Entries are "<session>:<sequence>:<command>", Base64 encoded so they can't
+ * contain spaces.
+ * A member may host several independent logs, its log groups, each with its own slots and state, which share the
+ * member's port, threads and write-ahead log. Messages for a group other than the first are tagged with it, as
+ * "APPEND <leader port>:<slot>#<group> _ <entry>", and ShardedLog routes each message and command to its group.
+ * When the council spans regions, the leader sends to the members of its own region first, and counts an entry
+ * decided once a phase 2 quorum has stored it, which may be just the members near it under Flexible Paxos, so
+ * commits take the time of a round trip within the region rather than across the slowest link. Members in other
+ * regions are sent entries in compressed batches by a RegionBatcher, in "APPEND-BATCH" messages. In thrifty mode,
+ * only the fastest members that can make up a quorum are sent entries, and the rest only if one of those doesn't
+ * store an entry in time, so slow members stay off the critical path and most messages are saved. The members left
+ * out learn of the entries they missed from the commit index, and catch up.
+ * In relay mode, as in PigPaxos, the other members are split into a few relay groups, and the leader sends each
+ * entry to one member of each group in an "APPEND-RELAY" message, which passes it on to the rest of its group and
+ * replies with which of them stored it, so the leader's work per entry doesn't grow with the council.
+ */
+public class ReplicatedLog {
+    private final static Logger logger = Logger.getLogger(ReplicatedLog.class.getName());
+    private static final int MAX_SESSIONS = 10000; // The most client sessions we remember.
+    static final String NOOP = "NOOP"; // The entry a new leader fills a slot with when no promise had one for it.
+    private static final int COMPACT_EVERY = 1000; // How many slots we apply between snapshots.
+    // How long decided slots can wait on a missing one before we ask to catch up. Pipelined appends and commits
+    // can arrive out of order, so a gap is only worth a catch-up if it doesn't close by itself.
+    private static final long CATCH_UP_DELAY_MS = 2000;
+    // How long the commit index waits for an APPEND to carry it, before the leader sends it on its own.
+    private static final long HEARTBEAT_MS = 20;
+    // In thrifty mode, how long the fastest quorum has to store an entry before the other members are sent it.
+    private static final long THRIFTY_WAIT_MS = 200;
+    // What handle() returns for a message it has replied to already.
+    static final CompletableFuture<Void> HANDLED = CompletableFuture.completedFuture(null);
+    // Whether we accept a message we refused straight away, for replyOnce().
+    private static final CompletableFuture<Boolean> REFUSED = CompletableFuture.completedFuture(false);
+
+    private final String HOST = "localhost"; // The host to connect to.
+
+    private final Members self; // The member this replica belongs to.
+    private final int group; // The log group this replica is of.
+    private final Supplier<Members> leader; // Who this member knows to be president, null if it doesn't know yet.
+    private final StateMachine stateMachine; // The state decided commands are applied to.
+    private final ParallelApplier applier; // Applies decided commands to the state machine.
+    private final WriteAheadLog wal; // Makes the entries we store durable before we acknowledge them.
+    private final ExecutorService executorService; // Shared by every log group of the member.
+    // The entries we have stored, the ballots we stored them for, and which are decided, off heap.
+    private final SlotStore slots = new SlotStore();
+    private final ConcurrentHashMap<Integer, CompletableFuture<Result>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSlot = new AtomicInteger(1); // The next slot the leader will fill.
+    // The highest ballot we have promised, or lead with. Log messages with a lower one are refused.
+    private final AtomicInteger promisedBallot = new AtomicInteger(0);
+    private volatile int leaderBallot = 0; // The ballot we lead the log with, 0 until our prepare phase succeeds.
+    private CompletableFuture<Void> leading = null; // Our prepare phase as leader, null if none. Guarded by this.
+    // Submits the last command waiting for our prepare phase once the ones before it are. Guarded by this.
+    private CompletableFuture<?> waiting = null;
+    private final SessionTable sessions; // Guarded by this.
+    // The last slot applied, and so our commit index as leader. Changed only while holding this.
+    private volatile int appliedSlot = 0;
+    private Snapshot snapshot = null; // Our latest snapshot, null until we have taken one. Guarded by this.
+    // Where we keep snapshots, the data directory if we are durable, null until we first need it. Guarded by this.
+    private Path snapshotDirectory = null;
+    private final AtomicBoolean catchingUp = new AtomicBoolean(false); // Whether we are catching up already.
+    private final AtomicLong gapSince = new AtomicLong(0); // When we first saw a gap, in nanoTime, 0 if none.
+    // The highest commit index we were told of: every slot up to it is decided, even those we haven't received.
+    private final AtomicInteger highestDecided = new AtomicInteger(0);
+    // As leader, the highest commit index each member is known to have received, by its ordinal.
+    private final AtomicIntegerArray announced = new AtomicIntegerArray(Members.values().length);
+    // As leader, when we last sent each member a message carrying the commit index, in nanoTime, by its ordinal.
+    private final AtomicLongArray lastSent = new AtomicLongArray(Members.values().length);
+    private final AtomicBoolean heartbeatScheduled = new AtomicBoolean(false); // Whether a heartbeat is due.
+    private final RegionBatcher batcher; // Sends entries to members in other regions.
+    private volatile Topology topology = Topology.FLAT; // Which region each member is in.
+    private volatile Quorums quorums = Quorums.MAJORITY; // How many members must store an entry to decide it.
+    private volatile RttTracker rtts = null; // Ranks the members in thrifty mode, null otherwise.
+    private volatile int relays = 0; // How many relay groups entries are sent through, 0 to send directly.
+
+    /**
+     * Creates a replica of one of the member's log groups.
+     *
+     * @param self            : Members : the member this replica belongs to.
+     * @param group           : int : the log group, from 0.
+     * @param leader          : Supplier<Members> : supplies who the member knows to be president.
+     * @param stateMachine    : StateMachine : the state the group's decided commands are applied to.
+     * @param wal             : WriteAheadLog : the member's write-ahead log, which entries are made durable in.
+     * @param executorService : ExecutorService : the member's threads for sending and applying entries.
+     */
+    ReplicatedLog(Members self, int group, Supplier<Members> leader, StateMachine stateMachine,
+                  WriteAheadLog wal, ExecutorService executorService) {
+        this.self = self;
+        this.group = group;
+        this.leader = leader;
+        this.stateMachine = stateMachine;
+        this.applier = new ParallelApplier(stateMachine);
+        this.wal = wal;
+        this.executorService = executorService;
+        this.sessions = new SessionTable(MAX_SESSIONS);
+        this.batcher = new RegionBatcher(self, group, executorService, this::commitIndexFor, this::announce);
+    }
+
+
+    /**
+     * An APPEND or APPEND-BATCH message's payload.
+     *
+     * @param ballot      : int : the leader's ballot.
+     * @param commitIndex : int : the leader's commit index.
+     * @param rest        : String : the entry, or the batch of entries, still encoded.
+     */
+    private record Append(int ballot, int commitIndex, String rest) {
+    }
+
+
+    /**
+     * Sets how many relay groups the other members are split into. Each entry is then sent to one relay in each
+     * group, which passes it on to the rest of its group, so the leader sends a few messages per entry however
+     * large the council is.
+     *
+     * @param relays : int : how many relay groups, or 0 to send entries to every member directly.
+     */
+    public void setRelays(int relays) {
+        this.relays = relays;
+    }
+
+
+    /**
+     * Sets whether entries are only sent to the fastest members that can make up a quorum, with the rest sent
+     * them only if those are too slow to store them.
+     *
+     * @param rtts : RttTracker : ranks the members by round trip time, or null to send straight to everyone.
+     */
+    public void setThrifty(RttTracker rtts) {
+        this.rtts = rtts;
+    }
+
+
+    /**
+     * Sets which region each member is in, and how many members must store an entry for it to be decided.
+     *
+     * @param topology : Topology : which region each member is in.
+     * @param quorums  : Quorums : the quorums, of which the phase 2 quorum decides entries.
+     */
+    public void setTopology(Topology topology, Quorums quorums) {
+        this.topology = topology;
+        this.quorums = quorums;
+    }
+
+
+    /**
+     * Restores an entry replayed from the write-ahead log when the member restarts. Whether it was decided is
+     * learned again from the leader, or by our prepare phase if we are the leader.
+     *
+     * @param slot   : int : the entry's slot.
+     * @param ballot : int : the ballot the entry was stored for.
+     * @param entry  : String : the entry.
+     */
+    public void recover(int slot, int ballot, String entry) {
+        promisedBallot.accumulateAndGet(ballot, Math::max);
+        put(slot, ballot, entry); // in case we become leader, don't reuse the slot.
+    }
+
+
+    /**
+     * Restores a ballot we promised, replayed from the write-ahead log when the member restarts.
+     *
+     * @param ballot : int : the ballot.
+     */
+    public void recoverBallot(int ballot) {
+        promisedBallot.accumulateAndGet(ballot, Math::max);
+    }
+
+
+    /**
+     * Loads our latest snapshot from the data directory when the member restarts, before the write-ahead log is
+     * replayed, so only the entries after it are restored. Files left by a snapshot that was being written or
+     * received when we stopped, and snapshots older than the latest, are deleted. Does nothing if we aren't
+     * durable or have no snapshot.
+     *
+     * @throws IOException : if the data directory or the latest snapshot could not be read.
+     */
+    public synchronized void recoverSnapshot() throws IOException {
+        Path data = wal.getDirectory();
+        if (data == null || !Files.isDirectory(data)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(data)) {
+            files = listing.toList();
+        }
+        Snapshot latest = null;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if ((name.startsWith("snapshot-" + group + "-") || name.startsWith("incoming-" + group + "-"))
+                    && name.endsWith(".tmp")) {
+                deleteQuietly(file); // never made durable, so never used.
+                continue;
+            }
+            int lastSlot = snapshotSlot(name);
+            if (lastSlot < 0) {
+                continue;
+            }
+            if (latest == null || lastSlot > latest.lastSlot()) {
+                if (latest != null) {
+                    deleteQuietly(latest.file());
+                }
+                latest = new Snapshot(lastSlot, file);
+            } else {
+                deleteQuietly(file);
+            }
+        }
+        if (latest == null) {
+            return;
+        }
+        load(latest.file());
+        appliedSlot = latest.lastSlot();
+        highestDecided.accumulateAndGet(latest.lastSlot(), Math::max);
+        nextSlot.accumulateAndGet(latest.lastSlot() + 1, Math::max);
+        snapshot = latest;
+        slots.truncate(latest.lastSlot());
+        wal.release(group, latest.lastSlot());
+        logger.info(self + " loaded a snapshot of log group " + group + " up to slot " + latest.lastSlot());
+    }
+
+
+    /**
+     * Returns the last slot of a snapshot of our group from its file name, "snapshot-<group>-<last slot>.bin".
+     *
+     * @param name : String : the file name.
+     * @return : int : the snapshot's last slot, or -1 if the file isn't one of our snapshots.
+     */
+    private int snapshotSlot(String name) {
+        String prefix = "snapshot-" + group + "-";
+        if (!name.startsWith(prefix) || !name.endsWith(".bin")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name, prefix.length(), name.length() - ".bin".length(), 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * An entry stored for a leader's ballot.
+     *
+     * @param ballot : int : the ballot the entry was stored for.
+     * @param entry  : String : the entry.
+     */
+    private record Proposal(int ballot, String entry) {
+    }
+
+
+    /**
+     * Submits a command from a client to the log. Only the leader can submit commands, once its prepare phase for
+     * the log has succeeded, which the first command waits for. If the command was already applied, we return its
+     * result straight away, otherwise we put it in the next slot and send it to every member.
+     *
+     * @param sessionId : long : the client's session.
+     * @param seq       : long : the command's sequence number within the session.
+     * @param command   : String : the command.
+     * @return : CompletableFuture<Result> : completes with the slot and result once the command is applied, or
+     * exceptionally if our prepare phase fails, or another leader supersedes us before the command is decided.
+     * @throws IllegalStateException : if this member is not the leader.
+     */
+    public CompletableFuture<Result> submit(long sessionId, long seq, String command) {
+        if (leader.get() != self) {
+            throw new IllegalStateException(self + " is not the leader of the log.");
+        }
+        int ballot;
+        synchronized (this) {
+            ballot = leaderBallot;
+            if (ballot == 0 || (waiting != null && !waiting.isDone())) { // don't overtake the commands waiting.
+                return afterPrepare(sessionId, seq, command);
+            }
+        }
+        return propose(sessionId, seq, command, ballot);
+    }
+
+
+    /**
+     * Proposes a command in the next slot at our ballot, and sends it to every member, unless it was already
+     * applied, in which case we return its result straight away.
+     *
+     * @param sessionId : long : the client's session.
+     * @param seq       : long : the command's sequence number within the session.
+     * @param command   : String : the command.
+     * @param ballot    : int : the ballot we lead the log at.
+     * @return : CompletableFuture<Result> : completes with the slot and result once the command is applied.
+     */
+    private CompletableFuture<Result> propose(long sessionId, long seq, String command, int ballot) {
+        synchronized (this) {
+            Result applied = sessions.lookup(sessionId, seq);
+            // an unknown session may just be one whose first command hasn't been applied yet, so we leave
+            // refusing expired sessions to when the command is applied.
+            if (applied != null && !applied.value().equals(SessionTable.EXPIRED)) {
+                return CompletableFuture.completedFuture(applied); // a retry, don't apply it twice.
+            }
+        }
+        int slot = nextSlot.getAndIncrement();
+        String entry = sessionId + ":" + seq + ":" + command;
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        pending.put(slot, future);
+        slots.put(slot, ballot, entry);
+        CompletableFuture<Void> durable = wal.append(group, slot, ballot, entry);
+        executorService.submit(() -> replicate(slot, ballot, entry, durable));
+        return future;
+    }
+
+
+    /**
+     * Submits a command once our prepare phase has succeeded, after the commands already waiting for it, so
+     * commands are given slots in the order they were submitted. If the prepare phase fails, so do they.
+     *
+     * @param sessionId : long : the client's session.
+     * @param seq       : long : the command's sequence number within the session.
+     * @param command   : String : the command.
+     * @return : CompletableFuture<Result> : completes with the slot and result once the command is applied.
+     */
+    private synchronized CompletableFuture<Result> afterPrepare(long sessionId, long seq, String command) {
+        CompletableFuture<?> previous = waiting == null || waiting.isDone() ? lead() : waiting;
+        CompletableFuture<CompletableFuture<Result>> submitted = previous.thenApply(_ -> {
+            int ballot = leaderBallot;
+            if (ballot == 0) {
+                throw new IllegalStateException(self + " was superseded as leader of the log.");
+            }
+            return propose(sessionId, seq, command, ballot);
+        });
+        waiting = submitted;
+        return submitted.thenCompose(future -> future);
+    }
+
+
+    /**
+     * Starts our prepare phase as leader of the log, unless it is already running or has succeeded. If it fails,
+     * the next command submitted starts another.
+     *
+     * @return : CompletableFuture<Void> : completes once the prepare phase has succeeded.
+     */
+    private synchronized CompletableFuture<Void> lead() {
+        if (leading == null) {
+            CompletableFuture<Void> prepare = CompletableFuture.runAsync(this::prepare, executorService);
+            leading = prepare;
+            prepare.whenComplete((_, e) -> {
+                if (e != null) {
+                    logger.info(self + " couldn't lead the log. " + e.getMessage());
+                    forget(prepare);
+                }
+            });
+        }
+        return leading;
+    }
+
+
+    /**
+     * Forgets a prepare phase that failed, or was superseded, so the next command starts another.
+     *
+     * @param prepare : CompletableFuture<Void> : the prepare phase.
+     */
+    private synchronized void forget(CompletableFuture<Void> prepare) {
+        if (leading == prepare) {
+            leading = null;
+        }
+    }
+
+
+    /**
+     * Runs the prepare phase for the log, as a new leader. We promise ourselves a ballot higher than any we have
+     * seen, and ask every other member to promise it too. Once a phase 1 quorum, counting us, has, we catch up
+     * from whichever of them applied the most, and propose again, with our ballot, the entry with the highest
+     * ballot each of them stored in every slot after that, or a no-op where none did. Any slot a phase 2 quorum
+     * stored, and so may have been decided, was stored by one of them, so we never contradict it. New commands
+     * go in the slots after all of these.
+     *
+     * @throws IllegalStateException : if a phase 1 quorum didn't promise our ballot, or we couldn't catch up.
+     */
+    private void prepare() {
+        int ballot = nextBallot(promisedBallot.get());
+        if (promisedBallot.accumulateAndGet(ballot, Math::max) != ballot || !wal.await(wal.ballot(group, ballot))) {
+            throw new IllegalStateException(self + " couldn't promise itself ballot " + ballot + ".");
+        }
+        int from = getAppliedSlot();
+        Map<Integer, Proposal> proposals = new HashMap<>(); // slot -> the highest ballot entry. Guarded by itself.
+        for (int slot = from + 1; slot < nextSlot.get(); slot++) {
+            String entry = slots.get(slot);
+            if (entry != null) {
+                proposals.put(slot, new Proposal(slots.ballotOf(slot), entry));
+            }
+        }
+        List<Members> others = new ArrayList<>(List.of(Members.values()));
+        others.remove(self);
+        AtomicInteger promises = new AtomicInteger(1); // us.
+        AtomicInteger highestApplied = new AtomicInteger(from);
+        AtomicReference<Members> ahead = new AtomicReference<>(self); // who applied the most.
+        CountDownLatch done = new CountDownLatch(others.size());
+        for (Members member : others) {
+            executorService.submit(() -> {
+                int applied = sendPrepareToMember(member, ballot, from, proposals);
+                if (applied >= 0) {
+                    synchronized (proposals) {
+                        if (applied > highestApplied.get()) {
+                            highestApplied.set(applied);
+                            ahead.set(member);
+                        }
+                    }
+                    promises.incrementAndGet();
+                }
+                done.countDown();
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(self + " was interrupted preparing ballot " + ballot + ".");
+        }
+        Map<Integer, Proposal> chosen;
+        int applied;
+        Members source;
+        synchronized (proposals) {
+            if (promises.get() < quorums.phase1()) {
+                throw new IllegalStateException("only " + promises.get() + " members promised ballot " + ballot +
+                        ".");
+            }
+            chosen = new HashMap<>(proposals);
+            applied = highestApplied.get();
+            source = ahead.get();
+        }
+        if (applied > getAppliedSlot()) {
+            fetch(source);
+            if (getAppliedSlot() < applied) {
+                throw new IllegalStateException("couldn't catch up to slot " + applied + " from " + source + ".");
+            }
+        }
+        int last = Math.max(applied, chosen.keySet().stream().mapToInt(Integer::intValue).max().orElse(0));
+        nextSlot.accumulateAndGet(last + 1, Math::max);
+        for (int slot = getAppliedSlot() + 1; slot <= last; slot++) {
+            if (slots.getDecided(slot) != null) {
+                continue;
+            }
+            Proposal proposal = chosen.get(slot);
+            String entry = proposal == null ? NOOP : proposal.entry();
+            put(slot, ballot, entry);
+            int s = slot;
+            CompletableFuture<Void> durable = wal.append(group, s, ballot, entry);
+            executorService.submit(() -> replicate(s, ballot, entry, durable));
+        }
+        if (promisedBallot.get() != ballot) {
+            throw new IllegalStateException("ballot " + ballot + " was superseded.");
+        }
+        leaderBallot = ballot;
+        logger.info(self + " leads the log with ballot " + ballot + ", from slot " + (last + 1));
+    }
+
+
+    /**
+     * Returns our next ballot above the given one. Ballots are unique to a member, as each is one more than a
+     * multiple of the council's size, plus the member's ordinal.
+     *
+     * @param above : int : the ballot to go above.
+     * @return : int : our ballot.
+     */
+    private int nextBallot(int above) {
+        int council = Members.values().length;
+        return (above / council + 1) * council + self.ordinal();
+    }
+
+
+    /**
+     * Sends a LOG-PREPARE message to a member, and adds the entries its promise reports to the proposals, keeping
+     * the one with the highest ballot for each slot. A member that refuses tells us the ballot it promised, which
+     * our next prepare phase goes above.
+     *
+     * @param member    : Members : the member.
+     * @param ballot    : int : our ballot.
+     * @param from      : int : the last slot we have applied.
+     * @param proposals : Map<Integer, Proposal> : slot -> the highest ballot entry reported. Guarded by itself.
+     * @return : int : the last slot the member has applied, or -1 if it didn't promise.
+     */
+    private int sendPrepareToMember(Members member, int ballot, int from, Map<Integer, Proposal> proposals) {
+        try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
+            if (socket == null) {
+                return -1; // we couldn't connect in time.
+            }
+            CouncilConnection.writeMessage(socket, "LOG-PREPARE", self, group, ballot, null, String.valueOf(from));
+            try (MessageView response = CouncilConnection.readView(socket)) {
+                if (response.message().equals("LOG-REJECT") && response.hasPayload()) {
+                    supersede(Integer.parseInt(response.payload()));
+                    return -1;
+                }
+                if (!response.message().equals("LOG-PROMISE") || response.group() != group
+                        || response.proposalNum() != ballot || !response.hasPayload()) {
+                    return -1;
+                }
+                String[] parts = response.payload().split(";");
+                for (int i = 1; i < parts.length; i++) {
+                    String[] fields = parts[i].split(",", 3);
+                    Proposal proposal = new Proposal(Integer.parseInt(fields[1]), decode(fields[2]));
+                    synchronized (proposals) {
+                        proposals.merge(Integer.parseInt(fields[0]), proposal,
+                                (old, reported) -> reported.ballot() > old.ballot() ? reported : old);
+                    }
+                }
+                return Integer.parseInt(parts[0]);
+            }
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            logger.fine(self + " couldn't ask " + member + " to promise ballot " + ballot + ". " + e.getMessage());
+            return -1;
+        }
+    }
+
+
+    /**
+     * Notes that a member promised a higher ballot than ours, so another leader has superseded us. We stop
+     * leading the log, and the next command submitted starts another prepare phase, with a higher ballot.
+     *
+     * @param ballot : int : the ballot the member promised.
+     */
+    private synchronized void supersede(int ballot) {
+        if (promisedBallot.accumulateAndGet(ballot, Math::max) > leaderBallot && leaderBallot != 0) {
+            logger.info(self + " was superseded as leader of the log by ballot " + ballot);
+            leaderBallot = 0;
+            leading = null;
+        }
+    }
+
+
+    /**
+     * Sends an entry to every other member until a phase 2 quorum, counting ourselves, has stored it, and then
+     * commits it. If we can't reach a quorum, we wait 2 seconds and try again, as the proposer does.
+     * If another leader supersedes us, we stop, and fail the command's future, as the entry may never be decided.
+     * We only count ourselves once the entry is durable in our own write-ahead log, which happens while the
+     * entry is on its way to the other members. Members in our region are sent the entry first, and members in
+     * other regions get it in their next batch.
+     *
+     * @param slot    : int : the slot of the entry.
+     * @param ballot  : int : our ballot.
+     * @param entry   : String : the entry.
+     * @param durable : CompletableFuture<Void> : completes once the entry is durable in our write-ahead log.
+     */
+    private void replicate(int slot, int ballot, String entry, CompletableFuture<Void> durable) {
+        String encoded = encode(entry); // encode it once, rather than once for every member.
+        try {
+            while (true) {
+                if (promisedBallot.get() != ballot) {
+                    CompletableFuture<Result> future = pending.remove(slot);
+                    if (future != null) {
+                        future.completeExceptionally(new IllegalStateException(self + " was superseded as leader."));
+                    }
+                    return;
+                }
+                Topology regions = topology;
+                int quorum = quorums.phase2();
+                AtomicInteger stored = new AtomicInteger(0);
+                List<List<Members>> relayGroups = relayGroups(regions);
+                if (relayGroups.isEmpty()) {
+                    sendToEveryone(regions, slot, ballot, entry, encoded, durable, quorum, stored);
+                } else {
+                    sendThroughRelays(relayGroups, slot, ballot, encoded, durable, quorum, stored);
+                }
+                if (stored.get() >= quorum) {
+                    return;
+                }
+                logger.info(self + " only stored slot " + slot + " on " + stored.get() + " members. Trying again.");
+                Thread.sleep(2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Sends an entry to every other member, straight away to the members in our region and in a batch to the
+     * rest, and waits until every member has replied or failed to. In thrifty mode, only the fastest members that
+     * can make up a quorum with us are sent it, straight away, and the rest are only sent it if those haven't all
+     * stored it within THRIFTY_WAIT_MS. Members left out learn of the entry from the commit index, and catch up.
+     *
+     * @param regions : Topology : which region each member is in.
+     * @param slot    : int : the slot of the entry.
+     * @param ballot  : int : our ballot.
+     * @param entry   : String : the entry.
+     * @param encoded : String : the entry, encoded with encode().
+     * @param durable : CompletableFuture<Void> : completes once the entry is durable in our write-ahead log.
+     * @param quorum  : int : how many members, counting us, must store the entry.
+     * @param stored  : AtomicInteger : counts the members that stored the entry.
+     * @throws InterruptedException : if interrupted while waiting for the members.
+     */
+    private void sendToEveryone(Topology regions, int slot, int ballot, String entry, String encoded,
+                                CompletableFuture<Void> durable, int quorum, AtomicInteger stored)
+            throws InterruptedException {
+        RttTracker ranking = rtts;
+        List<Members> others = new ArrayList<>(ranking == null ? regions.byProximity(self) : ranking.ranked(self));
+        others.remove(self);
+        int first = ranking == null ? others.size() : Math.max(0, Math.min(quorum - 1, others.size()));
+        CountDownLatch firstDone = new CountDownLatch(first + 1);
+        countDurable(durable, quorum, stored, slot, firstDone);
+        for (Members member : others.subList(0, first)) {
+            sendTo(member, ranking != null || regions.isLocal(self, member), slot, ballot, entry, encoded, quorum,
+                    stored, firstDone);
+        }
+        if (first < others.size() && !(firstDone.await(THRIFTY_WAIT_MS, TimeUnit.MILLISECONDS)
+                && stored.get() >= quorum)) {
+            logger.fine(self + " only stored slot " + slot + " on " + stored.get() + " of the fastest " + first +
+                    " members and us. Trying the rest.");
+            List<Members> rest = others.subList(first, others.size());
+            CountDownLatch restDone = new CountDownLatch(rest.size());
+            for (Members member : rest) {
+                sendTo(member, regions.isLocal(self, member), slot, ballot, entry, encoded, quorum, stored,
+                        restDone);
+            }
+            restDone.await();
+        }
+        firstDone.await();
+    }
+
+
+    /**
+     * Sends an entry to a member, straight away or in its next batch, and counts it once the member has stored
+     * it or failed to.
+     *
+     * @param member   : Members : the member.
+     * @param straight : boolean : whether to send it straight away, rather than in a batch.
+     * @param slot     : int : the slot of the entry.
+     * @param ballot   : int : our ballot.
+     * @param entry    : String : the entry.
+     * @param encoded  : String : the entry, encoded with encode().
+     * @param quorum   : int : how many members, counting us, must store the entry.
+     * @param stored   : AtomicInteger : counts the members that stored the entry.
+     * @param done     : CountDownLatch : counted down once the member has stored the entry or failed to.
+     */
+    private void sendTo(Members member, boolean straight, int slot, int ballot, String entry, String encoded,
+                        int quorum, AtomicInteger stored, CountDownLatch done) {
+        if (!straight) {
+            batcher.append(member, slot, ballot, entry).thenAccept(ok -> {
+                countStored(stored, ok ? 1 : 0, quorum, slot);
+                done.countDown();
+            });
+            return;
+        }
+        executorService.submit(() -> {
+            countStored(stored, sendAppendToMember(member, slot, ballot, encoded) ? 1 : 0, quorum, slot);
+            done.countDown();
+        });
+    }
+
+
+    /**
+     * Sends an entry to one relay in each relay group, which passes it on to the rest of its group, and waits
+     * until every relay has replied with how many of its group stored it, or failed to.
+     *
+     * @param relayGroups : List<List<Members>> : the relay groups.
+     * @param slot        : int : the slot of the entry.
+     * @param ballot      : int : our ballot.
+     * @param encoded     : String : the entry, encoded with encode().
+     * @param durable     : CompletableFuture<Void> : completes once the entry is durable in our write-ahead log.
+     * @param quorum      : int : how many members, counting us, must store the entry.
+     * @param stored      : AtomicInteger : counts the members that stored the entry.
+     * @throws InterruptedException : if interrupted while waiting for the relays.
+     */
+    private void sendThroughRelays(List<List<Members>> relayGroups, int slot, int ballot, String encoded,
+                                   CompletableFuture<Void> durable, int quorum, AtomicInteger stored)
+            throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(relayGroups.size() + 1);
+        countDurable(durable, quorum, stored, slot, done);
+        for (List<Members> relayGroup : relayGroups) {
+            executorService.submit(() -> {
+                countStored(stored, sendThroughRelay(relayGroup, slot, ballot, encoded), quorum, slot);
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+
+
+    /**
+     * Counts us as having stored an entry once it is durable in our write-ahead log, or not at all if it couldn't
+     * be made durable. Nothing waits for the write-ahead log meanwhile. The count is made on our threads, as the
+     * one that makes the quorum applies the entry, which the write-ahead log's writer mustn't be held up by.
+     *
+     * @param durable : CompletableFuture<Void> : completes once the entry is durable in our write-ahead log.
+     * @param quorum  : int : how many members, counting us, must store the entry.
+     * @param stored  : AtomicInteger : counts the members that stored the entry.
+     * @param slot    : int : the slot of the entry.
+     * @param done    : CountDownLatch : counted down once we are counted, or not.
+     */
+    private void countDurable(CompletableFuture<Void> durable, int quorum, AtomicInteger stored, int slot,
+                              CountDownLatch done) {
+        durable(durable, "slot " + slot).thenAcceptAsync(ok -> {
+            countStored(stored, ok ? 1 : 0, quorum, slot);
+            done.countDown();
+        }, executorService);
+    }
+
+
+    /**
+     * Adds members that stored an entry to its count, and commits the entry if that makes a quorum. Only the
+     * count that makes the quorum commits it, so it is committed once, and stragglers aren't waited for.
+     *
+     * @param stored : AtomicInteger : counts the members that stored the entry.
+     * @param count  : int : how many more members stored it.
+     * @param quorum : int : how many members, counting us, must store the entry.
+     * @param slot   : int : the slot of the entry.
+     */
+    private void countStored(AtomicInteger stored, int count, int quorum, int slot) {
+        int before = stored.getAndAdd(count);
+        if (before < quorum && before + count >= quorum) {
+            commit(slot);
+        }
+    }
+
+
+    /**
+     * Splits the other members into relay groups, so each group is sent an entry through just one of them.
+     * Members are dealt out nearest first, so a group is usually a region, or part of one.
+     *
+     * @param regions : Topology : which region each member is in.
+     * @return : List<List<Members>> : the relay groups, or none if entries are sent to every member directly.
+     */
+    private List<List<Members>> relayGroups(Topology regions) {
+        List<Members> others = new ArrayList<>(regions.byProximity(self));
+        others.remove(self);
+        int count = Math.min(relays, others.size());
+        List<List<Members>> relayGroups = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // contiguous runs, the first others.size() % count of them one member longer.
+            int from = i * others.size() / count;
+            int to = (i + 1) * others.size() / count;
+            relayGroups.add(others.subList(from, to));
+        }
+        return relayGroups;
+    }
+
+
+    /**
+     * Sends an entry through a relay in a relay group, in an "APPEND-RELAY <leader port>:<slot> _ <peers>;<ballot>:
+     * <commit index>:<entry>" message, where the peers are the rest of the group, separated by commas. The relay is
+     * picked at random, so relaying is spread over the group, and if it can't be reached, another is tried. It
+     * replies "APPEND-OK <leader port>:<slot> _ <members>", with the members that stored the entry, separated by
+     * commas, and only those are taken to have the commit index the entry carried.
+     *
+     * @param relayGroup : List<Members> : the relay group.
+     * @param slot       : int : the slot of the entry.
+     * @param ballot     : int : our ballot.
+     * @param encoded    : String : the entry, encoded with encode().
+     * @return : int : how many members of the group stored the entry.
+     */
+    private int sendThroughRelay(List<Members> relayGroup, int slot, int ballot, String encoded) {
+        int index = appliedSlot; // the whole group is sent the same commit index.
+        for (Members member : relayGroup) {
+            noteSent(member);
+        }
+        List<Members> candidates = new ArrayList<>(relayGroup);
+        Collections.shuffle(candidates);
+        for (Members relay : candidates) {
+            StringBuilder payload = new StringBuilder();
+            for (Members peer : relayGroup) {
+                if (peer != relay) {
+                    payload.append(payload.isEmpty() ? "" : ",").append(peer);
+                }
+            }
+            payload.append(';').append(ballot).append(':').append(index).append(':').append(encoded);
+            try (Socket socket = CouncilConnection.getConnection(HOST, relay.getPort())) {
+                if (socket == null) {
+                    continue; // we couldn't connect in time, try another relay.
+                }
+                CouncilConnection.writeMessage(socket, "APPEND-RELAY", self, group, slot, null, payload.toString());
+                try (MessageView response = CouncilConnection.readView(socket)) {
+                    if (response.message().equals("APPEND-OK") && response.group() == group
+                            && response.proposalNum() == slot && response.hasPayload()) {
+                        String[] stored = response.payload().split(",");
+                        for (String member : stored) {
+                            announce(Members.valueOf(member), index);
+                        }
+                        return stored.length;
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                logger.fine(self + " couldn't relay slot " + slot + " through " + relay + ". " + e.getMessage());
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Sends an APPEND message for the given slot to the given member and waits for it to store the entry.
+     *
+     * @param member  : Members : the member to send the entry to.
+     * @param slot    : int : the slot of the entry.
+     * @param ballot  : int : our ballot.
+     * @param encoded : String : the entry, encoded with encode().
+     * @return : boolean : true if the member stored the entry, false otherwise.
+     */
+    private boolean sendAppendToMember(Members member, int slot, int ballot, String encoded) {
+        RttTracker ranking = rtts;
+        long start = System.nanoTime();
+        try {
+            int index = commitIndexFor(member);
+            boolean ok = exchangeAppend(member, self, slot, ballot + ":" + index + ":" + encoded);
+            if (ranking != null) {
+                ranking.record(member, System.nanoTime() - start);
+            }
+            if (ok) {
+                announce(member, index);
+            }
+            return ok;
+        } catch (IOException e) {
+            if (ranking != null) {
+                ranking.fail(member);
+            }
+            logger.fine(self + " reported a connection error to " + member + ". " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /**
+     * Sends an APPEND message to a member, on behalf of the leader, and waits for it to store the entry. If we are
+     * the leader, and the member refuses it as it promised a higher ballot, another leader has superseded us.
+     *
+     * @param member  : Members : the member to send the entry to.
+     * @param sender  : Members : the leader, who the message is from, even when a relay sends it.
+     * @param slot    : int : the slot of the entry.
+     * @param payload : String : the payload, "<ballot>:<commit index>:<encoded entry>".
+     * @return : boolean : true if the member stored the entry, false if it refused to.
+     * @throws IOException : if the member couldn't be reached.
+     */
+    private boolean exchangeAppend(Members member, Members sender, int slot, String payload) throws IOException {
+        try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
+            if (socket == null) {
+                throw new IOException("Couldn't connect in time.");
+            }
+            CouncilConnection.writeMessage(socket, "APPEND", sender, group, slot, null, payload);
+            try (MessageView response = CouncilConnection.readView(socket)) {
+                if (sender == self && response.message().equals("APPEND-REJECT") && response.hasPayload()) {
+                    supersede(Integer.parseInt(response.payload()));
+                }
+                return response.message().equals("APPEND-OK") && response.group() == group
+                        && response.proposalNum() == slot;
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed reply from " + member + ".");
+            }
+        }
+    }
+
+
+    /**
+     * Marks a slot as decided, and applies whatever can now be applied. The other members learn of it from the
+     * commit index our next APPEND carries, or from a heartbeat if there is no next APPEND soon.
+     *
+     * @param slot : int : the slot that was decided.
+     */
+    private void commit(int slot) {
+        slots.decide(slot);
+        apply();
+        scheduleHeartbeat();
+    }
+
+
+    /**
+     * Returns our commit index to send to a member, and notes when we sent the member something. The member only
+     * counts as told once the message gets there, see announce().
+     *
+     * @param member : Members : the member the commit index is sent to.
+     * @return : int : the commit index.
+     */
+    private int commitIndexFor(Members member) {
+        noteSent(member);
+        return appliedSlot;
+    }
+
+
+    /**
+     * Notes that we are sending a member a message carrying our commit index, so a heartbeat can wait for it.
+     *
+     * @param member : Members : the member.
+     */
+    private void noteSent(Members member) {
+        lastSent.set(member.ordinal(), System.nanoTime());
+    }
+
+
+    /**
+     * Notes that a member received a message carrying our commit index, so heartbeats needn't send it again.
+     *
+     * @param member : Members : the member.
+     * @param index  : int : the commit index the message carried.
+     */
+    private void announce(Members member, int index) {
+        announced.accumulateAndGet(member.ordinal(), index, Math::max);
+    }
+
+
+    /**
+     * Makes sure a heartbeat is due within HEARTBEAT_MS, unless one already is.
+     */
+    private void scheduleHeartbeat() {
+        if (heartbeatScheduled.compareAndSet(false, true)) {
+            CompletableFuture.delayedExecutor(HEARTBEAT_MS, TimeUnit.MILLISECONDS, executorService)
+                    .execute(this::heartbeat);
+        }
+    }
+
+
+    /**
+     * Sends our commit index in a COMMIT message to every member that hasn't been sent it yet, and hasn't been
+     * sent anything for HEARTBEAT_MS. Members we sent an APPEND to more recently will get it with the next one,
+     * so while the log is busy, we check again later rather than send it on its own.
+     */
+    private void heartbeat() {
+        heartbeatScheduled.set(false);
+        int ballot = leaderBallot;
+        if (ballot == 0) {
+            return; // we don't lead the log, or not yet.
+        }
+        int index = appliedSlot;
+        long now = System.nanoTime();
+        boolean waiting = false;
+        for (Members member : Members.values()) {
+            if (member == self || announced.get(member.ordinal()) >= index) {
+                continue;
+            }
+            if (now - lastSent.get(member.ordinal()) < HEARTBEAT_MS * 1_000_000L) {
+                waiting = true; // an APPEND is on its way, the next one will carry the commit index.
+                continue;
+            }
+            commitIndexFor(member);
+            executorService.submit(() -> {
+                try (Socket socket = new Socket(HOST, member.getPort())) {
+                    CouncilConnection.writeMessage(socket, "COMMIT", self, group, index, null,
+                            String.valueOf(ballot));
+                    announce(member, index);
+                } catch (IOException e) {
+                    // ignore the error, the member will catch up later.
+                }
+            });
+        }
+        if (waiting) {
+            scheduleHeartbeat();
+        }
+    }
+
+
+    /**
+     * Applies decided entries in slot order, for as long as the next slot has been decided, and completes the
+     * futures of any commands the leader is waiting on. All the entries that can be applied are applied as one
+     * batch: they are first checked against the session table in log order, so retried commands are skipped, and
+     * the remaining commands are then applied to the state machine in parallel where they don't conflict.
+     */
+    private synchronized void apply() {
+        List<String> batch = new ArrayList<>();
+        String entry;
+        while ((entry = slots.getDecided(appliedSlot + batch.size() + 1)) != null) {
+            batch.add(entry);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        int firstSlot = appliedSlot + 1;
+        Result[] results = new Result[batch.size()];
+        long[] sessionIds = new long[batch.size()];
+        long[] seqs = new long[batch.size()];
+        int[] commandIndex = new int[batch.size()]; // where the entry's command is in commands, or -1.
+        int[] sameAs = new int[batch.size()]; // the earlier entry in the batch this one repeats, or -1.
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            commandIndex[i] = -1;
+            sameAs[i] = -1;
+            if (batch.get(i).equals(NOOP)) {
+                results[i] = new Result(firstSlot + i, ""); // a slot a new leader filled, nothing to apply.
+                continue;
+            }
+            String[] parts = batch.get(i).split(":", 3);
+            sessionIds[i] = Long.parseLong(parts[0]);
+            seqs[i] = Long.parseLong(parts[1]);
+            Result applied = sessions.lookup(sessionIds[i], seqs[i]);
+            if (applied == null && seqs[i] == SessionTable.REGISTRATION) {
+                sessions.register(sessionIds[i]); // not a command, so nothing to apply.
+                results[i] = new Result(firstSlot + i, "");
+            } else if (applied == null) {
+                commandIndex[i] = commands.size();
+                commands.add(parts[2]);
+                // hold the command's place, so a repeat of it later in this batch isn't applied again.
+                sessions.record(sessionIds[i], seqs[i], new Result(firstSlot + i, null));
+            } else if (applied.value() == null) {
+                sameAs[i] = applied.slot() - firstSlot; // repeats a command earlier in this batch.
+            } else {
+                results[i] = applied;
+                sessions.touch(sessionIds[i]);
+            }
+        }
+        String[] values = applier.applyAll(commands);
+        for (int i = 0; i < batch.size(); i++) {
+            if (commandIndex[i] >= 0) {
+                results[i] = new Result(firstSlot + i, values[commandIndex[i]]);
+                sessions.record(sessionIds[i], seqs[i], results[i]);
+            } else if (sameAs[i] >= 0) {
+                results[i] = results[sameAs[i]];
+            }
+        }
+        appliedSlot += batch.size();
+        for (int i = 0; i < batch.size(); i++) {
+            CompletableFuture<Result> future = pending.remove(firstSlot + i);
+            if (future != null) {
+                future.complete(results[i]);
+            }
+        }
+        if (appliedSlot - (snapshot == null ? 0 : snapshot.lastSlot()) >= COMPACT_EVERY) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Snapshots the state machine and session table as of the last slot applied, and drops the entries the
+     * snapshot covers. The snapshot is the state machine's snapshot, preceded by its length, followed by the
+     * session table. The write-ahead log only drops the entries once the snapshot is durable.
+     */
+    private synchronized void compact() {
+        int lastSlot = appliedSlot;
+        Path file = null;
+        Snapshot taken;
+        try {
+            file = newSnapshotFile("snapshot-");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                byte[] state = stateMachine.snapshot();
+                out.writeInt(state.length);
+                out.write(state);
+                sessions.writeTo(out);
+            }
+            taken = persist(file, lastSlot);
+        } catch (IOException e) {
+            if (file != null) {
+                deleteQuietly(file);
+            }
+            logger.warning(self + " couldn't write a snapshot, so will keep its log. " + e.getMessage());
+            return;
+        }
+        replaceSnapshot(taken);
+        slots.truncate(lastSlot);
+        wal.release(group, lastSlot);
+        logger.fine(self + " compacted log group " + group + " up to slot " + lastSlot);
+    }
+
+
+    /**
+     * Makes the given snapshot our latest, and deletes the file of the one it replaces. A member we are catching
+     * up may still be reading the old file, but it opened the file before we delete it, so it can finish.
+     *
+     * @param replacement : Snapshot : the new snapshot.
+     */
+    private synchronized void replaceSnapshot(Snapshot replacement) {
+        Snapshot old = snapshot;
+        snapshot = replacement;
+        if (old != null) {
+            deleteQuietly(old.file());
+        }
+    }
+
+
+    /**
+     * Returns the directory we keep snapshots in, creating it the first time it is needed: the data directory if
+     * we are durable, otherwise a temporary directory deleted when we exit.
+     *
+     * @return : Path : the snapshot directory.
+     * @throws IOException : if the directory could not be created.
+     */
+    private synchronized Path snapshotDirectory() throws IOException {
+        if (snapshotDirectory == null) {
+            Path data = wal.getDirectory();
+            if (data != null) {
+                snapshotDirectory = Files.createDirectories(data);
+            } else {
+                snapshotDirectory = Files.createTempDirectory("council-" + self.getPort() + "-" + group + "-");
+                snapshotDirectory.toFile().deleteOnExit();
+            }
+        }
+        return snapshotDirectory;
+    }
+
+
+    /**
+     * Creates a file in the snapshot directory to write or receive a snapshot into, before it is made durable
+     * with persist().
+     *
+     * @param prefix : String : what the file's name starts with, before the group.
+     * @return : Path : the file.
+     * @throws IOException : if the file could not be created.
+     */
+    private Path newSnapshotFile(String prefix) throws IOException {
+        Path file = Files.createTempFile(snapshotDirectory(), prefix + group + "-", ".tmp");
+        if (wal.getDirectory() == null) {
+            file.toFile().deleteOnExit();
+        }
+        return file;
+    }
+
+
+    /**
+     * Makes a snapshot file durable: flushes it to disk, then renames it to "snapshot-<group>-<last slot>.bin"
+     * and flushes the directory, so a restarted member finds either the whole snapshot or none of it.
+     *
+     * @param file     : Path : the file the snapshot was written or received into.
+     * @param lastSlot : int : the last slot the snapshot covers.
+     * @return : Snapshot : the durable snapshot.
+     * @throws IOException : if the snapshot could not be made durable.
+     */
+    private Snapshot persist(Path file, int lastSlot) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Path target = file.resolveSibling("snapshot-" + group + "-" + lastSlot + ".bin");
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            logger.fine(self + " couldn't flush its snapshot directory. " + e.getMessage()); // not on every OS.
+        }
+        if (wal.getDirectory() == null) {
+            target.toFile().deleteOnExit();
+        }
+        return new Snapshot(lastSlot, target);
+    }
+
+
+    /**
+     * Deletes a file, logging rather than throwing if it can't be deleted, as a stray snapshot file does no harm.
+     *
+     * @param file : Path : the file to delete.
+     */
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.fine(self + " couldn't delete " + file + ". " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Replaces our state with a snapshot from another member, if it is ahead of us. The snapshot is made durable
+     * before we use it, so the write-ahead log can drop the entries it covers.
+     *
+     * @param received : Snapshot : the snapshot.
+     * @throws IOException : if the snapshot is corrupt, or could not be made durable.
+     */
+    private synchronized void restore(Snapshot received) throws IOException {
+        if (received.lastSlot() <= appliedSlot) {
+            deleteQuietly(received.file());
+            return; // we caught up some other way while it was on its way.
+        }
+        Snapshot durable = persist(received.file(), received.lastSlot());
+        try {
+            load(durable.file());
+        } catch (IOException e) {
+            deleteQuietly(durable.file());
+            throw e;
+        }
+        appliedSlot = received.lastSlot();
+        replaceSnapshot(durable);
+        slots.truncate(received.lastSlot());
+        nextSlot.accumulateAndGet(received.lastSlot() + 1, Math::max);
+        wal.release(group, received.lastSlot());
+        logger.info(self + " restored a snapshot of log group " + group + " up to slot " + received.lastSlot());
+    }
+
+
+    /**
+     * Replaces the state machine and session table with the ones in a snapshot file.
+     *
+     * @param file : Path : the snapshot file.
+     * @throws IOException : if the file could not be read, or is corrupt.
+     */
+    private void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot: " + file);
+            }
+            byte[] state = new byte[length];
+            in.readFully(state);
+            stateMachine.restore(state);
+            sessions.readFrom(in);
+        }
+    }
+
+
+    /**
+     * Asks the leader to catch us up, unless we are already doing so.
+     */
+    private void catchUp() {
+        Members from = leader.get();
+        if (from == null || from == self || !catchingUp.compareAndSet(false, true)) {
+            return;
+        }
+        executorService.submit(() -> {
+            try {
+                fetch(from);
+            } finally {
+                catchingUp.set(false);
+            }
+        });
+    }
+
+
+    /**
+     * Catches us up from a member: it sends its snapshot if we are behind it, then every decided entry after that,
+     * which we replay. Any member can catch us up, not just the leader.
+     *
+     * @param from : Members : the member.
+     */
+    private void fetch(Members from) {
+        try (Socket socket = CouncilConnection.getConnection(HOST, from.getPort())) {
+            if (socket == null) {
+                return;
+            }
+            CouncilConnection.writeMessage(socket, "CATCHUP", self, group, getAppliedSlot(), null, null);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream acks = new DataOutputStream(socket.getOutputStream());
+            if (in.readBoolean()) {
+                Path file = newSnapshotFile("incoming-");
+                try {
+                    restore(SnapshotTransfer.receive(in, acks, file));
+                } catch (IOException e) {
+                    deleteQuietly(file);
+                    throw e;
+                }
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int slot = in.readInt();
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Malformed catch-up entry for slot " + slot);
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                put(slot, 0, new String(bytes, StandardCharsets.UTF_8));
+                slots.decide(slot);
+            }
+            apply();
+            logger.info(self + " caught log group " + group + " up to slot " + getAppliedSlot() + " from " +
+                    from);
+        } catch (IOException e) {
+            logger.fine(self + " couldn't catch up from " + from + ". " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Catches a member up from the given slot, on the connection its CATCHUP request arrived on.
+     * We send whether a snapshot follows, the snapshot if the member is behind it, and then the number of
+     * decided entries after the snapshot or the member's slot, and each entry's slot, length and UTF-8 bytes.
+     *
+     * @param from         : int : the last slot the member has applied.
+     * @param clientSocket : Socket : the connection the request arrived on.
+     * @throws IOException : if the member could not be caught up.
+     */
+    private void sendCatchUp(int from, Socket clientSocket) throws IOException {
+        Snapshot current;
+        FileChannel file = null;
+        List<String> tail = new ArrayList<>();
+        int start;
+        // take the snapshot and tail together, so a compaction can't fall in between, and open the snapshot before
+        // a compaction can delete it.
+        synchronized (this) {
+            current = snapshot != null && from < snapshot.lastSlot() ? snapshot : null;
+            if (current != null) {
+                file = FileChannel.open(current.file(), StandardOpenOption.READ);
+            }
+            start = current != null ? current.lastSlot() + 1 : from + 1;
+            for (int slot = start; slot <= appliedSlot; slot++) {
+                tail.add(slots.get(slot));
+            }
+        }
+        try (clientSocket; FileChannel snapshotFile = file) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            DataInputStream acks = new DataInputStream(clientSocket.getInputStream());
+            out.writeBoolean(current != null);
+            if (current != null) {
+                SnapshotTransfer.send(current.lastSlot(), snapshotFile, out, acks, clientSocket.getChannel());
+            }
+            out.writeInt(tail.size());
+            for (int i = 0; i < tail.size(); i++) {
+                byte[] entry = tail.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(start + i);
+                out.writeInt(entry.length); // not writeUTF, which can't hold entries over 64KB.
+                out.write(entry);
+            }
+            out.flush();
+        }
+    }
+
+
+    /**
+     * Handles a log message for this group received from another member.
+     *
+     * The message is read from a pooled view rather than a Message, as these messages are the steady state. Most
+     * are replied to once what they ask us to keep is durable, and a relay once its peers have replied too, but
+     * neither holds the thread while it waits.
+     *
+     * @param message      : MessageView : the message.
+     * @param clientSocket : Socket : the socket the message was received on.
+     * @return : CompletableFuture<Void> : completes once the message has been replied to, when the socket can be
+     * closed, or null if the message isn't a log message and should be handled elsewhere.
+     * @throws IOException : if a reply could not be sent, or the message is malformed.
+     */
+    public CompletableFuture<Void> handle(MessageView message, Socket clientSocket) throws IOException {
+        switch (message.message()) {
+            case "APPEND":
+                CompletableFuture<Boolean> appended = REFUSED;
+                if (message.sender() != leader.get()) {
+                    logger.fine(self + " received an append from " + message.sender() + " who isn't president.");
+                } else {
+                    // only acknowledge the entry once it is durable, the leader counts on us not forgetting it.
+                    appended = append(message.proposalNum(), parseAppend(message.payload()));
+                }
+                return replyOnce(appended, clientSocket, message.sender(), message.proposalNum(), "APPEND-OK",
+                        () -> null, "APPEND-REJECT");
+            case "APPEND-RELAY":
+                if (message.sender() != leader.get()) {
+                    logger.fine(self + " was asked to relay by " + message.sender() + " who isn't president.");
+                    CouncilConnection.writeMessage(clientSocket, "APPEND-REJECT", message.sender(), group,
+                            message.proposalNum(), null, refusal());
+                    return HANDLED;
+                }
+                Members from = message.sender(); // the view is reused once we return, so we keep what we need.
+                int slot = message.proposalNum();
+                return relay(from, slot, message.payload()).thenAccept(stored -> {
+                    String names = String.join(",", stored.stream().map(Members::name).toList());
+                    try {
+                        CouncilConnection.writeMessage(clientSocket, stored.isEmpty() ? "APPEND-REJECT" :
+                                "APPEND-OK", from, group, slot, null, stored.isEmpty() ? null : names);
+                    } catch (IOException e) {
+                        logger.fine(self + " couldn't reply to a relay of slot " + slot + ". " + e.getMessage());
+                    }
+                });
+            case "APPEND-BATCH":
+                CompletableFuture<Boolean> stored = REFUSED;
+                if (message.sender() != leader.get()) {
+                    logger.fine(self + " received a batch from " + message.sender() + " who isn't president.");
+                } else {
+                    stored = appendBatch(parseAppend(message.payload()));
+                }
+                return replyOnce(stored, clientSocket, message.sender(), message.proposalNum(), "APPEND-OK",
+                        () -> null, "APPEND-REJECT");
+            case "COMMIT":
+                if (message.sender() == leader.get()) {
+                    int ballot = ballotOf(message.payload());
+                    if (accepts(ballot)) {
+                        advance(message.proposalNum(), ballot);
+                    }
+                }
+                return HANDLED;
+            case "LOG-PREPARE":
+                int ballot = message.proposalNum();
+                int leaderApplied = ballotOf(message.payload()); // the leader's applied slot, a number all the same.
+                CompletableFuture<Boolean> promised = REFUSED;
+                if (message.sender() == leader.get() && accepts(ballot)) {
+                    // only promise once it is durable, so we can't forget it and store an older leader's entry.
+                    promised = durable(wal.ballot(group, ballot), "the promise of ballot " + ballot);
+                }
+                return replyOnce(promised, clientSocket, message.sender(), ballot, "LOG-PROMISE",
+                        () -> promiseFor(leaderApplied), "LOG-REJECT");
+            case "CATCHUP":
+                sendCatchUp(message.proposalNum(), clientSocket);
+                return HANDLED;
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Replies to a log message once we know whether we accept it, which for most messages is once something is
+     * durable in our write-ahead log. Nothing waits for the write-ahead log meanwhile, the reply is sent from our
+     * threads once it is known, as the write-ahead log's writer mustn't send replies.
+     *
+     * @param accepted      : CompletableFuture<Boolean> : completes with whether we accept the message.
+     * @param clientSocket  : Socket : the socket the message was received on.
+     * @param to            : Members : the member that sent the message.
+     * @param num           : int : the message's slot or ballot, which the reply carries back.
+     * @param acceptType    : String : the type of the reply if we accept it.
+     * @param acceptPayload : Supplier<String> : gives the payload of the reply if we accept it, when it is sent.
+     * @param refuseType    : String : the type of the reply if we refuse it, whose payload is our refusal().
+     * @return : CompletableFuture<Void> : completes once the message has been replied to, or we failed to.
+     */
+    private CompletableFuture<Void> replyOnce(CompletableFuture<Boolean> accepted, Socket clientSocket, Members to,
+                                              int num, String acceptType, Supplier<String> acceptPayload,
+                                              String refuseType) {
+        return accepted.thenAcceptAsync(ok -> {
+            try {
+                CouncilConnection.writeMessage(clientSocket, ok ? acceptType : refuseType, to, group, num, null,
+                        ok ? acceptPayload.get() : refusal());
+            } catch (IOException e) {
+                logger.fine(self + " couldn't reply to " + to + " with " + (ok ? acceptType : refuseType) + ". " +
+                        e.getMessage());
+            }
+        }, executorService);
+    }
+
+
+    /**
+     * Waits for a write to our write-ahead log without holding a thread: gives a future that says whether it
+     * became durable. A write that couldn't be made durable is logged, and the reply it guards must not be sent.
+     *
+     * @param write : CompletableFuture<Void> : the write's future.
+     * @param what  : String : what was written, for the log.
+     * @return : CompletableFuture<Boolean> : completes with true once the write is durable, or false if it
+     * couldn't be made durable.
+     */
+    private CompletableFuture<Boolean> durable(CompletableFuture<Void> write, String what) {
+        return write.handle((_, e) -> {
+            if (e != null) {
+                logger.warning(self + " couldn't make " + what + " durable. " + e.getMessage());
+            }
+            return e == null;
+        });
+    }
+
+
+    /**
+     * Checks whether we are behind a slot we know was decided, because we never received it or never heard that
+     * the slots before it were decided. Pipelined appends and commits can arrive out of order, so the first time
+     * we see a gap we only check again once it has had CATCH_UP_DELAY_MS to close by itself, and if it hasn't,
+     * we ask the leader to catch us up.
+     */
+    private void checkForGap() {
+        if (highestDecided.get() <= getAppliedSlot()) {
+            gapSince.set(0); // everything we know was decided has been applied.
+            return;
+        }
+        long now = System.nanoTime();
+        if (gapSince.compareAndSet(0, now)) {
+            CompletableFuture.delayedExecutor(CATCH_UP_DELAY_MS, TimeUnit.MILLISECONDS, executorService)
+                    .execute(this::checkForGap);
+        } else if (now - gapSince.get() >= CATCH_UP_DELAY_MS * 1_000_000L) {
+            gapSince.set(0);
+            catchUp();
+        }
+    }
+
+
+    /**
+     * Returns the payload of a refusal of a log message, the ballot we have promised, so a leader we refused
+     * because another has superseded it learns so.
+     *
+     * @return : String : the ballot we have promised.
+     */
+    private String refusal() {
+        return String.valueOf(promisedBallot.get());
+    }
+
+
+    /**
+     * Promises a ballot, if it is at least as high as any we have promised.
+     *
+     * @param ballot : int : the ballot.
+     * @return : boolean : true if we promised it, false if we promised a higher one.
+     */
+    private boolean accepts(int ballot) {
+        return promisedBallot.accumulateAndGet(ballot, Math::max) == ballot;
+    }
+
+
+    /**
+     * Returns the payload of our promise to a new leader: the last slot we have applied, then every entry we have
+     * stored after both our applied slots, with the ballot it was stored for, as "<applied slot>;<slot>,<ballot>,
+     * <encoded entry>;...".
+     *
+     * @param leaderApplied : int : the last slot the leader has applied.
+     * @return : String : the payload.
+     */
+    private String promiseFor(int leaderApplied) {
+        int applied = getAppliedSlot();
+        StringBuilder payload = new StringBuilder().append(applied);
+        for (int slot = Math.max(applied, leaderApplied) + 1; slot < nextSlot.get(); slot++) {
+            String entry = slots.get(slot);
+            if (entry != null) {
+                payload.append(';').append(slot).append(',').append(slots.ballotOf(slot)).append(',')
+                        .append(encode(entry));
+            }
+        }
+        return payload.toString();
+    }
+
+
+    /**
+     * Stores an entry from an APPEND message, if its ballot is the highest we have promised, learns the commit
+     * index it carries, and makes the entry durable.
+     *
+     * @param slot   : int : the entry's slot.
+     * @param append : Append : the message's payload.
+     * @return : CompletableFuture<Boolean> : completes with true once the entry is durable, or false if we refused
+     * it, or it couldn't be made durable.
+     * @throws IOException : if the entry is malformed.
+     */
+    private CompletableFuture<Boolean> append(int slot, Append append) throws IOException {
+        String entry;
+        try {
+            entry = decode(append.rest());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed append: " + append.rest());
+        }
+        if (!accepts(append.ballot())) {
+            logger.fine(self + " refused slot " + slot + " of a superseded leader, ballot " + append.ballot());
+            return REFUSED;
+        }
+        boolean stored = store(slot, append.ballot(), entry);
+        advance(append.commitIndex(), append.ballot());
+        if (!stored) {
+            return REFUSED;
+        }
+        return durable(wal.append(group, slot, append.ballot(), entry), "slot " + slot);
+    }
+
+
+    /**
+     * Stores the entries of an APPEND-BATCH message, if its ballot is the highest we have promised, learns the
+     * commit index it carries, and makes the entries durable.
+     *
+     * @param batch : Append : the message's payload.
+     * @return : CompletableFuture<Boolean> : completes with true once every entry is durable, or false if we
+     * refused any of them, or one couldn't be made durable.
+     * @throws IOException : if the batch is malformed.
+     */
+    private CompletableFuture<Boolean> appendBatch(Append batch) throws IOException {
+        if (!accepts(batch.ballot())) {
+            return REFUSED;
+        }
+        boolean refused = false;
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : RegionBatcher.decode(batch.rest()).entrySet()) {
+            if (!store(entry.getKey(), batch.ballot(), entry.getValue())) {
+                refused = true;
+                continue;
+            }
+            writes.add(wal.append(group, entry.getKey(), batch.ballot(), entry.getValue()));
+        }
+        advance(batch.commitIndex(), batch.ballot());
+        // the writes are group committed, so all of them are durable after about one fsync.
+        boolean allStored = !refused;
+        return durable(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])), "a batch")
+                .thenApply(ok -> ok && allStored);
+    }
+
+
+    /**
+     * Relays an entry for the leader: stores it ourselves while passing it on to our peers in the relay group, and
+     * gathers which of us stored it, so the leader gets a single reply for the whole group. Nothing waits for the
+     * peers, the result is ready once they have all replied or failed to.
+     *
+     * @param from    : Members : the leader.
+     * @param slot    : int : the entry's slot.
+     * @param payload : String : the payload, "<peers>;<ballot>:<commit index>:<encoded entry>".
+     * @return : CompletableFuture<List<Members>> : completes with the members of the relay group, counting us, that
+     * stored the entry.
+     * @throws IOException : if the payload is malformed.
+     */
+    private CompletableFuture<List<Members>> relay(Members from, int slot, String payload) throws IOException {
+        int semicolon = payload == null ? -1 : payload.indexOf(';');
+        if (semicolon < 0) {
+            throw new IOException("Malformed relay: " + payload);
+        }
+        List<Members> peers = new ArrayList<>();
+        for (String peer : payload.substring(0, semicolon).split(",")) {
+            if (peer.isEmpty()) {
+                continue; // we are the whole group.
+            }
+            try {
+                peers.add(Members.valueOf(peer));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed relay: " + payload);
+            }
+        }
+        String forwarded = payload.substring(semicolon + 1);
+        Map<Members, CompletableFuture<Boolean>> stores = new EnumMap<>(Members.class);
+        stores.put(self, append(slot, parseAppend(forwarded)));
+        for (Members peer : peers) {
+            stores.put(peer, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return exchangeAppend(peer, from, slot, forwarded);
+                } catch (IOException e) {
+                    logger.fine(self + " couldn't relay slot " + slot + " to " + peer + ". " + e.getMessage());
+                    return false;
+                }
+            }, executorService));
+        }
+        // on our threads, as the last to finish may be the write-ahead log's writer, which mustn't send replies.
+        return CompletableFuture.allOf(stores.values().toArray(new CompletableFuture<?>[0])).thenApplyAsync(_ -> {
+            List<Members> stored = new ArrayList<>();
+            stores.forEach((member, ok) -> {
+                if (ok.join()) {
+                    stored.add(member);
+                }
+            });
+            return stored;
+        }, executorService);
+    }
+
+
+    /**
+     * Reads the payload of an APPEND or APPEND-BATCH message, "<ballot>:<commit index>:<entry or batch>".
+     *
+     * @param payload : String : the payload.
+     * @return : Append : the ballot, commit index, and the entry or batch, still encoded.
+     * @throws IOException : if the payload is malformed.
+     */
+    private static Append parseAppend(String payload) throws IOException {
+        int first = payload == null ? -1 : payload.indexOf(':');
+        int second = first < 0 ? -1 : payload.indexOf(':', first + 1);
+        if (first <= 0 || second <= first + 1) {
+            throw new IOException("Malformed append: " + payload);
+        }
+        try {
+            return new Append(Integer.parseInt(payload, 0, first, 10),
+                    Integer.parseInt(payload, first + 1, second, 10), payload.substring(second + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed append: " + payload);
+        }
+    }
+
+
+    /**
+     * Reads the number that is the whole payload of a COMMIT or LOG-PREPARE message.
+     *
+     * @param payload : String : the payload.
+     * @return : int : the number.
+     * @throws IOException : if the payload isn't a number.
+     */
+    private static int ballotOf(String payload) throws IOException {
+        try {
+            return Integer.parseInt(payload);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed log message: " + payload);
+        }
+    }
+
+
+    /**
+     * Stores an entry sent by the leader, and applies it if the commit index we know of already covers it, and it
+     * was sent for the ballot we promised, which is the one that commit index came from or a later one. We never
+     * store an entry over a slot we know was decided with another.
+     *
+     * @param slot   : int : the entry's slot.
+     * @param ballot : int : the ballot of the leader that sent it.
+     * @param entry  : String : the entry.
+     * @return : boolean : true if we stored it, false if the slot was decided with another entry.
+     */
+    private boolean store(int slot, int ballot, String entry) {
+        String decided = slots.getDecided(slot);
+        if (decided != null) {
+            if (!decided.equals(entry)) {
+                logger.warning(self + " was sent slot " + slot + ", which was decided with another entry.");
+            }
+            return decided.equals(entry);
+        }
+        put(slot, ballot, entry);
+        if (slot <= highestDecided.get() && ballot == promisedBallot.get() && slots.decide(slot)) {
+            apply();
+        }
+        return true;
+    }
+
+
+    /**
+     * Stores a slot's entry, and fails the future of the command we submitted to the slot if this replaces it,
+     * as a new leader has filled the slot with another entry.
+     *
+     * @param slot   : int : the slot.
+     * @param ballot : int : the ballot the entry was stored for.
+     * @param entry  : String : the entry.
+     */
+    private void put(int slot, int ballot, String entry) {
+        String old = slots.get(slot);
+        CompletableFuture<Result> future = old == null || old.equals(entry) ? null : pending.remove(slot);
+        if (future != null) {
+            future.completeExceptionally(new IllegalStateException("slot " + slot + " was given another entry."));
+        }
+        slots.put(slot, ballot, entry);
+        nextSlot.accumulateAndGet(slot + 1, Math::max);
+    }
+
+
+    /**
+     * Learns the leader's commit index, deciding every slot up to it that we have stored for the leader's ballot,
+     * and applying them. Slots up to it that we haven't received yet are decided as they arrive. Slots we stored
+     * for an older ballot may hold an entry that wasn't decided, so we leave them, and catch up on them.
+     *
+     * @param index  : int : the leader's commit index.
+     * @param ballot : int : the leader's ballot.
+     */
+    private void advance(int index, int ballot) {
+        int previous = highestDecided.getAndAccumulate(index, Math::max);
+        if (index > previous) {
+            boolean decided = false;
+            for (int slot = Math.max(previous, appliedSlot) + 1; slot <= index; slot++) {
+                decided |= slots.ballotOf(slot) == ballot && slots.decide(slot);
+            }
+            if (decided) {
+                apply();
+            }
+        }
+        checkForGap();
+    }
+
+
+    /**
+     * Returns the last slot this replica has applied.
+     *
+     * @return : int : the last slot applied, 0 if nothing has been applied.
+     */
+    public synchronized int getAppliedSlot() {
+        return appliedSlot;
+    }
+
+
+    /**
+     * Encodes a string so it contains no spaces and can be sent as a single token.
+     *
+     * @param text : String : the text to encode.
+     * @return : String : the encoded text.
+     */
+    public static String encode(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Decodes a string encoded with encode().
+     *
+     * @param token : String : the encoded text.
+     * @return : String : the decoded text.
+     */
+    public static String decode(String token) {
+        return new String(Base64.getDecoder().decode(token), StandardCharsets.UTF_8);
+    }
+}
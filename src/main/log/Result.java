@@ -0,0 +1,10 @@
+package log;
+
+/**
+ * The result of a command submitted to the council's replicated log.
+ *
+ * @param slot  : int : the slot of the log the command was decided in.
+ * @param value : String : the result of applying the command.
+ */
+public record Result(int slot, String value) {
+}
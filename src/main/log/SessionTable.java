@@ -0,0 +1,183 @@
+package log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of the most recent commands from each client session, so that a command a client
+ * retries is applied exactly once. A client numbers the commands of a session 1, 2, 3 and so on, and may have up
+ * to WINDOW commands in flight at once, so we keep the results of the last WINDOW commands of each session.
+ * The table holds at most a fixed number of sessions, evicting the least recently used. A command from a session
+ * we don't know that isn't the session's first command must be from an evicted session, and we can no longer
+ * tell whether it was applied, so it is refused. A session is only used when one of its commands is applied, by
+ * record() or touch(), never by lookup(), so a leader checking for retries as commands arrive can't reorder its
+ * table ahead of the log, and every member evicts the same sessions.
+ * A log group only sees the commands of a session that touch its keys, so a session is registered with every
+ * group when its first command is submitted, with a registration numbered 0. A group then knows every session
+ * from its first command on, and can refuse commands from sessions it has evicted as a single log does.
+ * Every member applies commands in log order through the same table, so every member makes the same decisions.
+ * The table is not thread safe, it is only used by the thread applying the log.
+ */
+public class SessionTable {
+    public static final int WINDOW = 64; // How many recent results we keep for each session.
+    public static final String EXPIRED = "SESSION-EXPIRED"; // The result of a command from an evicted session.
+
+    public static final long REGISTRATION = 0; // The sequence number of a session's registration.
+
+    private final Map<Long, Session> sessions;
+
+    /**
+     * Creates a session table that holds at most the given number of sessions.
+     *
+     * @param maxSessions : int : the most sessions to remember before evicting the least recently used.
+     */
+    public SessionTable(int maxSessions) {
+        this.sessions = new LinkedHashMap<>() { // insertion ordered, record() and touch() move a session last.
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Session> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * Looks up the result of a command that has already been applied.
+     *
+     * @param sessionId : long : the client's session.
+     * @param seq       : long : the command's sequence number within the session.
+     * @return : Result : the result if the command was applied, a result with the EXPIRED value if we can't tell,
+     * or null if the command has not been applied and should be. If the command's result was recorded with a null
+     * value to hold its place while it is applied, that result is returned. Looking a command up doesn't use its
+     * session. A registration of a session we know has been applied, with an empty result.
+     */
+    public Result lookup(long sessionId, long seq) {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return seq > 1 ? new Result(0, EXPIRED) : null;
+        }
+        if (seq == REGISTRATION) {
+            return new Result(0, "");
+        }
+        if (seq > session.lastSeq) {
+            return null; // a new command.
+        }
+        if (seq <= session.lastSeq - WINDOW) {
+            return new Result(0, EXPIRED); // too old, we've forgotten its result.
+        }
+        int index = (int) (seq % WINDOW);
+        if (session.seqs[index] != seq) {
+            return null; // a command that reached us after a later one, it hasn't been applied yet.
+        }
+        return new Result(session.slots[index], session.results[index]);
+    }
+
+    /**
+     * Records the result of applying a command.
+     *
+     * @param sessionId : long : the client's session.
+     * @param seq       : long : the command's sequence number within the session.
+     * @param result    : Result : the result of applying the command.
+     */
+    public void record(long sessionId, long seq, Result result) {
+        Session session = sessions.remove(sessionId);
+        if (session == null) {
+            session = new Session();
+        }
+        sessions.put(sessionId, session); // last, as the most recently used.
+        int index = (int) (seq % WINDOW);
+        session.seqs[index] = seq;
+        session.slots[index] = result.slot();
+        session.results[index] = result.value();
+        session.lastSeq = Math.max(session.lastSeq, seq);
+    }
+
+    /**
+     * Registers a session, so commands from it are applied even if none of its earlier commands reached us.
+     * Registering a session we know does nothing.
+     *
+     * @param sessionId : long : the client's session.
+     */
+    public void register(long sessionId) {
+        if (!sessions.containsKey(sessionId)) {
+            sessions.put(sessionId, new Session()); // last, as the most recently used.
+        }
+    }
+
+    /**
+     * Marks a session as the most recently used, as when a retried command of it is applied again and its
+     * recorded result returned. Does nothing if we don't know the session.
+     *
+     * @param sessionId : long : the client's session.
+     */
+    public void touch(long sessionId) {
+        Session session = sessions.remove(sessionId);
+        if (session != null) {
+            sessions.put(sessionId, session);
+        }
+    }
+
+    /**
+     * Returns the number of sessions in the table.
+     *
+     * @return : int : the number of sessions.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Writes the table to a snapshot, least recently used session first, so a restored table evicts the same
+     * sessions as this one.
+     *
+     * @param out : DataOutputStream : the stream to write to.
+     * @throws IOException : if the table could not be written.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(sessions.size());
+        for (Map.Entry<Long, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeLong(session.lastSeq);
+            for (int i = 0; i < WINDOW; i++) {
+                out.writeLong(session.seqs[i]);
+                out.writeInt(session.slots[i]);
+                out.writeUTF(session.results[i] == null ? "" : session.results[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the table with a snapshot written by writeTo().
+     *
+     * @param in : DataInputStream : the stream to read from.
+     * @throws IOException : if the table could not be read.
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        sessions.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long sessionId = in.readLong();
+            Session session = new Session();
+            session.lastSeq = in.readLong();
+            for (int j = 0; j < WINDOW; j++) {
+                session.seqs[j] = in.readLong();
+                session.slots[j] = in.readInt();
+                session.results[j] = in.readUTF();
+            }
+            sessions.put(sessionId, session);
+        }
+    }
+
+    /**
+     * The recent results of one client session, kept in ring buffers indexed by sequence number.
+     */
+    private static class Session {
+        private long lastSeq;
+        private final long[] seqs = new long[WINDOW];
+        private final int[] slots = new int[WINDOW];
+        private final String[] results = new String[WINDOW];
+    }
+}
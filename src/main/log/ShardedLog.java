@@ -0,0 +1,273 @@
+package log;
+
+import member.Members;
+import member.Quorums;
+import member.RttTracker;
+import member.Topology;
+import message.MessageView;
+import statemachine.StateMachine;
+import statemachine.TransactionalStateMachine;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * The log groups a member hosts. Rather than making one log faster, the council's state is sharded over several
+ * independent replicated logs, each with its own slots, session table and instance of the state machine, which
+ * order and apply their commands without waiting on each other. Every group is led by the president, and shares
+ * the member's port, threads, write-ahead log and timers, so adding a group costs no more connections or fsyncs.
+ * Commands are routed to a group by the state machine, from the key they touch, so every command on a key is
+ * ordered by the same group. Messages are routed by the group they are tagged with. Transactions, commands of
+ * the form "TXN <command>;<command>...", may span several groups, and are committed atomically across them by a
+ * TransactionCoordinator, with each group's state machine taking part as a TransactionalStateMachine.
+ * A group only sees the commands of a client's session that touch its keys, so a session's first command
+ * registers it with every group too, and only completes once they have all registered it. Every group then knows
+ * the session, and refuses its commands once it has forgotten it, rather than applying a retry twice.
+ * With a single group, this is just the member's replicated log.
+ */
+public class ShardedLog {
+    private final static Logger logger = Logger.getLogger(ShardedLog.class.getName());
+
+    private final Members self; // The member the groups belong to.
+    private final ReplicatedLog[] groups; // The member's replica of each log group.
+    private final TransactionalStateMachine[] participants; // Each group's state machine.
+    private final StateMachine router; // Decides which group a command belongs to.
+    private final TransactionCoordinator coordinator; // Commits transactions across the groups, once started.
+
+    /**
+     * Creates the given number of log groups for the given member, and starts their transaction coordinator.
+     *
+     * @param self          : Members : the member the groups belong to.
+     * @param groups        : int : how many log groups to host, at least 1.
+     * @param leader        : Supplier<Members> : supplies who the member knows to be president.
+     * @param stateMachines : Supplier<StateMachine> : creates the state machine of each group.
+     * @param wal           : WriteAheadLog : the member's write-ahead log, shared by every group.
+     * @return : ShardedLog : the log groups.
+     */
+    public static ShardedLog create(Members self, int groups, Supplier<Members> leader,
+                                    Supplier<StateMachine> stateMachines, WriteAheadLog wal) {
+        ShardedLog log = new ShardedLog(self, groups, leader, stateMachines, wal);
+        log.coordinator.start(log); // once the groups are built, as the coordinator submits to them.
+        return log;
+    }
+
+
+    /**
+     * Creates the given number of log groups for the given member. Their coordinator is started by create().
+     *
+     * @param self          : Members : the member the groups belong to.
+     * @param groups        : int : how many log groups to host, at least 1.
+     * @param leader        : Supplier<Members> : supplies who the member knows to be president.
+     * @param stateMachines : Supplier<StateMachine> : creates the state machine of each group.
+     * @param wal           : WriteAheadLog : the member's write-ahead log, shared by every group.
+     */
+    private ShardedLog(Members self, int groups, Supplier<Members> leader, Supplier<StateMachine> stateMachines,
+                       WriteAheadLog wal) {
+        if (groups < 1) {
+            throw new IllegalArgumentException("A member must host at least one log group.");
+        }
+        this.self = self;
+        this.groups = new ReplicatedLog[groups];
+        this.participants = new TransactionalStateMachine[groups];
+        ExecutorService executorService = Executors.newCachedThreadPool(); // shared by every group.
+        for (int group = 0; group < groups; group++) {
+            participants[group] = new TransactionalStateMachine(stateMachines.get());
+            this.groups[group] = new ReplicatedLog(self, group, leader, participants[group], wal, executorService);
+        }
+        this.router = participants[0]; // routing only reads the command, so any group's state machine will do.
+        this.coordinator = new TransactionCoordinator(self, leader, executorService);
+    }
+
+
+    /**
+     * Sets which region each member is in, and the quorums, for every log group.
+     *
+     * @param topology : Topology : which region each member is in.
+     * @param quorums  : Quorums : the quorums, of which the phase 2 quorum decides entries.
+     */
+    public void setTopology(Topology topology, Quorums quorums) {
+        for (ReplicatedLog group : groups) {
+            group.setTopology(topology, quorums);
+        }
+    }
+
+
+    /**
+     * Sets whether every log group sends entries straight to just the fastest members, and batches the rest.
+     *
+     * @param rtts : RttTracker : ranks the members by round trip time, or null to send straight to everyone.
+     */
+    public void setThrifty(RttTracker rtts) {
+        for (ReplicatedLog group : groups) {
+            group.setThrifty(rtts);
+        }
+    }
+
+
+    /**
+     * Sets how many relay groups every log group sends its entries through.
+     *
+     * @param relays : int : how many relay groups, or 0 to send entries to every member directly.
+     */
+    public void setRelays(int relays) {
+        for (ReplicatedLog group : groups) {
+            group.setRelays(relays);
+        }
+    }
+
+
+    /**
+     * Returns the log group a command belongs to.
+     *
+     * @param command : String : the command.
+     * @return : int : the group.
+     */
+    public int groupOf(String command) {
+        return groups.length == 1 ? 0 : router.groupOf(command, groups.length);
+    }
+
+
+    /**
+     * Submits a command from a client to the log group it belongs to, or a transaction to the coordinator. Only
+     * the leader can submit commands.
+     *
+     * @param sessionId : long : the client's session.
+     * @param seq       : long : the command's sequence number within the session.
+     * @param command   : String : the command.
+     * @return : CompletableFuture<Result> : completes with the slot in the group and result once it is applied.
+     * @throws IllegalStateException : if this member is not the leader.
+     */
+    public CompletableFuture<Result> submit(long sessionId, long seq, String command) {
+        boolean transaction = command.startsWith("TXN ");
+        CompletableFuture<Void> registered = seq == 1 && groups.length > 1 ?
+                register(sessionId, transaction ? -1 : groupOf(command)) : CompletableFuture.completedFuture(null);
+        CompletableFuture<Result> future;
+        if (transaction) {
+            future = coordinator.submit(sessionId, seq, command);
+        } else {
+            future = groups[groupOf(command)].submit(sessionId, seq, command);
+        }
+        return registered.thenCombine(future, (_, result) -> result);
+    }
+
+
+    /**
+     * Registers a client's session with every log group but the one its first command goes to, which learns of
+     * the session from the command itself.
+     *
+     * @param sessionId : long : the client's session.
+     * @param except    : int : the group the first command goes to, or -1 if it is a transaction.
+     * @return : CompletableFuture<Void> : completes once every group has registered the session.
+     * @throws IllegalStateException : if this member is not the leader.
+     */
+    private CompletableFuture<Void> register(long sessionId, int except) {
+        List<CompletableFuture<Result>> registrations = new ArrayList<>();
+        for (int group = 0; group < groups.length; group++) {
+            if (group != except) {
+                registrations.add(groups[group].submit(sessionId, SessionTable.REGISTRATION, "REGISTER"));
+            }
+        }
+        return CompletableFuture.allOf(registrations.toArray(new CompletableFuture<?>[0]));
+    }
+
+
+    /**
+     * Loads each group's latest snapshot from the data directory when the member restarts, before the write-ahead
+     * log is replayed.
+     *
+     * @throws IOException : if a snapshot could not be read.
+     */
+    public void recoverSnapshots() throws IOException {
+        for (ReplicatedLog replica : groups) {
+            replica.recoverSnapshot();
+        }
+    }
+
+
+    /**
+     * Restores an entry replayed from the write-ahead log to its group when the member restarts.
+     *
+     * @param group  : int : the entry's group.
+     * @param slot   : int : the entry's slot.
+     * @param ballot : int : the ballot the entry was stored for.
+     * @param entry  : String : the entry.
+     */
+    public void recover(int group, int slot, int ballot, String entry) {
+        if (group < 0 || group >= groups.length) {
+            // the member was restarted with fewer groups, so the entry's group is gone.
+            logger.warning(self + " has no log group " + group + " to recover slot " + slot + " into.");
+            return;
+        }
+        groups[group].recover(slot, ballot, entry);
+    }
+
+
+    /**
+     * Restores a ballot a group promised, replayed from the write-ahead log when the member restarts.
+     *
+     * @param group  : int : the group.
+     * @param ballot : int : the ballot.
+     */
+    public void recoverBallot(int group, int ballot) {
+        if (group >= 0 && group < groups.length) {
+            groups[group].recoverBallot(ballot);
+        }
+    }
+
+
+    /**
+     * Hands a log message received from another member to the group it is for.
+     *
+     * @param message      : MessageView : the message.
+     * @param clientSocket : Socket : the socket the message was received on.
+     * @return : CompletableFuture<Void> : completes once the message has been replied to, when the socket can be
+     * closed, or null if the message isn't a log message and should be handled elsewhere.
+     * @throws IOException : if a reply could not be sent.
+     */
+    public CompletableFuture<Void> handle(MessageView message, Socket clientSocket) throws IOException {
+        if (message.group() >= groups.length) {
+            logger.fine(self + " received a message for log group " + message.group() + ", which it doesn't host.");
+            return ReplicatedLog.HANDLED; // the connection is closed without a reply, as if we were down.
+        }
+        return groups[message.group()].handle(message, clientSocket);
+    }
+
+
+    /**
+     * Returns the member's replica of a log group.
+     *
+     * @param group : int : the group.
+     * @return : ReplicatedLog : the group's replica.
+     */
+    public ReplicatedLog getGroup(int group) {
+        return groups[group];
+    }
+
+
+    /**
+     * Returns a log group's state machine, as a participant in transactions.
+     *
+     * @param group : int : the group.
+     * @return : TransactionalStateMachine : the group's state machine.
+     */
+    public TransactionalStateMachine getParticipant(int group) {
+        return participants[group];
+    }
+
+
+    /**
+     * Returns how many log groups the member hosts.
+     *
+     * @return : int : the number of groups.
+     */
+    public int getGroupCount() {
+        return groups.length;
+    }
+}
@@ -0,0 +1,232 @@
+package log;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The slots of a replica of the log, kept off the Java heap, so the heap and garbage collection pauses stay
+ * small no matter how many slots the council gets through.
+ * Slots are grouped into segments of SEGMENT_SLOTS consecutive slots. Each segment has its own arena, holding
+ * an index with a fixed-width record for every slot, and chunks the slots' entries are stored in. A record is
+ * RECORD_SIZE bytes: the chunk and offset the entry is stored at, the entry's length in bytes, the slot's state,
+ * which is EMPTY, STORED, or DECIDED, and the ballot of the leader the entry was stored for. When the log is
+ * compacted, segments wholly before the snapshot are freed by closing their arena, so there is never anything
+ * for the garbage collector to trace.
+ * The store is synchronized, as members append, commit and read slots from several threads.
+ */
+class SlotStore implements AutoCloseable {
+    static final int SEGMENT_SHIFT = 12;
+    static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT; // How many slots a segment holds.
+    private static final int CHUNK_SIZE = 256 * 1024; // The size of a chunk of entries.
+    // record layout: int chunk, int offset, int length, int state, int ballot.
+    private static final long RECORD_SIZE = 5 * Integer.BYTES;
+    private static final long CHUNK_AT = 0;
+    private static final long OFFSET_AT = Integer.BYTES;
+    private static final long LENGTH_AT = 2 * Integer.BYTES;
+    private static final long STATE_AT = 3 * Integer.BYTES;
+    private static final long BALLOT_AT = 4 * Integer.BYTES;
+    private static final int EMPTY = 0; // We have nothing for the slot.
+    private static final int STORED = 1; // We have stored the slot's entry.
+    private static final int DECIDED = 2; // We have stored the slot's entry, and know it was decided.
+
+    private final Map<Integer, Segment> segments = new HashMap<>(); // segment number -> segment
+    private int firstSlot = 1; // The first slot we keep, the slots before it have been truncated.
+
+    /**
+     * Stores a slot's entry, replacing whatever was stored for the slot, unless the slot has been decided, as a
+     * decided entry never changes. Slots that have been truncated are ignored too. A replacement that fits where
+     * the old entry was is stored over it. One that doesn't leaves the old bytes unused until the segment is freed,
+     * which is rare, as only a new leader replaces undecided entries.
+     *
+     * @param slot   : int : the slot.
+     * @param ballot : int : the ballot of the leader the entry was stored for.
+     * @param entry  : String : the entry.
+     */
+    synchronized void put(int slot, int ballot, String entry) {
+        if (slot < firstSlot) {
+            return; // the slot is covered by a snapshot already.
+        }
+        Segment segment = segments.computeIfAbsent(slot >> SEGMENT_SHIFT, _ -> new Segment());
+        long record = recordOf(slot);
+        int state = segment.index.get(ValueLayout.JAVA_INT, record + STATE_AT);
+        if (state == DECIDED) {
+            return; // the entry can't have changed, and may be being applied.
+        }
+        byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+        if (state == STORED && bytes.length <= segment.index.get(ValueLayout.JAVA_INT, record + LENGTH_AT)) {
+            segment.overwrite(record, bytes);
+        } else {
+            segment.store(record, bytes);
+        }
+        segment.index.set(ValueLayout.JAVA_INT, record + STATE_AT, STORED);
+        segment.index.set(ValueLayout.JAVA_INT, record + BALLOT_AT, ballot);
+    }
+
+    /**
+     * Returns the ballot a slot's entry was stored for.
+     *
+     * @param slot : int : the slot.
+     * @return : int : the ballot, 0 if we haven't stored an entry.
+     */
+    synchronized int ballotOf(int slot) {
+        Segment segment = segmentOf(slot);
+        long record = recordOf(slot);
+        if (segment == null || segment.index.get(ValueLayout.JAVA_INT, record + STATE_AT) == EMPTY) {
+            return 0;
+        }
+        return segment.index.get(ValueLayout.JAVA_INT, record + BALLOT_AT);
+    }
+
+    /**
+     * Returns a slot's entry.
+     *
+     * @param slot : int : the slot.
+     * @return : String : the entry, or null if we haven't stored one.
+     */
+    synchronized String get(int slot) {
+        Segment segment = segmentOf(slot);
+        return segment == null ? null : segment.read(recordOf(slot));
+    }
+
+    /**
+     * Returns a slot's entry if the slot has been decided.
+     *
+     * @param slot : int : the slot.
+     * @return : String : the entry, or null if we haven't stored one or don't know it was decided.
+     */
+    synchronized String getDecided(int slot) {
+        Segment segment = segmentOf(slot);
+        if (segment == null || segment.index.get(ValueLayout.JAVA_INT, recordOf(slot) + STATE_AT) != DECIDED) {
+            return null;
+        }
+        return segment.read(recordOf(slot));
+    }
+
+    /**
+     * Marks a slot as decided, if we have stored its entry.
+     *
+     * @param slot : int : the slot.
+     * @return : boolean : true if the slot is now decided, false if we haven't stored its entry.
+     */
+    synchronized boolean decide(int slot) {
+        Segment segment = segmentOf(slot);
+        long record = recordOf(slot);
+        if (segment == null || segment.index.get(ValueLayout.JAVA_INT, record + STATE_AT) == EMPTY) {
+            return false;
+        }
+        segment.index.set(ValueLayout.JAVA_INT, record + STATE_AT, DECIDED);
+        return true;
+    }
+
+    /**
+     * Drops every slot up to and including the given one, freeing any segment that no longer holds a slot.
+     *
+     * @param lastSlot : int : the last slot to drop.
+     */
+    synchronized void truncate(int lastSlot) {
+        if (lastSlot < firstSlot) {
+            return;
+        }
+        firstSlot = lastSlot + 1;
+        Iterator<Map.Entry<Integer, Segment>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Segment> entry = it.next();
+            long segmentEnd = ((long) entry.getKey() + 1) * SEGMENT_SLOTS; // the first slot after the segment.
+            if (segmentEnd <= firstSlot) {
+                entry.getValue().arena.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns how many segments the store holds, for tests.
+     *
+     * @return : int : the number of segments.
+     */
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Frees every segment. The store must not be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.arena.close();
+        }
+        segments.clear();
+    }
+
+    private Segment segmentOf(int slot) {
+        return slot < firstSlot ? null : segments.get(slot >> SEGMENT_SHIFT);
+    }
+
+    private static long recordOf(int slot) {
+        return (slot & (SEGMENT_SLOTS - 1)) * RECORD_SIZE;
+    }
+
+    /**
+     * A segment of consecutive slots, with its index and the chunks its entries are stored in, all allocated
+     * from the segment's own arena.
+     */
+    private static final class Segment {
+        private final Arena arena = Arena.ofShared();
+        private final MemorySegment index = arena.allocate(SEGMENT_SLOTS * RECORD_SIZE, Long.BYTES);
+        private final List<MemorySegment> chunks = new ArrayList<>();
+        private int used = CHUNK_SIZE; // How much of the last chunk is used, full until the first is allocated.
+
+        private Segment() {
+            index.fill((byte) 0);
+        }
+
+        /**
+         * Copies an entry into the segment's chunks, and points the slot's record at it. An entry that doesn't
+         * fit in what's left of the last chunk goes in a new chunk, of its own if it is bigger than a chunk.
+         */
+        private void store(long record, byte[] bytes) {
+            if (bytes.length > CHUNK_SIZE - used) {
+                chunks.add(arena.allocate(Math.max(CHUNK_SIZE, bytes.length)));
+                used = 0;
+            }
+            MemorySegment chunk = chunks.getLast();
+            MemorySegment.copy(bytes, 0, chunk, ValueLayout.JAVA_BYTE, used, bytes.length);
+            index.set(ValueLayout.JAVA_INT, record + CHUNK_AT, chunks.size() - 1);
+            index.set(ValueLayout.JAVA_INT, record + OFFSET_AT, used);
+            index.set(ValueLayout.JAVA_INT, record + LENGTH_AT, bytes.length);
+            used = bytes.length > CHUNK_SIZE ? CHUNK_SIZE : used + bytes.length; // a big entry fills its chunk.
+        }
+
+        /**
+         * Copies an entry over the one a slot's record points at, which must be at least as long.
+         */
+        private void overwrite(long record, byte[] bytes) {
+            MemorySegment chunk = chunks.get(index.get(ValueLayout.JAVA_INT, record + CHUNK_AT));
+            MemorySegment.copy(bytes, 0, chunk, ValueLayout.JAVA_BYTE,
+                    index.get(ValueLayout.JAVA_INT, record + OFFSET_AT), bytes.length);
+            index.set(ValueLayout.JAVA_INT, record + LENGTH_AT, bytes.length);
+        }
+
+        /**
+         * Reads the entry a slot's record points at.
+         */
+        private String read(long record) {
+            if (index.get(ValueLayout.JAVA_INT, record + STATE_AT) == EMPTY) {
+                return null;
+            }
+            MemorySegment chunk = chunks.get(index.get(ValueLayout.JAVA_INT, record + CHUNK_AT));
+            byte[] bytes = new byte[index.get(ValueLayout.JAVA_INT, record + LENGTH_AT)];
+            MemorySegment.copy(chunk, ValueLayout.JAVA_BYTE, index.get(ValueLayout.JAVA_INT, record + OFFSET_AT),
+                    bytes, 0, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package log;
+
+import java.nio.file.Path;
+
+/**
+ * A snapshot of a replica of the log: the state machine and session table after applying every slot up to and
+ * including the last slot. Entries up to the last slot are no longer needed once the snapshot is taken.
+ * Snapshots are kept on disk rather than on the heap, so they can be shipped to a member straight from the file.
+ *
+ * @param lastSlot : int : the last slot applied before the snapshot was taken.
+ * @param file     : Path : the file holding the state machine's snapshot followed by the session table's.
+ */
+public record Snapshot(int lastSlot, Path file) {
+}
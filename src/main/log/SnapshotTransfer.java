@@ -0,0 +1,173 @@
+package log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a snapshot from the leader to a member that has fallen behind. The snapshot is sent in chunks, each
+ * with a CRC32 checksum, so the member can tell if a chunk was corrupted on the way. The leader may only send a
+ * window of chunks before the member acknowledges them, so a slow member is never flooded with more of the
+ * snapshot than it can take, and the leader never buffers more than a window.
+ * The stream is: the last slot of the snapshot, its total length and chunk size, then for each chunk its length,
+ * checksum and bytes. After every WINDOW chunks, and after the last one, the member replies with the number of
+ * chunks it has received so far.
+ * The leader sends the snapshot straight from its file with FileChannel.transferTo, so when the connection has a
+ * SocketChannel the bytes go from the page cache to the socket without passing through the Java heap. Checksums
+ * are computed over a memory mapping of the file for the same reason. The member writes each chunk to disk as it
+ * is checked, so neither side ever holds more than a chunk of the snapshot in memory.
+ * This class is a utility class and should not be instantiated.
+ */
+public class SnapshotTransfer {
+    public static final int CHUNK_SIZE = 64 * 1024; // The most bytes in a chunk.
+    public static final int WINDOW = 16; // The most chunks the leader sends before waiting for an acknowledgement.
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024; // The largest chunk size we will accept.
+
+    SnapshotTransfer() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Sends a snapshot to a member. The header goes through the output stream, which is flushed before any of
+     * the snapshot is sent, and the chunks go through the socket's channel if it has one, or the stream if not.
+     *
+     * @param lastSlot : int : the last slot applied before the snapshot was taken.
+     * @param file     : FileChannel : the snapshot's file, open for reading.
+     * @param out      : DataOutputStream : the stream to the member.
+     * @param in       : DataInputStream : the stream from the member, for its acknowledgements.
+     * @param channel  : SocketChannel : the channel to the member, or null if the connection doesn't have one.
+     * @throws IOException : if the snapshot could not be sent, or the member acknowledged the wrong chunks.
+     */
+    public static void send(int lastSlot, FileChannel file, DataOutputStream out, DataInputStream in,
+                            SocketChannel channel) throws IOException {
+        long length = file.size();
+        int chunks = chunkCount(length, CHUNK_SIZE);
+        out.writeInt(lastSlot);
+        out.writeLong(length);
+        out.writeInt(CHUNK_SIZE);
+        out.flush();
+        WritableByteChannel body = channel != null ? channel : Channels.newChannel(out);
+        ByteBuffer header = ByteBuffer.allocateDirect(Integer.BYTES + Long.BYTES);
+        CRC32 crc = new CRC32();
+        MappedByteBuffer window = null;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            long offset = (long) chunk * CHUNK_SIZE;
+            int size = (int) Math.min(CHUNK_SIZE, length - offset);
+            if (chunk % WINDOW == 0) { // map the next window of chunks to checksum them.
+                window = file.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min((long) WINDOW * CHUNK_SIZE, length - offset));
+            }
+            crc.reset();
+            crc.update(window.slice((chunk % WINDOW) * CHUNK_SIZE, size));
+            header.clear();
+            header.putInt(size).putLong(crc.getValue()).flip();
+            while (header.hasRemaining()) {
+                body.write(header);
+            }
+            transfer(file, offset, size, body);
+            if ((chunk + 1) % WINDOW == 0 || chunk == chunks - 1) {
+                out.flush();
+                awaitAck(in, chunk + 1);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Receives a snapshot from the leader, writing it to the given file.
+     *
+     * @param in   : DataInputStream : the stream from the leader.
+     * @param out  : DataOutputStream : the stream to the leader, for our acknowledgements.
+     * @param file : Path : the file to write the snapshot to. It is replaced if it exists.
+     * @return : Snapshot : the snapshot, held in the given file.
+     * @throws IOException : if the snapshot could not be received, or a chunk failed its checksum.
+     */
+    public static Snapshot receive(DataInputStream in, DataOutputStream out, Path file) throws IOException {
+        int lastSlot = in.readInt();
+        long total = in.readLong();
+        int chunkSize = in.readInt();
+        if (total < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Snapshot of " + total + " bytes in chunks of " + chunkSize + " is not supported.");
+        }
+        byte[] buffer = new byte[(int) Math.min(chunkSize, total)];
+        int chunks = chunkCount(total, chunkSize);
+        CRC32 crc = new CRC32();
+        try (OutputStream to = Files.newOutputStream(file)) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                long offset = (long) chunk * chunkSize;
+                int length = in.readInt();
+                long checksum = in.readLong();
+                if (length != Math.min(chunkSize, total - offset)) {
+                    throw new IOException("Snapshot chunk " + chunk + " has the wrong length " + length);
+                }
+                in.readFully(buffer, 0, length);
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Snapshot chunk " + chunk + " failed its checksum.");
+                }
+                to.write(buffer, 0, length);
+                if ((chunk + 1) % WINDOW == 0 || chunk == chunks - 1) {
+                    out.writeInt(chunk + 1);
+                    out.flush();
+                }
+            }
+        }
+        return new Snapshot(lastSlot, file);
+    }
+
+    /**
+     * Sends part of a file to a channel. transferTo may send less than asked, so we keep going until it is all
+     * sent.
+     *
+     * @param file   : FileChannel : the file to send from.
+     * @param offset : long : where in the file to start.
+     * @param length : int : how many bytes to send.
+     * @param body   : WritableByteChannel : the channel to send to.
+     * @throws IOException : if the bytes could not be sent, or the file ended early.
+     */
+    private static void transfer(FileChannel file, long offset, int length, WritableByteChannel body)
+            throws IOException {
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, body);
+            if (sent <= 0) {
+                throw new IOException("Snapshot file ended at " + position + " of " + end + " bytes.");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * Waits for the member to acknowledge the given number of chunks.
+     *
+     * @param in       : DataInputStream : the stream from the member.
+     * @param expected : int : the number of chunks the member should have received.
+     * @throws IOException : if the member acknowledged a different number of chunks.
+     */
+    private static void awaitAck(DataInputStream in, int expected) throws IOException {
+        int acked = in.readInt();
+        if (acked != expected) {
+            throw new IOException("Expected an acknowledgement of " + expected + " chunks, but got " + acked);
+        }
+    }
+
+    private static int chunkCount(long length, int chunkSize) throws IOException {
+        long chunks = (length + chunkSize - 1) / chunkSize;
+        if (chunks > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot of " + length + " bytes has too many chunks.");
+        }
+        return (int) chunks;
+    }
+}
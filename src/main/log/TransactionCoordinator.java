@@ -0,0 +1,311 @@
+package log;
+
+import member.Members;
+import statemachine.TransactionalStateMachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates transactions whose commands span several log groups, by Paxos Commit. The president coordinates
+ * every transaction. It sends each participant group a TXN-PREPARE through the group's log, and once every group
+ * has voted, sends each a TXN-COMMIT if they all voted to prepare, and a TXN-ABORT otherwise. The votes and the
+ * outcome are decided by the groups' logs, so they survive the coordinator. Transactions a group has prepared
+ * but not heard the outcome of for IN_DOUBT_MS are finished by the president: it asks every participant to
+ * TXN-REFUSE the transaction, which makes a group that never received the prepare vote against it, and returns
+ * the vote of a group that did, then sends the outcome the votes decide. The outcome can't differ from the one
+ * the original coordinator decides, as a vote, once made, never changes.
+ * Every transaction is stamped with the time it started, which orders transactions, and tells the president
+ * when one is in doubt. Transactions on different keys share no locks, so they run in parallel, and a
+ * transaction that finds a key locked by another is aborted and retried, up to MAX_ATTEMPTS times.
+ * The coordinator submits every part of every transaction to a group in one session of its own, numbered in the
+ * order they are submitted, so transactions take up one session per group rather than one each. Parts are
+ * idempotent, as a group remembers its vote and the outcome of each transaction, so a client's retry of the
+ * whole transaction gets the same answer. If a group forgets the coordinator's session, we start another.
+ * Clients submit a transaction as "TXN <command>;<command>...", and its result is COMMITTED followed by each
+ * command's result, separated by semicolons, or ABORTED and why.
+ */
+public class TransactionCoordinator {
+    private final static Logger logger = Logger.getLogger(TransactionCoordinator.class.getName());
+    private static final int MAX_ATTEMPTS = 8; // How many times we try a transaction that found a key locked.
+    // How long we wait before trying it again, times the attempt, plus up to as long again at random, so
+    // transactions that collided don't collide again.
+    private static final long RETRY_DELAY_MS = 50;
+    private static final long IN_DOUBT_MS = 10000; // How long a prepared transaction waits before we finish it.
+
+    private final Members self; // The member coordinating.
+    private final Supplier<Members> leader; // Who this member knows to be president.
+    private final Executor executor; // Runs retries and the search for transactions in doubt.
+    private volatile ShardedLog log; // The log groups the transactions span, null until we start.
+    private volatile Session[] sessions; // The session we submit each group's commands in, null until we start.
+    private final AtomicLong clock = new AtomicLong(0); // The timestamp of the latest transaction.
+    private final Set<String> finishing = ConcurrentHashMap.newKeySet(); // Transactions in doubt we are finishing.
+
+    /**
+     * Creates a coordinator for the given member's log groups. It can't coordinate until it is started.
+     *
+     * @param self     : Members : the member coordinating.
+     * @param leader   : Supplier<Members> : supplies who the member knows to be president.
+     * @param executor : Executor : runs retries and the search for transactions in doubt.
+     */
+    TransactionCoordinator(Members self, Supplier<Members> leader, Executor executor) {
+        this.self = self;
+        this.leader = leader;
+        this.executor = executor;
+    }
+
+
+    /**
+     * Starts coordinating transactions across the given log groups, and looking for transactions in doubt.
+     *
+     * @param log : ShardedLog : the log groups, fully built.
+     */
+    void start(ShardedLog log) {
+        Session[] sessions = new Session[log.getGroupCount()];
+        for (int group = 0; group < sessions.length; group++) {
+            sessions[group] = new Session();
+        }
+        this.sessions = sessions;
+        this.log = log;
+        scheduleFinishInDoubt();
+    }
+
+
+    /**
+     * Runs a transaction from a client. Only the leader can coordinate transactions.
+     *
+     * @param sessionId   : long : the client's session.
+     * @param seq         : long : the transaction's sequence number within the session.
+     * @param transaction : String : the transaction, "TXN <command>;<command>...".
+     * @return : CompletableFuture<Result> : completes with the transaction's outcome.
+     * @throws IllegalStateException : if this member is not the leader.
+     */
+    public CompletableFuture<Result> submit(long sessionId, long seq, String transaction) {
+        if (leader.get() != self) {
+            throw new IllegalStateException(self + " is not the leader of the log.");
+        }
+        List<String> commands = new ArrayList<>();
+        for (String command : transaction.substring("TXN ".length()).split(";")) {
+            if (!command.isBlank()) {
+                commands.add(command.trim());
+            }
+        }
+        if (commands.isEmpty()) {
+            return CompletableFuture.completedFuture(new Result(0, "ERROR TXN takes at least one command"));
+        }
+        long timestamp = clock.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        return attempt(sessionId + "." + seq, timestamp, commands, 1);
+    }
+
+
+    /**
+     * Makes an attempt at a transaction: prepares it in every participant group, then commits or aborts it as
+     * the votes decide, and tries again if it was aborted because a key was locked.
+     *
+     * @param id        : String : the transaction's id, without the attempt.
+     * @param timestamp : long : when the transaction started.
+     * @param commands  : List<String> : the transaction's commands.
+     * @param attempt   : int : which attempt this is, from 1.
+     * @return : CompletableFuture<Result> : completes with the transaction's outcome.
+     */
+    private CompletableFuture<Result> attempt(String id, long timestamp, List<String> commands, int attempt) {
+        String txid = id + "." + attempt;
+        Map<Integer, List<Integer>> byGroup = new TreeMap<>(); // group -> the indexes of its commands.
+        for (int i = 0; i < commands.size(); i++) {
+            byGroup.computeIfAbsent(log.groupOf(commands.get(i)), _ -> new ArrayList<>()).add(i);
+        }
+        String groups = String.join(",", byGroup.keySet().stream().map(String::valueOf).toList());
+        Map<Integer, CompletableFuture<Result>> votes = new TreeMap<>();
+        for (Map.Entry<Integer, List<Integer>> group : byGroup.entrySet()) {
+            List<String> groupCommands = group.getValue().stream().map(commands::get).toList();
+            votes.put(group.getKey(), submit(group.getKey(), "TXN-PREPARE " + txid + " " +
+                    timestamp + " " + groups + " " + String.join(";", groupCommands)));
+        }
+        return decide(txid, votes).thenComposeAsync(outcomes -> {
+            Result first = outcomes.values().iterator().next();
+            if (first.value().startsWith(TransactionalStateMachine.COMMITTED)) {
+                String[] results = new String[commands.size()];
+                Arrays.fill(results, "UNKNOWN");
+                for (Map.Entry<Integer, Result> outcome : outcomes.entrySet()) {
+                    String value = outcome.getValue().value();
+                    // a group that committed the transaction before no longer has its results.
+                    String[] groupResults = value.length() <= TransactionalStateMachine.COMMITTED.length() ?
+                            new String[0] : value.substring(TransactionalStateMachine.COMMITTED.length() + 1)
+                            .split(";", -1);
+                    List<Integer> indexes = byGroup.get(outcome.getKey());
+                    for (int i = 0; i < indexes.size() && i < groupResults.length; i++) {
+                        results[indexes.get(i)] = groupResults[i];
+                    }
+                }
+                return CompletableFuture.completedFuture(new Result(first.slot(),
+                        TransactionalStateMachine.COMMITTED + " " + String.join(";", results)));
+            }
+            String reason = reasonFor(votes);
+            if (reason.endsWith(TransactionalStateMachine.LOCKED) && attempt < MAX_ATTEMPTS) {
+                long delay = RETRY_DELAY_MS * attempt;
+                Executor later = CompletableFuture.delayedExecutor(
+                        delay + ThreadLocalRandom.current().nextLong(delay + 1), TimeUnit.MILLISECONDS, executor);
+                return CompletableFuture.supplyAsync(() -> null, later)
+                        .thenCompose(_ -> attempt(id, timestamp, commands, attempt + 1));
+            }
+            return CompletableFuture.completedFuture(new Result(first.slot(), reason));
+        }, executor);
+    }
+
+
+    /**
+     * Waits for every participant's vote, then sends every participant the outcome the votes decide.
+     *
+     * @param txid  : String : the transaction's id.
+     * @param votes : Map<Integer, CompletableFuture<Result>> : group -> its vote.
+     * @return : CompletableFuture<Map<Integer, Result>> : group -> the result of applying the outcome.
+     */
+    private CompletableFuture<Map<Integer, Result>> decide(String txid,
+                                                           Map<Integer, CompletableFuture<Result>> votes) {
+        // the votes complete while their group's log is locked, so we submit the outcome on another thread, as
+        // the outcome may go to a group whose log is locked waiting on the first.
+        return CompletableFuture.allOf(votes.values().toArray(new CompletableFuture<?>[0])).thenComposeAsync(_ -> {
+            boolean commit = true;
+            for (CompletableFuture<Result> vote : votes.values()) {
+                commit &= vote.join().value().equals(TransactionalStateMachine.PREPARED);
+            }
+            String outcome = (commit ? "TXN-COMMIT " : "TXN-ABORT ") + txid;
+            Map<Integer, CompletableFuture<Result>> outcomes = new TreeMap<>();
+            for (int group : votes.keySet()) {
+                outcomes.put(group, submit(group, outcome));
+            }
+            return CompletableFuture.allOf(outcomes.values().toArray(new CompletableFuture<?>[0])).thenApply(_ -> {
+                Map<Integer, Result> results = new TreeMap<>();
+                outcomes.forEach((group, result) -> results.put(group, result.join()));
+                return results;
+            });
+        }, executor);
+    }
+
+
+    /**
+     * Returns why a transaction was aborted: the first vote against it.
+     *
+     * @param votes : Map<Integer, CompletableFuture<Result>> : group -> its vote, all complete.
+     * @return : String : the reason, starting with ABORTED.
+     */
+    private static String reasonFor(Map<Integer, CompletableFuture<Result>> votes) {
+        for (CompletableFuture<Result> vote : votes.values()) {
+            if (!vote.join().value().equals(TransactionalStateMachine.PREPARED)) {
+                return vote.join().value();
+            }
+        }
+        return TransactionalStateMachine.ABORTED;
+    }
+
+
+    /**
+     * Submits a part of a transaction to a group's log, as the next command of our session with the group. If
+     * the group has forgotten the session, the part wasn't applied, so we start a new session and submit it again.
+     *
+     * @param group   : int : the group.
+     * @param command : String : the command.
+     * @return : CompletableFuture<Result> : completes once the command is applied.
+     * @throws IllegalStateException : if this member is not the leader.
+     */
+    private CompletableFuture<Result> submit(int group, String command) {
+        Session session = sessions[group];
+        long sessionId;
+        CompletableFuture<Result> result;
+        synchronized (session) { // so the group gets our commands in the order they are numbered.
+            sessionId = session.id;
+            result = log.getGroup(group).submit(sessionId, ++session.seq, command);
+        }
+        return result.thenComposeAsync(applied -> {
+            if (!applied.value().equals(SessionTable.EXPIRED)) {
+                return CompletableFuture.completedFuture(applied);
+            }
+            session.renew(sessionId);
+            return submit(group, command);
+        }, executor);
+    }
+
+
+    /**
+     * The session the coordinator submits a group's commands in. Coordinator sessions are negative, so they
+     * can't be mistaken for a client's.
+     */
+    private static final class Session {
+        private long id = newId(); // Guarded by this.
+        private long seq = 0; // The sequence number of the last command submitted. Guarded by this.
+
+        /**
+         * Starts a new session, unless it has been started already since the given one.
+         *
+         * @param forgotten : long : the session the group forgot.
+         */
+        synchronized void renew(long forgotten) {
+            if (id == forgotten) {
+                id = newId();
+                seq = 0;
+            }
+        }
+
+        private static long newId() {
+            return -ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        }
+    }
+
+
+    /**
+     * Looks for transactions in doubt every IN_DOUBT_MS.
+     */
+    private void scheduleFinishInDoubt() {
+        CompletableFuture.delayedExecutor(IN_DOUBT_MS, TimeUnit.MILLISECONDS, executor).execute(() -> {
+            try {
+                finishInDoubt();
+            } finally {
+                scheduleFinishInDoubt();
+            }
+        });
+    }
+
+
+    /**
+     * Finishes every transaction a group prepared more than IN_DOUBT_MS ago and hasn't heard the outcome of, if
+     * we are the leader. Every participant is asked to refuse the transaction, which gives us every vote, and the
+     * outcome the votes decide is sent to every participant.
+     */
+    private void finishInDoubt() {
+        if (leader.get() != self) {
+            return;
+        }
+        long before = System.currentTimeMillis() - IN_DOUBT_MS;
+        for (int group = 0; group < log.getGroupCount(); group++) {
+            for (TransactionalStateMachine.Prepared transaction : log.getParticipant(group).inDoubt(before)) {
+                if (!finishing.add(transaction.txid())) {
+                    continue; // we are already finishing it.
+                }
+                logger.info(self + " is finishing transaction " + transaction.txid() + ", which is in doubt.");
+                Map<Integer, CompletableFuture<Result>> votes = new TreeMap<>();
+                try {
+                    for (int participant : transaction.groups()) {
+                        votes.put(participant, submit(participant, "TXN-REFUSE " + transaction.txid()));
+                    }
+                } catch (IllegalStateException e) {
+                    finishing.remove(transaction.txid()); // we stopped being leader, whoever leads will finish it.
+                    continue;
+                }
+                decide(transaction.txid(), votes)
+                        .whenComplete((_, _) -> finishing.remove(transaction.txid()));
+            }
+        }
+    }
+}
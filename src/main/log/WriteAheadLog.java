@@ -0,0 +1,581 @@
+package log;
+
+import member.Members;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A member's write-ahead log, which makes its promises, accepts and stored log entries durable before it
+ * replies to them, so a member that crashes and restarts can't forget what it told a proposer or the leader.
+ * Writes are group committed: the threads handling messages only encode a record and add it to a lock-free
+ * queue, and a single writer thread takes every record that has queued up, writes them together, and makes them
+ * durable with one FileChannel.force call. Each record's future completes once it is durable, and only then may
+ * the reply it guards be sent, so many replies share the cost of one fsync.
+ * The log is a series of segment files, "wal-<number>.log", in the member's data directory. A record is its
+ * length, a CRC32 of its contents, and its contents: a type and the type's fields. When a segment grows past
+ * SEGMENT_BYTES, the writer starts a new one, beginning with the latest promise and accept, and each log group's
+ * latest ballot, so a segment whose entries are all covered by a snapshot can be deleted. On start up every
+ * segment is replayed in order, stopping at the first torn or corrupt record, which can only be at the end of a
+ * segment that was being written.
+ * A member hosting several log groups keeps one write-ahead log for all of them, so they share its writer and its
+ * fsyncs, and each entry records which group it belongs to.
+ * If a batch can't be written, its records fail, and the segment is cut back to the end of the last durable
+ * batch, so the next batch isn't written after a torn record that replay would stop at.
+ * Persistence is opt-in. Until a data directory is set and the log is started, records are not written, and
+ * their futures complete straight away. Once the log is closed, records fail, as nothing will write them.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    private final static Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024; // How big a segment grows before we start another.
+    private static final int BATCH_BYTES = 1024 * 1024; // The size of the writer's buffer.
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024; // The biggest record we will replay.
+    private static final byte PROMISE = 1; // A promise: int proposal number.
+    private static final byte ACCEPT = 2; // An accept: int proposal number, int member number of the value.
+    // A stored log entry: int group, int slot, int ballot it was stored with, int length, UTF-8 bytes.
+    private static final byte APPEND = 3;
+    private static final byte BALLOT = 4; // A ballot promised for a log group: int group, int ballot.
+    private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+
+    /**
+     * Receives the records of the log as they are replayed on start up.
+     */
+    public interface Replay {
+        void promise(int proposalNum);
+
+        void accept(int proposalNum, Members value);
+
+        void append(int group, int slot, int ballot, String entry);
+
+        void ballot(int group, int ballot);
+    }
+
+    private final String name; // Whose log this is, for the writer thread's name and log messages.
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>(); // Records to write.
+    // segment number -> group -> highest slot appended to the group in it. Only touched by the writer, and start().
+    private final TreeMap<Integer, Map<Integer, Integer>> segments = new TreeMap<>();
+    private final AtomicInteger promised = new AtomicInteger(0); // The highest proposal number promised.
+    private volatile long accepted = 0; // The latest accept, proposal number and value packed, 0 if none.
+    private final ConcurrentHashMap<Integer, Integer> ballots = new ConcurrentHashMap<>(); // group -> latest ballot.
+    // group -> last slot covered by a snapshot. Segments with no slots after these can be deleted.
+    private final ConcurrentHashMap<Integer, Integer> releasedSlots = new ConcurrentHashMap<>();
+    private volatile boolean running = false; // Whether records are being written.
+    private Path directory = null; // Where the segments are kept, null if persistence is off.
+    private volatile Thread writer; // The writer thread, null until started.
+    private FileChannel channel; // The segment being written. Only touched by the writer once started.
+    private int segment; // The number of the segment being written.
+    private long durableSize; // How much of the segment is durable. Only touched by the writer once started.
+
+    /**
+     * A record waiting to be written, and the future to complete once it is durable.
+     *
+     * @param record : byte[] : the encoded record.
+     * @param group  : int : the group the record appends to.
+     * @param slot   : int : the slot the record appends, 0 if it isn't an append.
+     * @param done   : CompletableFuture<Void> : completed once the record is durable.
+     */
+    private record Pending(byte[] record, int group, int slot, CompletableFuture<Void> done) {
+    }
+
+    /**
+     * Creates a write-ahead log that doesn't persist anything until it is given a data directory and started.
+     *
+     * @param name : String : whose log this is.
+     */
+    public WriteAheadLog(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Sets the directory the log is kept in. Must be called before start() for records to be persisted.
+     *
+     * @param directory : Path : the directory, created if it doesn't exist, or null to turn persistence off.
+     */
+    public synchronized void setDirectory(Path directory) {
+        if (running) {
+            throw new IllegalStateException("The write-ahead log has already started.");
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory the log is kept in, where the member's snapshots are kept too.
+     *
+     * @return : Path : the directory, or null if persistence is off.
+     */
+    public synchronized Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Replays any existing segments, then starts a new segment and the writer thread. Does nothing if no data
+     * directory has been set.
+     *
+     * @param replay : Replay : receives every record replayed.
+     * @throws IOException : if the directory or a segment could not be read, or a new segment created.
+     */
+    public synchronized void start(Replay replay) throws IOException {
+        if (directory == null || running) {
+            return;
+        }
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(file -> segmentNumber(file) >= 0).toList();
+        }
+        for (Path file : files) {
+            segments.put(segmentNumber(file), new HashMap<>());
+        }
+        for (int number : segments.keySet()) {
+            segments.put(number, replay(segmentFile(number), replay));
+        }
+        segment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        openSegment();
+        writer = new Thread(this::write, "wal-writer-" + name);
+        writer.setDaemon(true);
+        running = true;
+        writer.start();
+        logger.fine(name + " replayed " + segments.size() + " write-ahead log segments.");
+    }
+
+    /**
+     * Logs a promise.
+     *
+     * @param proposalNum : int : the proposal number promised.
+     * @return : CompletableFuture<Void> : completed once the promise is durable.
+     */
+    public CompletableFuture<Void> promise(int proposalNum) {
+        if (!running) {
+            return notRunning();
+        }
+        promised.accumulateAndGet(proposalNum, Math::max);
+        return enqueue(promiseRecord(proposalNum), 0, 0);
+    }
+
+    /**
+     * Logs an accept.
+     *
+     * @param proposalNum : int : the proposal number accepted.
+     * @param value       : Members : the value accepted.
+     * @return : CompletableFuture<Void> : completed once the accept is durable.
+     */
+    public CompletableFuture<Void> accept(int proposalNum, Members value) {
+        if (!running) {
+            return notRunning();
+        }
+        int memberNumber = Members.getMemberNumber(value);
+        accepted = ((long) proposalNum << 32) | memberNumber;
+        return enqueue(acceptRecord(proposalNum, memberNumber), 0, 0);
+    }
+
+    /**
+     * Logs a stored log entry.
+     *
+     * @param group  : int : the log group the entry belongs to.
+     * @param slot   : int : the entry's slot.
+     * @param ballot : int : the ballot of the leader that sent the entry.
+     * @param entry  : String : the entry.
+     * @return : CompletableFuture<Void> : completed once the entry is durable.
+     */
+    public CompletableFuture<Void> append(int group, int slot, int ballot, String entry) {
+        if (!running) {
+            return notRunning();
+        }
+        ballots.merge(group, ballot, Math::max);
+        byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer contents = ByteBuffer.allocate(1 + 4 * Integer.BYTES + bytes.length);
+        contents.put(APPEND).putInt(group).putInt(slot).putInt(ballot).putInt(bytes.length).put(bytes);
+        return enqueue(frame(contents.array()), group, slot);
+    }
+
+    /**
+     * Logs a ballot promised to a new leader of a log group.
+     *
+     * @param group  : int : the log group.
+     * @param ballot : int : the ballot promised.
+     * @return : CompletableFuture<Void> : completed once the promise is durable.
+     */
+    public CompletableFuture<Void> ballot(int group, int ballot) {
+        if (!running) {
+            return notRunning();
+        }
+        ballots.merge(group, ballot, Math::max);
+        return enqueue(ballotRecord(group, ballot), 0, 0);
+    }
+
+    /**
+     * Waits for a record to become durable.
+     *
+     * @param done : CompletableFuture<Void> : the record's future.
+     * @return : boolean : true if the record is durable, false if it couldn't be written, in which case the
+     * reply it guards must not be sent.
+     */
+    public boolean await(CompletableFuture<Void> done) {
+        try {
+            done.get();
+            return true;
+        } catch (ExecutionException e) {
+            logger.warning(name + " couldn't make a record durable. " + e.getCause().getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Lets the writer delete segments whose entries for the given group are all at or before the given slot, as
+     * they are covered by a snapshot, once every other group's entries in them are covered too. Segments are
+     * deleted by the writer, after its next batch.
+     *
+     * @param group    : int : the log group.
+     * @param lastSlot : int : the last slot of the group covered by a snapshot.
+     */
+    public void release(int group, int lastSlot) {
+        releasedSlots.merge(group, lastSlot, Math::max);
+    }
+
+    /**
+     * Stops the writer once it has written everything queued, and closes the segment being written. Records
+     * logged from now on fail.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = writer;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(byte[] record, int group, int slot) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending(record, group, slot, done));
+        LockSupport.unpark(writer);
+        if (!running) { // we were closed as we queued it, and the writer may have finished already.
+            failQueued();
+        }
+        return done;
+    }
+
+    /**
+     * Returns the future of a record logged while the writer isn't running.
+     *
+     * @return : CompletableFuture<Void> : already complete if persistence is off, or failed if we have been closed.
+     */
+    private CompletableFuture<Void> notRunning() {
+        return writer == null ? DURABLE : CompletableFuture.failedFuture(closedException());
+    }
+
+    /**
+     * Fails every record still queued, once the writer has stopped or is stopping.
+     */
+    private void failQueued() {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.done().completeExceptionally(closedException());
+        }
+    }
+
+    private IOException closedException() {
+        return new IOException(name + "'s write-ahead log has been closed.");
+    }
+
+    /**
+     * The writer thread. Takes every record that has queued up, writes them, forces them to disk, and completes
+     * their futures, until the log is closed and the queue is empty.
+     */
+    private void write() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BYTES);
+        List<Pending> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            Pending pending = queue.poll();
+            if (pending == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                while (pending != null) {
+                    batch.add(pending);
+                    if (pending.record().length > buffer.remaining()) {
+                        drain(buffer);
+                    }
+                    if (pending.record().length > buffer.capacity()) {
+                        writeFully(ByteBuffer.wrap(pending.record()));
+                    } else {
+                        buffer.put(pending.record());
+                    }
+                    if (pending.slot() > 0) {
+                        segments.get(segment).merge(pending.group(), pending.slot(), Math::max);
+                    }
+                    pending = queue.poll();
+                }
+                drain(buffer);
+                channel.force(false); // one fsync for the whole batch.
+                durableSize = channel.position();
+                for (Pending done : batch) {
+                    done.done().complete(null);
+                }
+            } catch (IOException e) {
+                for (Pending failed : batch) {
+                    failed.done().completeExceptionally(e);
+                }
+                buffer.clear();
+                rollBack();
+            }
+            batch.clear();
+            try {
+                if (channel.size() >= SEGMENT_BYTES) {
+                    channel.close();
+                    segment++;
+                    openSegment();
+                }
+                deleteReleasedSegments();
+            } catch (IOException e) {
+                logger.warning(name + " couldn't start a new write-ahead log segment. " + e.getMessage());
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.fine(name + " couldn't close its write-ahead log. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cuts whatever of a failed batch was written off the end of the segment. If the segment can't be cut, we
+     * start a new one instead, as replay stops at the first torn record of a segment.
+     */
+    private void rollBack() {
+        try {
+            channel.truncate(durableSize);
+            channel.position(durableSize);
+        } catch (IOException e) {
+            logger.warning(name + " couldn't roll back its write-ahead log segment, so starts a new one. " +
+                    e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException closeFailed) {
+                // we are done with it either way.
+            }
+            try {
+                segment++;
+                openSegment();
+            } catch (IOException openFailed) {
+                logger.warning(name + " couldn't start a new write-ahead log segment. " + openFailed.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the current segment number as a new segment, and writes the latest promise, accept and ballots at its
+     * start, so no earlier segment is needed to recover them.
+     *
+     * @throws IOException : if the segment could not be created.
+     */
+    private void openSegment() throws IOException {
+        channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.put(segment, new HashMap<>());
+        writeFully(ByteBuffer.wrap(promiseRecord(promised.get())));
+        long latest = accepted;
+        if (latest != 0) {
+            writeFully(ByteBuffer.wrap(acceptRecord((int) (latest >>> 32), (int) latest)));
+        }
+        for (Map.Entry<Integer, Integer> ballot : ballots.entrySet()) {
+            writeFully(ByteBuffer.wrap(ballotRecord(ballot.getKey(), ballot.getValue())));
+        }
+        channel.force(true);
+        durableSize = channel.position();
+    }
+
+    /**
+     * Deletes every finished segment whose entries are all covered by a snapshot, oldest first, stopping at the
+     * first one still needed.
+     */
+    private void deleteReleasedSegments() {
+        while (segments.firstKey() != segment && isReleased(segments.firstEntry().getValue())) {
+            int number = segments.pollFirstEntry().getKey();
+            try {
+                Files.deleteIfExists(segmentFile(number));
+            } catch (IOException e) {
+                logger.fine(name + " couldn't delete write-ahead log segment " + number + ". " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns whether every group's entries in a segment are covered by a snapshot.
+     *
+     * @param highestSlots : Map<Integer, Integer> : group -> the highest slot appended to the group in the segment.
+     * @return : boolean : true if the segment can be deleted.
+     */
+    private boolean isReleased(Map<Integer, Integer> highestSlots) {
+        for (Map.Entry<Integer, Integer> highest : highestSlots.entrySet()) {
+            if (highest.getValue() > releasedSlots.getOrDefault(highest.getKey(), 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drain(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Replays the records of a segment, stopping at the end of the segment or the first torn or corrupt record.
+     *
+     * @param file   : Path : the segment.
+     * @param replay : Replay : receives each record.
+     * @return : Map<Integer, Integer> : group -> the highest slot appended to the group in the segment.
+     * @throws IOException : if the segment could not be read.
+     */
+    private Map<Integer, Integer> replay(Path file, Replay replay) throws IOException {
+        Map<Integer, Integer> highestSlots = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte[] contents = readRecord(in);
+                if (contents == null) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(contents);
+                byte type = record.get();
+                if (type == PROMISE) {
+                    int proposalNum = record.getInt();
+                    promised.accumulateAndGet(proposalNum, Math::max);
+                    replay.promise(proposalNum);
+                } else if (type == ACCEPT) {
+                    int proposalNum = record.getInt();
+                    int memberNumber = record.getInt();
+                    accepted = ((long) proposalNum << 32) | memberNumber;
+                    replay.accept(proposalNum, Members.getMember(memberNumber));
+                } else if (type == APPEND) {
+                    int group = record.getInt();
+                    int slot = record.getInt();
+                    int ballot = record.getInt();
+                    int length = record.getInt();
+                    String entry = new String(contents, record.position(), length, StandardCharsets.UTF_8);
+                    highestSlots.merge(group, slot, Math::max);
+                    ballots.merge(group, ballot, Math::max);
+                    replay.append(group, slot, ballot, entry);
+                } else if (type == BALLOT) {
+                    int group = record.getInt();
+                    int ballot = record.getInt();
+                    ballots.merge(group, ballot, Math::max);
+                    replay.ballot(group, ballot);
+                }
+            }
+        }
+        return highestSlots;
+    }
+
+    /**
+     * Reads one record's contents, checking its checksum.
+     *
+     * @param in : DataInputStream : the segment.
+     * @return : byte[] : the record's contents, or null at the end of the segment or a torn or corrupt record.
+     * @throws IOException : if the segment could not be read.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            long checksum = in.readInt() & 0xFFFFFFFFL;
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+                return null;
+            }
+            byte[] contents = new byte[length];
+            in.readFully(contents);
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            if (crc.getValue() != checksum) {
+                logger.warning(name + " found a corrupt write-ahead log record, and ignored the rest of its segment.");
+                return null;
+            }
+            return contents;
+        } catch (EOFException e) {
+            return null; // the end of the segment, or a record torn by a crash.
+        }
+    }
+
+    private static byte[] promiseRecord(int proposalNum) {
+        return frame(ByteBuffer.allocate(1 + Integer.BYTES).put(PROMISE).putInt(proposalNum).array());
+    }
+
+    private static byte[] acceptRecord(int proposalNum, int memberNumber) {
+        return frame(ByteBuffer.allocate(1 + 2 * Integer.BYTES).put(ACCEPT).putInt(proposalNum)
+                .putInt(memberNumber).array());
+    }
+
+    private static byte[] ballotRecord(int group, int ballot) {
+        return frame(ByteBuffer.allocate(1 + 2 * Integer.BYTES).put(BALLOT).putInt(group).putInt(ballot).array());
+    }
+
+    /**
+     * Frames a record's contents with their length and checksum.
+     *
+     * @param contents : byte[] : the record's type and fields.
+     * @return : byte[] : the framed record.
+     */
+    private static byte[] frame(byte[] contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + contents.length);
+        record.putInt(contents.length).putInt((int) crc.getValue()).put(contents);
+        return record.array();
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve("wal-" + number + ".log");
+    }
+
+    private static int segmentNumber(Path file) {
+        String fileName = file.getFileName().toString();
+        if (!fileName.startsWith("wal-") || !fileName.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(4, fileName.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package member;
+
+/**
+ * The result of a read served by any member of the council from its own state, rather than by the leader.
+ * As the member may be behind, the result says how far the member has applied and how fresh its state is,
+ * so the reader can decide whether the answer is good enough.
+ *
+ * @param value       : Members : the president as far as the member knows, null if it doesn't know yet.
+ * @param appliedSlot : int : the number of decisions the member has applied, 0 before the president is decided.
+ * @param asOfMillis  : long : the time, in milliseconds since the epoch, at which the member's state was known
+ *                    to be current.
+ */
+public record FollowerRead(Members value, int appliedSlot, long asOfMillis) {
+}
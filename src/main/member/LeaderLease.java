@@ -0,0 +1,54 @@
+package member;
+
+/**
+ * A time-bounded leader lease. Acceptors grant a lease to the proposer whose accept-request they accept, and
+ * renew it whenever that proposer prepares again, which is the proposer's heartbeat. While an acceptor's lease
+ * is held by one proposer, it will not promise any other proposer, so the holder of a lease granted by a majority
+ * knows no one else can get a value accepted until the lease runs out, so its rounds aren't interrupted. Reads
+ * don't rely on it: a holder still can't know its own value was chosen until its learner learns it, and once it
+ * has, the value can never change, lease or not. Times are measured with System.nanoTime(), as only durations
+ * matter.
+ */
+public class LeaderLease {
+    public static final long LEASE_DURATION_MS = 5000; // How long an acceptor honours a lease.
+
+    private Members holder; // The member holding the lease, null if no lease has been granted.
+    private long expiresAt; // When the lease runs out, in System.nanoTime() terms.
+
+    /**
+     * Grants the lease to the given member, starting at the given time and lasting the given duration.
+     *
+     * @param holder     : Members : the member to grant the lease to.
+     * @param startNanos : long : when the lease starts, in System.nanoTime() terms.
+     * @param durationMs : long : how long the lease lasts in milliseconds.
+     */
+    public synchronized void grant(Members holder, long startNanos, long durationMs) {
+        this.holder = holder;
+        this.expiresAt = startNanos + durationMs * 1_000_000L;
+    }
+
+    /**
+     * Renews the lease for the given member if they already hold it, whether it has run out or not.
+     *
+     * @param member : Members : the member asking to renew the lease.
+     * @return : boolean : true if the lease was renewed, false if it is held by someone else or nobody.
+     */
+    public synchronized boolean renew(Members member) {
+        if (holder != member) {
+            return false;
+        }
+        grant(member, System.nanoTime(), LEASE_DURATION_MS);
+        return true;
+    }
+
+    /**
+     * Checks whether a valid lease is held by someone other than the given member, in which case an acceptor
+     * must not promise the given member.
+     *
+     * @param member : Members : the member asking for a promise.
+     * @return : boolean : true if another member holds a valid lease, false otherwise.
+     */
+    public synchronized boolean blocks(Members member) {
+        return holder != null && holder != member && System.nanoTime() - expiresAt < 0;
+    }
+}
@@ -0,0 +1,105 @@
+package member;
+
+import message.Message;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The learner role of a member of the Adelaide Suburbs Council. Acceptors broadcast an ACCEPTED message to every
+ * member whenever they accept a proposal, and the learner tallies these messages. Once a phase 2 quorum of the
+ * council, a majority unless configured otherwise, has accepted the same value for the same proposal, that value
+ * has been chosen, and the learner can declare the president without waiting for the proposer to send DECIDE or
+ * TERMINATE.
+ * A proposal is identified by the proposer's port and the proposal number, as two proposers may use the same
+ * proposal number.
+ */
+public class Learner {
+    // The number of acceptors that must accept the same proposal for its value to be chosen, the phase 2 quorum.
+    private volatile int quorum = Quorums.MAJORITY.phase2();
+
+    // proposal (proposer port:proposal number) -> (acceptor -> value it accepted)
+    private final Map<String, Map<Members, Members>> accepted = new ConcurrentHashMap<>();
+    private volatile Members chosen; // The chosen value, null until a majority has accepted the same proposal.
+
+    /**
+     * Records an ACCEPTED message. The sender of the message is the acceptor, the proposal number and the
+     * payload (the proposer's port) identify the proposal, and the value is the value the acceptor accepted.
+     *
+     * @param message : Message : the ACCEPTED message to record.
+     * @return : Members : the chosen value if this message completed a majority, or was already chosen,
+     * null otherwise.
+     */
+    public synchronized Members learn(Message message) {
+        if (chosen != null) {
+            return chosen; // a chosen value can never change, so there is nothing more to learn.
+        }
+        if (message.value() == null) {
+            return null; // an acceptor can't accept a proposal without a value.
+        }
+        String proposal = message.payload() + ":" + message.proposalNum();
+        Map<Members, Members> votes = accepted.computeIfAbsent(proposal, _ -> new ConcurrentHashMap<>());
+        votes.put(message.sender(), message.value());
+        int count = 0;
+        for (Members vote : votes.values()) {
+            if (vote == message.value()) {
+                count++;
+            }
+        }
+        if (count >= quorum) {
+            chosen(message.value());
+        }
+        return chosen;
+    }
+
+    /**
+     * Records a value known to have been chosen some other way, such as a phase 2 quorum of promises reporting that
+     * they accepted the same proposal. A chosen value can never change, so a value already learned is kept.
+     *
+     * @param value : Members : the chosen value.
+     */
+    public synchronized void chosen(Members value) {
+        if (chosen == null) {
+            chosen = value;
+            accepted.clear(); // we no longer need to track any proposals.
+            notifyAll(); // wake any reads waiting for us to learn it.
+        }
+    }
+
+    /**
+     * Waits for this learner to learn the chosen value, if it hasn't already.
+     *
+     * @param timeoutMs : long : the longest to wait, in milliseconds.
+     * @return : Members : the chosen value, or null if none was learned in time.
+     * @throws InterruptedException : if interrupted while waiting.
+     */
+    public synchronized Members awaitChosen(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (chosen == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return null;
+            }
+            wait(left / 1_000_000L, (int) (left % 1_000_000L));
+        }
+        return chosen;
+    }
+
+    /**
+     * Sets how many acceptors must accept the same proposal for its value to be chosen.
+     *
+     * @param quorum : int : the phase 2 quorum.
+     */
+    public void setQuorum(int quorum) {
+        this.quorum = quorum;
+    }
+
+    /**
+     * Returns the value this learner has learned was chosen.
+     *
+     * @return : Members : the chosen value, or null if no value has been chosen yet.
+     */
+    public Members getChosen() {
+        return chosen;
+    }
+}
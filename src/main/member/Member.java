@@ -5,6 +5,7 @@ import message.Message;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Path;
 
 /**
  * In our Paxos implementation, we have a council of members, each of whom can propose a value, vote for a value,
@@ -38,7 +39,22 @@ public interface Member {
 
     void setProposer(boolean proposer); // sets whether this member is a proposer.
 
+    void setServing(boolean serving); // sets whether this member keeps serving the replicated log after the election.
+
+    void setDataDirectory(Path directory); // sets where this member persists its state, null to keep it in memory.
+
+    void setTopology(Topology topology, Quorums quorums); // sets where the members are, and the quorum sizes.
+
+    void setThrifty(boolean thrifty); // sets whether rounds are only sent to the fastest quorum at first.
+
+    void setRelays(int relays); // sets how many relay groups log entries are sent through, 0 for none.
+
     Members whoIsPresident(); // returns the elected president.
 
+    Members readPresident() throws InterruptedException; // returns the president our learner learned was chosen,
+    // once a majority shows it is current, or throws IllegalStateException if that couldn't be shown.
+
+    FollowerRead followerRead(long maxStalenessMs); // reads the president from this member's own state.
+
     Quirk getMyQuirks();
 }
@@ -1,19 +1,37 @@
 package member;
 
+import log.ShardedLog;
+import log.WriteAheadLog;
 import member.quirk.*;
 import message.Message;
+import message.MessageView;
+import server.ClientServer;
+import statemachine.KeyValueStore;
+import statemachine.StateMachine;
 import util.CouncilConnection;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 /**
@@ -26,6 +44,16 @@ import java.util.logging.Logger;
 public class MemberImpl implements Member {
     private final static Logger logger = Logger.getLogger(MemberImpl.class.getName());
 
+    private final static String LEASE = "LEASE"; // The payload of a reply that grants or renews a lease.
+    // The messages only a proposer or the leader sends, which show our state is fresh. Reads and replies don't.
+    private final static Set<String> LEADER_TRAFFIC = Set.of("PREPARE", "ACCEPT-REQUEST", "DECIDE", "APPEND",
+            "APPEND-BATCH", "APPEND-RELAY", "COMMIT", "LOG-PREPARE");
+    // How long a read waits for our learner to learn a value a majority of the council may have chosen.
+    private final static long LEARN_WAIT_MS = 1000;
+    // How long after promising or accepting a proposer's round we refuse to pre-vote for another proposer, as that
+    // round may still be in progress. A proposer tries again every 2 seconds, so this covers a round.
+    private final static long PRE_VOTE_GRACE_MS = 2000;
+
     private final String HOST = "localhost"; // The host to connect to.
 
     private final Members memberNumber; // The number of the member in the council.
@@ -35,23 +63,55 @@ public class MemberImpl implements Member {
     private final AtomicInteger proposalNumber;
     private boolean isProposer; // Whether the member is a proposer or not.
     private Members president; // The president of the council. Only decided once the algorithm has run.
+    // The proposal we, as an acceptor, accepted last, and the value we accepted in it, null until we accept one.
+    private final AtomicReference<Accepted> accepted = new AtomicReference<>();
     private boolean finish = false; // Whether we are confident the president has been decided or not.
+    private final Learner learner = new Learner(); // Tallies ACCEPTED messages to learn the chosen president.
+    private final LeaderLease grantedLease = new LeaderLease(); // The lease we have granted to a proposer.
+    private volatile long lastContact = System.currentTimeMillis(); // When we last got leader traffic.
+    private volatile Members activeProposer = null; // The proposer whose round we last promised or accepted.
+    private volatile long activeSince = 0; // When we last promised or accepted that proposer's round.
+    private volatile boolean serving = false; // Whether we keep serving the replicated log after the election.
+    private final ShardedLog log; // Our replica of each of the council's replicated log groups.
+    private final WriteAheadLog wal; // Makes our promises, accepts and log entries durable, if persistence is on.
+    private volatile Quorums quorums = Quorums.MAJORITY; // How many members each phase of Paxos needs.
+    private final RttTracker rtts = new RttTracker(); // How quickly each member answers us.
+    private volatile boolean thrifty = false; // Whether we only send to the fastest quorum at first.
 
     /**
      * Constructor for the MemberImpl class. The constructor takes the member number and whether the member is a proposer.
-     * The constructor also takes a boolean to determine if the member is in test mode or not.
+     * The constructor also takes a boolean to determine if the member is in test mode or not, and the state machine
+     * that commands decided by the replicated log are applied to.
      *
      * @param memberNumber : int : the number of the member in the council.
      * @param isProposer   : boolean : true if the member is a proposer, false otherwise.
      * @param isTestMode   : boolean : true if the member is in test mode, false otherwise.
+     * @param stateMachine : StateMachine : the state the council replicates.
      */
-    public MemberImpl(int memberNumber, boolean isProposer, boolean isTestMode) {
+    public MemberImpl(int memberNumber, boolean isProposer, boolean isTestMode, StateMachine stateMachine) {
+        this(memberNumber, isProposer, isTestMode, () -> stateMachine, 1);
+    }
+
+    /**
+     * Constructor for a member that shards the council's state over several independent log groups, each with
+     * its own instance of the state machine. Every member of the council must host the same number of groups.
+     *
+     * @param memberNumber  : int : the number of the member in the council.
+     * @param isProposer    : boolean : true if the member is a proposer, false otherwise.
+     * @param isTestMode    : boolean : true if the member is in test mode, false otherwise.
+     * @param stateMachines : Supplier<StateMachine> : creates the state machine of each log group.
+     * @param groups        : int : how many log groups to host, at least 1.
+     */
+    public MemberImpl(int memberNumber, boolean isProposer, boolean isTestMode,
+                      Supplier<StateMachine> stateMachines, int groups) {
         if (memberNumber < 1 || memberNumber > 9) {
             throw new IllegalArgumentException("Member number must be between 1 and 9.");
         }
         this.memberNumber = Members.getMember(memberNumber);
         this.isProposer = isProposer;
         this.proposalNumber = new AtomicInteger(0);
+        this.wal = new WriteAheadLog(this.memberNumber.toString());
+        this.log = ShardedLog.create(this.memberNumber, groups, this::whoIsPresident, stateMachines, wal);
         if (isTestMode) { // If the member is in test mode, they will have quirks.
             this.myQuirks = whoseQuirks();
         } else { // If the member is not in test mode, they will not have quirks.
@@ -59,6 +119,17 @@ public class MemberImpl implements Member {
         }
     }
 
+    /**
+     * Constructor for a member whose replicated state is the built-in key-value store.
+     *
+     * @param memberNumber : int : the number of the member in the council.
+     * @param isProposer   : boolean : true if the member is a proposer, false otherwise.
+     * @param isTestMode   : boolean : true if the member is in test mode, false otherwise.
+     */
+    public MemberImpl(int memberNumber, boolean isProposer, boolean isTestMode) {
+        this(memberNumber, isProposer, isTestMode, new KeyValueStore());
+    }
+
     /**
      * 'Default' constructor, takes a member number to decide which member we are, and whether we're
      * a proposer. This constructor is used when the member is not in test mode.
@@ -83,14 +154,23 @@ public class MemberImpl implements Member {
      * This method will run until a president has been decided, and the finish flag is set to true, which will only
      * happen when a proposer has received enough promises with the same value to form a majority, or when an acceptor
      * hasn't received a message in a long time, and they have a value for president.
+     * If the member is serving, it then carries on listening for messages so it can take part in the replicated log,
+     * and accepts commands from clients on its client port, until it stops serving.
      */
     @Override
     public void run() {
         try {
+            if (!recover()) {
+                return;
+            }
             if (isProposer) {
                 // listen out for messages to see if we need to terminate.
                 Executors.newSingleThreadExecutor().submit(this::proposerListen);
             }
+            if (serving) {
+                Executors.newSingleThreadExecutor().submit(
+                        new ClientServer(memberNumber, log, this::whoIsPresident, () -> serving));
+            }
             while (!finish) { // Unless we're absolutely confident everyone has decided on a president, keep going.
                 if (Thread.interrupted()) { // check if interrupted, and exit if so.
                     throw new InterruptedException();
@@ -103,6 +183,12 @@ public class MemberImpl implements Member {
                     listenForMessages();
                 }
             }
+            while (serving) { // once the election is over, keep serving the replicated log.
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                listenForMessages();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt(); // re-set the flag
             logger.fine(this.getMemberNumber() + " has been interrupted. " + e.getMessage());
@@ -114,7 +200,8 @@ public class MemberImpl implements Member {
 
     /**
      * Listens for messages from other proposers, and if they receive a message to terminate, they will output
-     * the president to the console and set the finish flag to true. Otherwise, they will just kill the connection.
+     * the president to the console and set the finish flag to true. If they receive an ACCEPTED message from an
+     * acceptor, they will learn from it. Otherwise, they will just kill the connection.
      * This method will run until the finish flag is set to true, which will only happen when a proposer has received
      * enough promises with the same value to form a majority.
      * Needs to be run in a separate thread to avoid blocking the main thread.
@@ -132,9 +219,16 @@ public class MemberImpl implements Member {
                     executorService.submit(() -> {
                         try {
                             Message message = CouncilConnection.readMessage(readSocket);
+                            heard(message.message());
                             if (message.message().startsWith("TERMINATE")) {
                                 this.president = message.value();
                                 this.finish = true;
+                            } else if (message.message().equals("ACCEPTED")) {
+                                learn(message); // proposers are learners too.
+                            } else if (message.message().equals("READ-INDEX")) {
+                                readIndexReply(message, readSocket);
+                            } else if (message.message().equals("READ")) {
+                                followerReadReply(message, readSocket);
                             } else {
                                 // any other message, we just kill the connection.
                                 readSocket.close();
@@ -162,42 +256,41 @@ public class MemberImpl implements Member {
      * manage the thread pools. Once all the messages have been sent, successful or not, we check if we have
      * received enough promises to proceed to the accept-request phase. If we have, we vote for a president
      * and send an accept-request message to all members of the council.
-     * If we receive enough promises with the same value, we can assume that value is the president, and
-     * we can output it to the console.
+     * Each promise carries the proposal the acceptor last accepted, if any. If a majority of them accepted the same
+     * proposal, its value was chosen, and we can output it to the console. Otherwise we must ask for the value of
+     * the highest proposal any of them accepted, as it may have been chosen, and only vote for who we like if none
+     * of them has accepted anything.
      * If we don't receive enough promises, we will try again with a higher proposal number.
      */
     @Override
     public void prepare() throws InterruptedException {
-        ExecutorService executorService = Executors.newCachedThreadPool();
+        if (!preVote()) {
+            logger.info(this.getMemberNumber() + " wasn't pre-voted for proposal number " +
+                    (proposalNumber.get() + 1) + ", so won't start a round.");
+            return;
+        }
         proposalNumber.incrementAndGet(); // Increment the proposal number.
+        if (!wal.await(wal.promise(proposalNumber.get()))) { // so we never reuse it after a restart.
+            return;
+        }
         logger.info(this.getMemberNumber() + " is preparing for proposal number " + proposalNumber);
         // Use an atomic integer since it will be accessed by multiple threads.
         AtomicInteger promiseCount = new AtomicInteger();
-        ConcurrentHashMap<Members, Members> promiseValues = new ConcurrentHashMap<>();
-        for (Members member : Members.values()) {
-            if (member == this.getMemberNumber()) {
-                continue; // Skip myself.
-            }
-            executorService.submit(() -> sendPrepareMessageToMember(member, promiseCount, promiseValues));
-        }
+        ConcurrentHashMap<Members, Accepted> promiseValues = new ConcurrentHashMap<>();
+        sendToQuorum(quorums.phase1() - 1, promiseCount,
+                member -> sendPrepareMessageToMember(member, promiseCount, promiseValues));
         if (myQuirks != null) { // if in quirk mode
             myQuirks.rollDice(); // roll the dice to determine the member's behavior.
         }
-        executorService.shutdown();
-        while (!executorService.isTerminated()) {
-            Thread.onSpinWait(); // Wait for all threads to finish.
-        }
-        if (promiseCount.get() >= Members.values().length / 2) { // if we have a majority of promises
+        if (promiseCount.get() >= quorums.phase1() - 1) { // if we have a phase 1 quorum of promises, counting us
             // check if we have a majority of promises with the same value
             if (checkForCompletion(promiseValues)) return;
 
             logger.info(this.getMemberNumber() + " received enough promises to proceed to ACCEPT REQUEST" +
                     " phase for proposal number " + proposalNumber);
-            // choose who to vote for
-            Members presidentVote;
-            if (this.president != null) {
-                presidentVote = this.president;
-            } else {
+            // choose who to vote for: the value of the highest proposal the quorum accepted, if any.
+            Members presidentVote = highestAccepted(promiseValues);
+            if (presidentVote == null) {
                 presidentVote = whoToVoteFor();
             }
             logger.info( this.getMemberNumber() + " has voted for " + presidentVote +
@@ -213,80 +306,193 @@ public class MemberImpl implements Member {
 
 
     /**
-     * Checks if the promises received from the acceptors have enough of the SAME value to form a majority,
-     * and if they do, we know that the president was already decided. So we set the finish flag. We then
-     * attempt to connect to all other members of the council and send a terminate
+     * Checks if the promises received from the acceptors show a phase 2 quorum accepted the SAME proposal, and
+     * if they do, we know its value was chosen. So our learner learns it, and we set the finish flag.
+     * We then attempt to connect to all other members of the council and send a terminate
      * message to them, waiting as long as necessary to create a connection to them all.
      *
-     * @param promiseValues  : ConcurrentHashMap<Members, Members> : the promises received from the acceptors.
-     * @return : boolean : true if we have a majority of promises with the same value, false otherwise.
+     * @param promiseValues  : ConcurrentHashMap<Members, Accepted> : what each acceptor that promised accepted.
+     * @return : boolean : true if a phase 2 quorum accepted the same proposal, false otherwise.
      */
-    private boolean checkForCompletion(ConcurrentHashMap<Members, Members> promiseValues) {
-        // if we got enough promises with a value to potentially form a majority ( + 1 counting our own vote)
-        if (promiseValues.size() >= Members.values().length / 2) {
-            // check if we have a majority of promises with the same value
-            if (checkPromisesForMajority(promiseValues)) {
-                // log the president to the info level
-                logger.info(this.getMemberNumber() + " received a majority of" +
-                        " promises with value " + president + " for proposal number " + proposalNumber);
-                this.finish = true; // we are confident the president has been decided.
-                ExecutorService executorService = Executors.newCachedThreadPool();
-                for (Members member : Members.values()) { // send terminate message to all other nodes
-                    if (member == this.getMemberNumber()) {
-                        continue; // skip myself
-                    }
-                    executorService.submit(() -> {
-                        try (Socket socket = new Socket(HOST, member.getPort())) {
-                            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                            out.println("TERMINATE " + this.getMemberNumber().getPort() + ":" + proposalNumber + " " +
-                                    Members.getMemberNumber(this.president));
-                        } catch (IOException e) {
-                            // ignore the error, we will just move on.
-                        }
-                    });
-                }
-                executorService.shutdown();
-                while (!executorService.isTerminated()) {
-                    Thread.onSpinWait(); // wait for all threads to finish.
-                }
-                return true;
+    private boolean checkForCompletion(ConcurrentHashMap<Members, Accepted> promiseValues) {
+        Members chosen = checkPromisesForMajority(promiseValues);
+        if (chosen == null) {
+            return false;
+        }
+        logger.info(this.getMemberNumber() + " received a majority of" +
+                " promises with value " + chosen + " for proposal number " + proposalNumber);
+        choose(chosen); // we are confident the president has been decided.
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        for (Members member : Members.values()) { // send terminate message to all other nodes
+            if (member == this.getMemberNumber()) {
+                continue; // skip myself
             }
+            executorService.submit(() -> {
+                try (Socket socket = new Socket(HOST, member.getPort())) {
+                    CouncilConnection.writeMessage(socket, "TERMINATE", this.getMemberNumber(),
+                            proposalNumber.get(), chosen, null);
+                } catch (IOException e) {
+                    // ignore the error, we will just move on.
+                }
+            });
+        }
+        executorService.shutdown();
+        while (!executorService.isTerminated()) {
+            Thread.onSpinWait(); // wait for all threads to finish.
         }
-        return false;
+        return true;
     }
 
 
     /**
-     * Checks the promises received from the acceptors to see if there is a majority with the same value.
-     * This method is only called when enough promises have been received to form a majority, so we need
-     * to check if the majority of promises have the same value. If they do, we can assume that value is the
-     * president, and so we return true.
+     * Checks the promises, or read-index replies, received from the acceptors to see if a phase 2 quorum of them
+     * accepted the same proposal. A proposal's number is only used by one proposer's accept-requests, as only one
+     * proposer can get a phase 1 quorum to promise it, so acceptors that accepted the same number accepted the
+     * same proposal.
      *
-     * @param promiseValues : ConcurrentHashMap<Members, Members> : the promises received from the acceptors.
-     * @return : boolean : true if a majority of promises have the same value, false otherwise.
+     * @param promiseValues : ConcurrentHashMap<Members, Accepted> : what each acceptor that replied accepted.
+     * @return : Members : the value of the proposal a phase 2 quorum accepted, or null if there is none.
      */
-    private boolean checkPromisesForMajority(ConcurrentHashMap<Members, Members> promiseValues) {
-        int[] votes = new int[Members.values().length]; // Array to store the votes.
-        for (Members vote : promiseValues.values()) { // count the votes, each index in the array represents a member.
-            votes[Members.getMemberNumber(vote) - 1]++;
+    private Members checkPromisesForMajority(ConcurrentHashMap<Members, Accepted> promiseValues) {
+        Map<Accepted, Integer> votes = new HashMap<>(); // how many acceptors accepted each proposal.
+        for (Accepted vote : promiseValues.values()) {
+            if (votes.merge(vote, 1, Integer::sum) >= quorums.phase2()) {
+                return vote.value();
+            }
         }
-        int maxVotes = 0;
-        Members voteLeader = null;
-        for (int i = 0; i < votes.length; i++) {
-            if (votes[i] > maxVotes) {
-                maxVotes = votes[i];
-                voteLeader = Members.getMember(i + 1);
+        return null;
+    }
+
+
+    /**
+     * Returns the value of the highest proposal the acceptors that promised us accepted. That value may already
+     * have been chosen, so it is the only one we may ask to be accepted.
+     *
+     * @param promiseValues : ConcurrentHashMap<Members, Accepted> : what each acceptor that promised accepted.
+     * @return : Members : the value, or null if none of them has accepted anything, so we may ask for any.
+     */
+    private static Members highestAccepted(ConcurrentHashMap<Members, Accepted> promiseValues) {
+        Accepted highest = null;
+        for (Accepted vote : promiseValues.values()) {
+            if (highest == null || vote.proposalNum() > highest.proposalNum()) {
+                highest = vote;
             }
         }
-        if (voteLeader == null) {
-            return false; // only happens if no promises were received, which should never happen.
+        return highest == null ? null : highest.value();
+    }
+
+
+    /**
+     * Sends a round's messages to the other members in parallel, and waits for every exchange to finish. Usually
+     * every other member is sent one, but in thrifty mode, only the fastest members that can make up the quorum
+     * are, which leaves slow members off the critical path and saves the rest of the messages. If any of them
+     * fail to reply in time, the rest of the council is sent one too.
+     *
+     * @param needed  : int : how many replies, not counting ourselves, make up the quorum.
+     * @param replies : AtomicInteger : counts the replies, as the exchanges finish.
+     * @param send    : Consumer<Members> : exchanges the round's messages with a member.
+     */
+    private void sendToQuorum(int needed, AtomicInteger replies, Consumer<Members> send) {
+        List<Members> ranked = rtts.ranked(this.getMemberNumber());
+        int first = thrifty ? Math.max(0, Math.min(needed, ranked.size())) : ranked.size();
+        sendToAll(ranked.subList(0, first), send);
+        if (replies.get() < needed && first < ranked.size()) {
+            logger.fine(this.getMemberNumber() + " only heard from " + replies.get() + " of the fastest " +
+                    first + " members. Trying the rest.");
+            sendToAll(ranked.subList(first, ranked.size()), send);
+        }
+    }
+
+
+    /**
+     * Exchanges messages with each of the given members in parallel, and waits for every exchange to finish.
+     *
+     * @param members : List<Members> : the members.
+     * @param send    : Consumer<Members> : exchanges the messages with a member.
+     */
+    private void sendToAll(List<Members> members, Consumer<Members> send) {
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        for (Members member : members) {
+            executorService.submit(() -> send.accept(member));
+        }
+        executorService.shutdown();
+        while (!executorService.isTerminated()) {
+            Thread.onSpinWait(); // Wait for all threads to finish.
+        }
+    }
+
+
+    /**
+     * Asks the acceptors whether they would promise our next proposal number, before we use it. An acceptor
+     * says yes only if the number is higher than any it has seen, and it hasn't promised or accepted another
+     * proposer's round in the last PRE_VOTE_GRACE_MS, or granted it a lease. Asking changes nothing for the
+     * acceptors, so a member that rejoins after camping, and would otherwise force everyone to abandon a round
+     * that is going well, can't disrupt it. Acceptors that refuse tell us the highest proposal number they have
+     * seen, so our next attempt starts above it.
+     * The messages are "PRE-PREPARE <proposer port>:<proposal number> _", and the replies are "PRE-PREPARE-OK" with
+     * the same proposal number, or "PRE-PREPARE-REJECT" with the highest proposal number the acceptor has seen.
+     *
+     * @return : boolean : true if a phase 1 quorum would promise our next proposal number.
+     */
+    private boolean preVote() {
+        int next = proposalNumber.get() + 1;
+        AtomicInteger grants = new AtomicInteger();
+        sendToQuorum(quorums.phase1() - 1, grants, member -> sendPreVoteToMember(member, next, grants));
+        return grants.get() >= quorums.phase1() - 1;
+    }
+
+
+    /**
+     * Sends a pre-vote request to the given member, and counts its answer if it would promise the proposal
+     * number. If it wouldn't, as it has seen a higher one, we catch our proposal number up to it.
+     *
+     * @param member : Members : the member to ask.
+     * @param next   : int : the proposal number we would use.
+     * @param grants : AtomicInteger : the count of members that would promise it.
+     */
+    private void sendPreVoteToMember(Members member, int next, AtomicInteger grants) {
+        long start = System.nanoTime();
+        try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
+            CouncilConnection.writeMessage(socket, "PRE-PREPARE", this.getMemberNumber(), next, null, null);
+            Message response = CouncilConnection.readMessage(socket);
+            rtts.record(member, System.nanoTime() - start);
+            if (response.sender() != this.getMemberNumber()) {
+                logger.fine("Received a pre-vote from " + member + " meant for someone else.");
+            } else if (response.message().equals("PRE-PREPARE-OK") && response.proposalNum() == next) {
+                grants.incrementAndGet();
+            } else if (response.message().equals("PRE-PREPARE-REJECT")) {
+                proposalNumber.accumulateAndGet(response.proposalNum(), Math::max);
+            }
+        } catch (IOException | InterruptedException e) {
+            rtts.fail(member);
+            logger.fine(this.getMemberNumber() + " reported a connection error to " + member +
+                    ". " + e.getMessage());
         }
-        if (maxVotes >= Math.floor((double) Members.values().length / 2)) {
-            // if the vote leader has a majority of votes, we can assume they are the president.
-            president = voteLeader;
-            return true;
+    }
+
+
+    /**
+     * Answers a pre-vote request: whether we would promise the proposal number if it were prepared now. We
+     * change nothing, not even the highest proposal number we have seen.
+     *
+     * @param message      : Message : the pre-vote request.
+     * @param clientSocket : Socket : the socket that the request was received on.
+     * @throws IOException : if the reply could not be sent.
+     */
+    private void preVoteReply(Message message, Socket clientSocket) throws IOException {
+        Members active = activeProposer;
+        boolean busy = active != null && active != message.sender()
+                && System.currentTimeMillis() - activeSince < PRE_VOTE_GRACE_MS;
+        int highest = this.proposalNumber.get();
+        if (!busy && !grantedLease.blocks(message.sender()) && message.proposalNum() > highest) {
+            CouncilConnection.writeMessage(clientSocket, "PRE-PREPARE-OK", message.sender(), message.proposalNum(),
+                    this.president, null);
+        } else {
+            logger.fine(this.getMemberNumber() + " won't pre-vote for " + message.sender() + " as " +
+                    (busy ? active + "'s round may still be in progress." : "it wouldn't be promised."));
+            CouncilConnection.writeMessage(clientSocket, "PRE-PREPARE-REJECT", message.sender(), highest,
+                    null, null);
         }
-        return false;
     }
 
 
@@ -294,33 +500,33 @@ public class MemberImpl implements Member {
      * Sends a prepare message to the given member of the council. Creates a socket and attempts to connect
      * to the member on the port obtained from the member enum. If the connection is successful, a prepare message
      * is sent to the member in the format "PREPARE <member port number>:<proposal number>". If the member responds
-     * with a promise, the promise count is incremented.
+     * with a promise, the promise count is incremented, and what it accepted last, if anything, is recorded.
      * We ignore any exceptions as failure is expected and doesn't need to be handled, just logged.
      *
-     * @param member       : Members : the member to send the prepare message to.
-     * @param promiseCount : AtomicInteger : the promise count to increment if the member responds with a promise.
+     * @param member        : Members : the member to send the prepare message to.
+     * @param promiseCount  : AtomicInteger : the promise count to increment if the member responds with a promise.
+     * @param promiseValues : ConcurrentHashMap<Members, Accepted> : where to record what the member accepted.
      */
     private void sendPrepareMessageToMember(Members member, AtomicInteger promiseCount,
-                                            ConcurrentHashMap<Members, Members> promiseValues) {
+                                            ConcurrentHashMap<Members, Accepted> promiseValues) {
+        long start = System.nanoTime();
         try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
             // Send the prepare message.
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println("PREPARE " + this.getMemberNumber().getPort() + ":" + proposalNumber + " _");
+            CouncilConnection.writeMessage(socket, "PREPARE", this.getMemberNumber(), proposalNumber.get(), null, null);
             // wait for the promise
             Message response = CouncilConnection.readMessage(socket);
+            rtts.record(member, System.nanoTime() - start);
             if (response.message().startsWith("PREPARE-OK")) {
                 // don't check for proposal number, an acceptor can make a promise to a higher proposal number.
                 if (response.sender() == this.getMemberNumber()) {
-                    if (response.proposalNum() >= proposalNumber.get()) {
-                        // if we get a higher proposal number, or the same proposal number,
-                        proposalNumber.set(response.proposalNum()); // there could already be a president
-                        if (response.value() != null) {
-                            logger.fine(this.getMemberNumber() + " received a promise from " +
-                                    member + " for proposal number " + proposalNumber +
-                                    " with value " + response.value());
-                            this.president = response.value();
-                            promiseValues.put(member, response.value());
-                        }
+                    // if we get a higher proposal number, or the same proposal number, our next round starts above it.
+                    proposalNumber.accumulateAndGet(response.proposalNum(), Math::max);
+                    Accepted last = acceptedIn(response);
+                    if (last != null) {
+                        logger.fine(this.getMemberNumber() + " received a promise from " +
+                                member + " for proposal number " + proposalNumber + " with value " + last.value() +
+                                " accepted in proposal number " + last.proposalNum());
+                        promiseValues.put(member, last);
                     }
                     promiseCount.incrementAndGet(); // Increment the promise count.
                 } else {
@@ -332,6 +538,7 @@ public class MemberImpl implements Member {
             }
         } catch (IOException | InterruptedException e) {
             // not a big deal, log it and move on.
+            rtts.fail(member);
             logger.fine(this.getMemberNumber() + " reported a connection error to " + member +
                     ". " + e.getMessage());
         }
@@ -372,18 +579,21 @@ public class MemberImpl implements Member {
      * Sets up a server socket to listen for messages from other members of the council. When a message is received,
      * a new thread is created to handle the message.
      * The server socket has a timeout of 10 seconds, to check if we have finished and to avoid blocking
-     * forever waiting for a message. If an exception is thrown, we log the error, but we will propagate
-     * back to the run method where we will check if the president has been decided, if not we will
-     * end up back here and will begin listening for messages again.
+     * forever waiting for a message. A serving member keeps listening after the president has been decided.
+     * If an exception is thrown, we log the error, but we will propagate back to the run method where we will
+     * check if the president has been decided, if not we will end up back here and will begin listening for
+     * messages again.
      */
     @Override
     public void listenForMessages() throws InterruptedException {
         try (
-                ServerSocket listenSocket = new ServerSocket(this.getMemberNumber().getPort());
+                // opened through a channel, so the sockets it accepts have channels a snapshot can be sent on.
+                ServerSocket listenSocket = ServerSocketChannel.open()
+                        .bind(new InetSocketAddress(this.getMemberNumber().getPort())).socket();
                 ExecutorService executorService = Executors.newCachedThreadPool()
         ) {
             listenSocket.setSoTimeout(10000); // check for finish every 10 seconds
-            while (!finish) {
+            while (!finish || serving) {
                 try {
                     Socket clientSocket = listenSocket.accept(); // Wait for a connection.
                     if (myQuirks != null) { // if in quirk mode
@@ -397,7 +607,7 @@ public class MemberImpl implements Member {
                         }
                     });
                 } catch (SocketTimeoutException e) {
-                    if (finish) break;
+                    if (finish && !serving) break;
                 }
             }
             // if we have a president, we can exit the algorithm.
@@ -412,18 +622,36 @@ public class MemberImpl implements Member {
     /**
      * Handles messages received by the member. The message is split into parts, and the first part is the message
      * type. The second part is the proposal number. The message is then handled based on the message type.
+     * The socket is closed once the message has been replied to, which for a log message may be after we return,
+     * so the thread isn't held while our write-ahead log makes what it asks us to keep durable.
      *
      * @param clientSocket : Socket : The socket that the message was received on.
      */
     @Override
     public void handleMessages(Socket clientSocket) throws InterruptedException {
-        try {
-            Message message = CouncilConnection.readMessage(clientSocket);
+        CompletableFuture<Void> replied = null; // set if the log replies once we return.
+        try (MessageView view = CouncilConnection.readView(clientSocket)) {
+            heard(view.message());
+            replied = log.handle(view, clientSocket);
+            if (replied != null) {
+                return; // log messages are the steady state, so they are handled straight from the view.
+            }
+            Message message = view.toMessage();
             switch (message.message()) {
+                case "PRE-PREPARE":
+                    preVoteReply(message, clientSocket);
+                    break;
                 case "PREPARE":
-                    if (message.proposalNum() > this.proposalNumber.get()) {
+                    if (grantedLease.blocks(message.sender())) {
+                        logger.fine(this.getMemberNumber() + " won't promise " + message.sender() +
+                                " as another proposer holds a lease.");
+                    } else if (message.proposalNum() > this.proposalNumber.get()) {
                         this.proposalNumber.set(message.proposalNum());
-                        promise(message, clientSocket);
+                        if (wal.await(wal.promise(message.proposalNum()))) { // don't promise what we could forget.
+                            promise(message, clientSocket);
+                            activeProposer = message.sender();
+                            activeSince = System.currentTimeMillis();
+                        }
                     } else {
                         logger.fine(this.getMemberNumber() + " received a prepare message from " +
                                 message.sender() + " with a proposal number " +
@@ -432,7 +660,13 @@ public class MemberImpl implements Member {
                     break;
                 case "ACCEPT-REQUEST":
                     if (message.proposalNum() >= this.proposalNumber.get()) {
-                        accept(message, clientSocket);
+                        if (wal.await(wal.accept(message.proposalNum(), message.value()))) {
+                            noteAccepted(message.proposalNum(), message.value());
+                            accept(message, clientSocket);
+                            activeProposer = message.sender();
+                            activeSince = System.currentTimeMillis();
+                            broadcastAccepted(message); // let every learner know what we accepted.
+                        }
                     } else {
                         reject(message, clientSocket);
                     }
@@ -445,65 +679,126 @@ public class MemberImpl implements Member {
                                 " less than the current proposal number.");
                     }
                     break;
+                case "ACCEPTED":
+                    learn(message);
+                    break;
+                case "READ-INDEX":
+                    readIndexReply(message, clientSocket);
+                    break;
+                case "READ":
+                    followerReadReply(message, clientSocket);
+                    break;
                 case "TERMINATE":
                     // we got the order to terminate, so we will output the president and exit the algorithm.
-                    this.finish = true;
-                    this.president = message.value(); // set the president, in case we missed the majority.
+                    if (message.value() != null) {
+                        choose(message.value()); // the proposer only terminates once it knows the value was chosen.
+                    }
                     break;
                 default:
                     logger.fine("Unknown message type received: " + message.message());
             }
         } catch (IOException e) {
             logger.fine("Error handling the message. " + e.getMessage());
+        } finally {
+            if (replied == null) {
+                closeConnection(clientSocket);
+            } else {
+                replied.whenComplete((_, _) -> closeConnection(clientSocket));
+            }
+        }
+    }
+
+    /**
+     * Closes a connection we have finished with.
+     *
+     * @param clientSocket : Socket : the connection.
+     */
+    private void closeConnection(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.fine("Error closing the connection. " + e.getMessage());
         }
     }
 
     /**
      * Sends a promise message to the proposer. This is the second step in the Paxos algorithm.
-     * The promise message is sent in the format "PROMISE <member port number>:<proposal number>".
-     * If the member has not seen a proposal before, they will send a promise with a value of "_".
-     * If the member has already seen a president be elected, they will send a promise with the
-     * value of the president.
+     * The promise message is sent in the format "PREPARE-OK <member port number>:<proposal number> <value>
+     * <payload>". If the member has not accepted a proposal before, they will send a promise with a value of "_".
+     * Otherwise the value is the one they last accepted, and the payload starts with the proposal number they
+     * accepted it in, so the proposer can ask for the value of the highest proposal its quorum accepted.
+     * If the proposer already holds our lease, the promise renews it, and we say so by adding "LEASE" to the
+     * payload, after a comma if it has a proposal number.
      *
      * @param message      : Message : The message received from the proposer.
      * @param clientSocket : Socket : The socket that the message was received on.
      */
     @Override
     public void promise(Message message, Socket clientSocket) throws IOException {
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        String vote;
-        if (this.president == null) {
-            vote = "_";
-        } else {
-            vote = String.valueOf(Members.getMemberNumber(this.president));
+        boolean lease = grantedLease.renew(message.sender());
+        Accepted last = accepted.get();
+        List<String> payload = new ArrayList<>();
+        if (last != null) {
+            payload.add(String.valueOf(last.proposalNum()));
         }
-        out.println("PREPARE-OK " + message.sender().getPort() + ":" + message.proposalNum() + " " + vote);
-        out.flush();
-        out.close();
+        if (lease) {
+            payload.add(LEASE);
+        }
+        CouncilConnection.writeMessage(clientSocket, "PREPARE-OK", message.sender(), message.proposalNum(),
+                last == null ? null : last.value(), payload.isEmpty() ? null : String.join(",", payload));
+    }
+
+
+    /**
+     * Reads what the acceptor that sent a promise, or a read-index reply, accepted last.
+     *
+     * @param reply : Message : the promise or reply.
+     * @return : Accepted : the proposal it accepted, or null if it hasn't accepted one, or the reply doesn't say
+     * which proposal it accepted the value in.
+     */
+    private static Accepted acceptedIn(Message reply) {
+        if (reply.value() == null || reply.payload() == null) {
+            return null;
+        }
+        try {
+            return new Accepted(Integer.parseInt(reply.payload().split(",")[0]), reply.value());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Records that we, as an acceptor, accepted a proposal, unless we have already accepted a later one.
+     *
+     * @param proposalNum : int : the proposal's number.
+     * @param value       : Members : the value we accepted.
+     */
+    private void noteAccepted(int proposalNum, Members value) {
+        accepted.accumulateAndGet(new Accepted(proposalNum, value),
+                (last, next) -> last != null && last.proposalNum() > next.proposalNum() ? last : next);
+    }
+
+
+    /**
+     * A proposal an acceptor accepted, and the value it accepted in it.
+     */
+    private record Accepted(int proposalNum, Members value) {
     }
 
 
     /**
      * Broadcasts an accept-request message to all members of the council asynchronously. If the proposer receives
-     * enough accept-ok messages to form a majority, they will decide on the value they voted for.
+     * enough accept-ok messages to form a phase 2 quorum, they will decide on the value they voted for.
      *
      * @param toVoteFor : Members : the member that this member would like to vote for.
      */
     @Override
     public void acceptRequest(Members toVoteFor) throws InterruptedException {
-        ExecutorService executorService = Executors.newCachedThreadPool();
         AtomicInteger acceptCount = new AtomicInteger();
-        for (Members member : Members.values()) {
-            if (member == this.getMemberNumber()) {
-                continue; // Skip myself.
-            }
-            executorService.submit(() -> sendAcceptRequestToMember(member, toVoteFor, acceptCount));
-        }
-        executorService.shutdown();
-        while (!executorService.isTerminated()) {
-            Thread.onSpinWait(); // Wait for all threads to finish.
-        }
-        if (acceptCount.get() >= Math.floor((double) Members.values().length / 2)) {
+        sendToQuorum(quorums.phase2() - 1, acceptCount,
+                member -> sendAcceptRequestToMember(member, toVoteFor, acceptCount));
+        if (acceptCount.get() >= quorums.phase2() - 1) { // a phase 2 quorum, counting ourselves
             logger.info(this.getMemberNumber() + " received enough accepts to decide on " +
                     toVoteFor + " for proposal number " + proposalNumber);
             // We have a majority, so we can decide.
@@ -531,13 +826,14 @@ public class MemberImpl implements Member {
      * @param acceptCount : AtomicInteger : the accept count to increment if the member responds with an accept-ok.
      */
     private void sendAcceptRequestToMember(Members member, Members toVoteFor, AtomicInteger acceptCount) {
+        long start = System.nanoTime();
         try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             // send the accept request
-            out.println("ACCEPT-REQUEST " + this.getMemberNumber().getPort() + ":" + proposalNumber.get() + " " +
-                    Members.getMemberNumber(toVoteFor));
+            CouncilConnection.writeMessage(socket, "ACCEPT-REQUEST", this.getMemberNumber(), proposalNumber.get(),
+                    toVoteFor, null);
             // read the response
             Message response = CouncilConnection.readMessage(socket);
+            rtts.record(member, System.nanoTime() - start);
             if (response.message().startsWith("ACCEPT-OK")) {
                 if (response.proposalNum() == proposalNumber.get() &&
                         response.sender() == this.getMemberNumber() &&
@@ -552,6 +848,7 @@ public class MemberImpl implements Member {
                 logger.fine("Received a rejection from " + member + " for the accept request.");
             }
         } catch (IOException | InterruptedException e) {
+            rtts.fail(member);
             logger.fine(this.getMemberNumber() + " reported a connection error to " +member +
                     ". " + e.getMessage());
         }
@@ -560,6 +857,7 @@ public class MemberImpl implements Member {
 
     /**
      * Sends an accept-ok message to the proposer at the other end of the client socket input argument.
+     * Accepting a proposal also grants the proposer our lease, which it renews each time it prepares.
      *
      * @param message      : Message : the message received from the proposer.
      * @param clientSocket : Socket : the socket that the message was received on.
@@ -567,12 +865,141 @@ public class MemberImpl implements Member {
      */
     @Override
     public void accept(Message message, Socket clientSocket) throws IOException {
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        // ACCEPT-OK sendersPort:proposalNumber value
-        out.println("ACCEPT-OK " + message.sender().getPort() + ":" + message.proposalNum() + " " +
-                Members.getMemberNumber(message.value()));
-        out.flush();
-        out.close();
+        grantedLease.grant(message.sender(), System.nanoTime(), LeaderLease.LEASE_DURATION_MS);
+        // ACCEPT-OK sendersPort:proposalNumber value LEASE
+        CouncilConnection.writeMessage(clientSocket, "ACCEPT-OK", message.sender(), message.proposalNum(),
+                message.value(), LEASE);
+    }
+
+
+    /**
+     * Answers a read-index request with our chosen index, the number of values our learner has learned were
+     * chosen, which is 0 or 1, and the proposal we last accepted, as in a promise. The reply is in the format
+     * "READ-INDEX-OK <reader port>:<chosen index> <accepted value> <accepted proposal number>", with "_" for the
+     * value, and no proposal number, if we haven't accepted one.
+     *
+     * @param message      : Message : the read-index request.
+     * @param clientSocket : Socket : the socket that the request was received on.
+     * @throws IOException : if the reply could not be sent.
+     */
+    private void readIndexReply(Message message, Socket clientSocket) throws IOException {
+        Accepted last = accepted.get();
+        CouncilConnection.writeMessage(clientSocket, "READ-INDEX-OK", message.sender(),
+                learner.getChosen() != null ? 1 : 0, last == null ? null : last.value(),
+                last == null ? null : String.valueOf(last.proposalNum()));
+    }
+
+
+    /**
+     * Notes that we received a message, which makes our state fresh for follower reads if it is leader traffic,
+     * see LEADER_TRAFFIC. A READ or READ-INDEX says nothing about how current we are, so it must not.
+     *
+     * @param type : String : the type of the message we received.
+     */
+    private void heard(String type) {
+        if (LEADER_TRAFFIC.contains(type)) {
+            this.lastContact = System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Answers a follower read from our own state, if it is no staler than the bound the reader asked for.
+     * The request is in the format "READ <reader port>:0 _ <max staleness in milliseconds>", and the reply is
+     * either "READ-OK <reader port>:<applied slot> <president> <as of millis>", or
+     * "READ-STALE <reader port>:<applied slot> _" if our state is too stale. A request whose bound isn't a number
+     * is dropped without a reply.
+     *
+     * @param message      : Message : the read request.
+     * @param clientSocket : Socket : the socket that the request was received on.
+     * @throws IOException : if the reply could not be sent.
+     */
+    private void followerReadReply(Message message, Socket clientSocket) throws IOException {
+        long maxStalenessMs;
+        try {
+            maxStalenessMs = message.payload() == null ? Long.MAX_VALUE : Long.parseLong(message.payload());
+        } catch (NumberFormatException e) {
+            logger.fine(this.getMemberNumber() + " got a read with a malformed staleness bound: " +
+                    message.payload());
+            return; // dropped without a reply, as for any malformed message.
+        }
+        try {
+            FollowerRead read = followerRead(maxStalenessMs);
+            CouncilConnection.writeMessage(clientSocket, "READ-OK", message.sender(), read.appliedSlot(),
+                    read.value(), String.valueOf(read.asOfMillis()));
+        } catch (IllegalStateException e) {
+            CouncilConnection.writeMessage(clientSocket, "READ-STALE", message.sender(), appliedSlot(), null, null);
+        }
+    }
+
+
+    /**
+     * Returns the number of decisions this member has applied. There is only one decision, the president,
+     * so this is 1 once we are confident the president has been decided, and 0 before then.
+     *
+     * @return : int : the number of decisions applied.
+     */
+    private int appliedSlot() {
+        return finish && president != null ? 1 : 0;
+    }
+
+
+    /**
+     * Broadcasts an ACCEPTED message to every member of the council after accepting an accept-request, so
+     * every member can learn the president within one message delay of the accept, rather than waiting for
+     * the proposer's DECIDE or a later prepare round. We also record our own acceptance with our learner.
+     * The message is in the format "ACCEPTED <my port>:<proposal number> <value> <proposer port>".
+     * Failures are ignored, as with the TERMINATE broadcast, a member we can't reach will learn some other way.
+     *
+     * @param message : Message : the accept-request message that we accepted.
+     */
+    private void broadcastAccepted(Message message) {
+        String proposer = String.valueOf(message.sender().getPort());
+        learn(new Message(message.proposalNum(), this.getMemberNumber(), "ACCEPTED", message.value(), proposer));
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        for (Members member : Members.values()) {
+            if (member == this.getMemberNumber()) {
+                continue; // Skip myself.
+            }
+            executorService.submit(() -> {
+                try (Socket socket = new Socket(HOST, member.getPort())) {
+                    CouncilConnection.writeMessage(socket, "ACCEPTED", this.getMemberNumber(),
+                            message.proposalNum(), message.value(), proposer);
+                } catch (IOException e) {
+                    // ignore the error, we will just move on.
+                }
+            });
+        }
+        executorService.shutdown();
+    }
+
+
+    /**
+     * Passes an ACCEPTED message to our learner. If a majority of the council has now accepted the same
+     * proposal, its value is the president, and we are confident the algorithm has finished.
+     *
+     * @param message : Message : the ACCEPTED message received from an acceptor.
+     */
+    private void learn(Message message) {
+        Members chosen = learner.learn(message);
+        if (chosen != null && !finish) {
+            logger.info(this.getMemberNumber() + " learned that a majority accepted " + chosen +
+                    " for proposal number " + message.proposalNum());
+            choose(chosen);
+        }
+    }
+
+
+    /**
+     * Takes note that a value was chosen, as our learner or a majority of promises showed, so it is the
+     * president, and we are confident the algorithm has finished.
+     *
+     * @param chosen : Members : the chosen value.
+     */
+    private synchronized void choose(Members chosen) {
+        learner.chosen(chosen);
+        this.president = chosen;
+        this.finish = true;
     }
 
 
@@ -585,11 +1012,9 @@ public class MemberImpl implements Member {
      */
     @Override
     public void reject(Message message, Socket clientSocket) throws IOException {
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
         // ACCEPT-REJECT port:proposalNumber _
-        out.println("ACCEPT-REJECT " + message.sender().getPort() + ":" + message.proposalNum() + " _");
-        out.flush();
-        out.close();
+        CouncilConnection.writeMessage(clientSocket, "ACCEPT-REJECT", message.sender(), message.proposalNum(),
+                null, null);
     }
 
 
@@ -629,12 +1054,9 @@ public class MemberImpl implements Member {
      */
     private void sendDecideMessageToMember(Members member, Members president) {
         try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             // DECIDE port:proposalNumber value
-            out.println("DECIDE " + this.getMemberNumber().getPort() + ":" + this.proposalNumber.get() + " " +
-                    Members.getMemberNumber(president));
-            out.flush();
-            out.close();
+            CouncilConnection.writeMessage(socket, "DECIDE", this.getMemberNumber(), this.proposalNumber.get(),
+                    president, null);
         } catch (IOException e) {
             logger.fine(this.getMemberNumber() + " reported a connection error to " + member +
                     ". " + e.getMessage());
@@ -688,6 +1110,108 @@ public class MemberImpl implements Member {
         this.isProposer = proposer;
     }
 
+    /**
+     * Sets whether the member keeps serving the replicated log and clients once the president is elected.
+     * Must be set before the member is run.
+     *
+     * @param serving : boolean : true if the member should keep serving, false otherwise.
+     */
+    @Override
+    public void setServing(boolean serving) {
+        this.serving = serving;
+    }
+
+    /**
+     * Sets the directory the member keeps its write-ahead log in, which turns persistence on. Each member uses
+     * its own directory within it. Must be set before the member is run.
+     *
+     * @param directory : Path : the data directory, or null to keep everything in memory.
+     */
+    @Override
+    public void setDataDirectory(Path directory) {
+        wal.setDirectory(directory == null ? null : directory.resolve(this.memberNumber.toString()));
+    }
+
+    /**
+     * Sets where the members of the council are, and the quorums each phase of Paxos needs, so the leader can
+     * commit log entries with the members near it. Every member must use the same quorums. Must be set before
+     * the member is run.
+     *
+     * @param topology : Topology : which region each member is in.
+     * @param quorums  : Quorums : the phase 1 and phase 2 quorum sizes.
+     */
+    @Override
+    public void setTopology(Topology topology, Quorums quorums) {
+        this.quorums = quorums;
+        learner.setQuorum(quorums.phase2());
+        log.setTopology(topology, quorums);
+    }
+
+    /**
+     * Sets whether rounds are thrifty: sent to the fastest members that can make up a quorum, as measured by
+     * earlier rounds, rather than to the whole council, and only widened to everyone if they don't all reply.
+     * This covers the election and the replicated log's appends.
+     *
+     * @param thrifty : boolean : true to send to the fastest quorum first.
+     */
+    @Override
+    public void setThrifty(boolean thrifty) {
+        this.thrifty = thrifty;
+        log.setThrifty(thrifty ? rtts : null);
+    }
+
+    /**
+     * Sets how many relay groups the replicated log sends its entries through, rather than sending each entry to
+     * every member itself. Must be set before the member is run.
+     *
+     * @param relays : int : how many relay groups, or 0 to send entries to every member directly.
+     */
+    @Override
+    public void setRelays(int relays) {
+        log.setRelays(relays);
+    }
+
+    /**
+     * Loads our log groups' snapshots and replays our write-ahead log, if persistence is on, so after a restart
+     * we still honour every promise and accept we made, and still have every log entry we acknowledged, and then
+     * starts writing to it.
+     *
+     * @return : boolean : true if we can take part, false if the write-ahead log can't be read, as carrying on
+     * without it could break a promise we made before we restarted.
+     */
+    private boolean recover() {
+        try {
+            log.recoverSnapshots(); // first, so only the entries after the snapshots are replayed.
+            wal.start(new WriteAheadLog.Replay() {
+                @Override
+                public void promise(int proposalNum) {
+                    proposalNumber.accumulateAndGet(proposalNum, Math::max);
+                }
+
+                @Override
+                public void accept(int proposalNum, Members value) {
+                    proposalNumber.accumulateAndGet(proposalNum, Math::max);
+                    noteAccepted(proposalNum, value);
+                }
+
+                @Override
+                public void append(int group, int slot, int ballot, String entry) {
+                    log.recover(group, slot, ballot, entry);
+                }
+
+                @Override
+                public void ballot(int group, int ballot) {
+                    log.recoverBallot(group, ballot);
+                }
+            });
+        } catch (IOException e) {
+            logger.severe(this.getMemberNumber() + " couldn't read its snapshots or write-ahead log. " +
+                    e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Returns who has been elected president of the council.
      *
@@ -697,4 +1221,118 @@ public class MemberImpl implements Member {
     public Members whoIsPresident() {
         return president;
     }
+
+    /**
+     * Returns the president with a linearizable read, only ever the value our learner has learned was chosen.
+     * Once it has, the answer can never change, so we return it straight away, without contacting anyone, which
+     * is also all a lease could let us serve locally: a proposer holding one still can't know its own value was
+     * chosen until its learner learns it.
+     * Otherwise, we fall back to a read-index round: we ask every member for its chosen index and what it last
+     * accepted. If a phase 2 quorum, counting us, accepted the same proposal, its value was chosen, and we learn
+     * it. If a member has learned a value was chosen, or any has accepted one, which may have been chosen, we
+     * wait for our learner to learn it. If nobody in a phase 1 quorum has accepted anything, nothing can have
+     * been chosen, as every phase 2 quorum shares a member with it. If a majority don't reply, or our learner
+     * doesn't catch up in time, we can't tell, so we fail the read, and the caller can try again.
+     *
+     * @return : Members : the president, or null if no president has been decided yet.
+     * @throws InterruptedException  : if interrupted while waiting for the read-index round, or our learner.
+     * @throws IllegalStateException : if we couldn't reach a majority, or learn what they know, so couldn't
+     *                               read the president.
+     */
+    @Override
+    public Members readPresident() throws InterruptedException {
+        Members chosen = learner.getChosen();
+        if (chosen != null) {
+            return chosen;
+        }
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        AtomicInteger replyCount = new AtomicInteger();
+        AtomicInteger chosenIndex = new AtomicInteger();
+        ConcurrentHashMap<Members, Accepted> acceptedValues = new ConcurrentHashMap<>();
+        Accepted ours = accepted.get();
+        if (ours != null) {
+            acceptedValues.put(this.getMemberNumber(), ours);
+        }
+        for (Members member : Members.values()) {
+            if (member == this.getMemberNumber()) {
+                continue; // Skip myself.
+            }
+            executorService.submit(() -> sendReadIndexToMember(member, replyCount, chosenIndex, acceptedValues));
+        }
+        executorService.shutdown();
+        while (!executorService.isTerminated()) {
+            Thread.onSpinWait(); // Wait for all threads to finish.
+        }
+        if (replyCount.get() < quorums.phase1() - 1) {
+            throw new IllegalStateException(this.getMemberNumber() + " only received " + replyCount.get() +
+                    " read-index replies, too few to read the president.");
+
+        }
+        chosen = checkPromisesForMajority(acceptedValues);
+        if (chosen != null) {
+            choose(chosen);
+            return chosen;
+        }
+        if (chosenIndex.get() == 0 && acceptedValues.isEmpty()) {
+            return learner.getChosen(); // nothing was chosen when we asked, but our learner may have learned since.
+        }
+        chosen = learner.awaitChosen(LEARN_WAIT_MS);
+        if (chosen == null) {
+            throw new IllegalStateException(this.getMemberNumber() + " hasn't learned the value a majority may" +
+                    " have chosen, so couldn't read the president.");
+        }
+        return chosen;
+    }
+
+
+    /**
+     * Reads the president from this member's own state, without contacting anyone, so reads can be spread over
+     * every member of the council. Once the president has been decided it can never change, so our state is
+     * current. Before then, it is only as fresh as the last message we received from a proposer or the leader.
+     *
+     * @param maxStalenessMs : long : the most out of date, in milliseconds, the caller will accept.
+     * @return : FollowerRead : the president as far as we know, with our applied slot and how fresh it is.
+     * @throws IllegalStateException : if our state is staler than the given bound.
+     */
+    @Override
+    public FollowerRead followerRead(long maxStalenessMs) {
+        long now = System.currentTimeMillis();
+        int applied = appliedSlot();
+        long asOf = applied > 0 ? now : lastContact;
+        if (now - asOf > maxStalenessMs) {
+            throw new IllegalStateException(this.getMemberNumber() + "'s state is " + (now - asOf) +
+                    "ms stale, more than the " + maxStalenessMs + "ms allowed.");
+        }
+        return new FollowerRead(applied > 0 ? president : null, applied, asOf);
+    }
+
+
+    /**
+     * Sends a read-index request to the given member, in the format "READ-INDEX <my port>:<proposal number> _",
+     * and records the reply. Errors are logged and ignored as with the other rounds.
+     *
+     * @param member         : Members : the member to ask.
+     * @param replyCount     : AtomicInteger : the reply count to increment if the member replies.
+     * @param chosenIndex    : AtomicInteger : the highest chosen index the members that replied reported.
+     * @param acceptedValues : ConcurrentHashMap<Members, Accepted> : where to record what the member accepted.
+     */
+    private void sendReadIndexToMember(Members member, AtomicInteger replyCount, AtomicInteger chosenIndex,
+                                       ConcurrentHashMap<Members, Accepted> acceptedValues) {
+        try (Socket socket = CouncilConnection.getConnection(HOST, member.getPort())) {
+            CouncilConnection.writeMessage(socket, "READ-INDEX", this.getMemberNumber(), proposalNumber.get(),
+                    null, null);
+            Message response = CouncilConnection.readMessage(socket);
+            if (response.message().equals("READ-INDEX-OK")) {
+                chosenIndex.accumulateAndGet(response.proposalNum(), Math::max);
+                Accepted last = acceptedIn(response);
+                if (last != null) {
+                    acceptedValues.put(member, last);
+                }
+                replyCount.incrementAndGet();
+            }
+        } catch (IOException | InterruptedException e) {
+            logger.fine(this.getMemberNumber() + " reported a connection error to " + member +
+                    ". " + e.getMessage());
+        }
+    }
 }
@@ -97,4 +97,14 @@ public enum Members {
             case M9 -> 4013;
         };
     }
+
+    /**
+     * This method returns the port clients use to submit commands to the member, which is 1000 above the
+     * port the member uses to talk to the rest of the council. i.e. M1 will return 5005.
+     *
+     * @return : int : the client port number of the member.
+     */
+    public int getClientPort() {
+        return getPort() + 1000;
+    }
 }
@@ -0,0 +1,38 @@
+package member;
+
+/**
+ * The quorum sizes the council runs Paxos with. Under Flexible Paxos, the quorum for phase 1 (promises) and the
+ * quorum for phase 2 (accepts, and storing log entries) needn't both be majorities: it is enough that every phase 1
+ * quorum intersects every phase 2 quorum, that is, that the two sizes add up to more than the council. A small
+ * phase 2 quorum lets the leader commit with just the members near it, at the price of a larger phase 1 quorum
+ * for elections, which are rare.
+ * Leases and read-index rounds are counted against the phase 1 quorum, as they must intersect any other
+ * proposer's promises, and learners against the phase 2 quorum. The phase 2 quorum may be no larger than a
+ * majority, so the phase 1 quorum is always at least a majority, and two leases can never both be held.
+ *
+ * @param phase1 : int : how many members, counting the proposer, must promise.
+ * @param phase2 : int : how many members, counting the proposer or leader, must accept or store an entry.
+ */
+public record Quorums(int phase1, int phase2) {
+    private static final int COUNCIL = Members.values().length;
+    public static final Quorums MAJORITY = new Quorums(COUNCIL / 2 + 1, COUNCIL / 2 + 1); // the classic quorums.
+
+    public Quorums {
+        if (phase2 < 1 || phase2 > COUNCIL / 2 + 1) {
+            throw new IllegalArgumentException("The phase 2 quorum must be between 1 and a majority.");
+        }
+        if (phase1 > COUNCIL || phase1 + phase2 <= COUNCIL) {
+            throw new IllegalArgumentException("Phase 1 and phase 2 quorums must intersect.");
+        }
+    }
+
+    /**
+     * Returns the smallest quorums with the given phase 2 quorum.
+     *
+     * @param phase2 : int : the phase 2 quorum.
+     * @return : Quorums : the quorums.
+     */
+    public static Quorums withPhase2(int phase2) {
+        return new Quorums(COUNCIL - phase2 + 1, phase2);
+    }
+}
@@ -0,0 +1,71 @@
+package member;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps a smoothed estimate of the round trip time to each member of the council, as TCP does: each new sample
+ * moves the estimate an eighth of the way towards it, so one slow reply doesn't reorder the council, but a member
+ * that stays slow, like one up in the Adelaide Hills, soon ranks last. A member we couldn't reach is counted as
+ * taking FAILURE_NANOS. Members we have never heard from rank first, so they get measured.
+ * Thrifty rounds use the ranking to send only to the fastest quorum, rather than to the whole council.
+ */
+public class RttTracker {
+    private static final int SHIFT = 3; // each sample moves the estimate 1 / 2^SHIFT of the way towards it.
+    private static final long FAILURE_NANOS = 2_000_000_000L; // What a member we couldn't reach is counted as.
+
+    private final AtomicLongArray estimates = new AtomicLongArray(Members.values().length); // nanos, 0 if unknown.
+
+    /**
+     * Records a round trip to a member.
+     *
+     * @param member : Members : the member.
+     * @param nanos  : long : how long the round trip took, in nanoseconds.
+     */
+    public void record(Members member, long nanos) {
+        long sample = Math.max(1, nanos); // 0 means unknown.
+        estimates.accumulateAndGet(member.ordinal(), sample,
+                (estimate, next) -> estimate == 0 ? next : estimate + ((next - estimate) >> SHIFT));
+    }
+
+    /**
+     * Records that a member couldn't be reached.
+     *
+     * @param member : Members : the member.
+     */
+    public void fail(Members member) {
+        record(member, FAILURE_NANOS);
+    }
+
+    /**
+     * Returns the estimated round trip time to a member.
+     *
+     * @param member : Members : the member.
+     * @return : long : the estimate in nanoseconds, or 0 if we have never heard from the member.
+     */
+    public long estimateOf(Members member) {
+        return estimates.get(member.ordinal());
+    }
+
+    /**
+     * Returns every member other than the given one, fastest first.
+     *
+     * @param self : Members : the member asking, which is left out.
+     * @return : List<Members> : the other members, by estimated round trip time.
+     */
+    public List<Members> ranked(Members self) {
+        long[] snapshot = new long[estimates.length()]; // so the order can't change while we sort.
+        List<Members> members = new ArrayList<>();
+        for (Members member : Members.values()) {
+            snapshot[member.ordinal()] = estimates.get(member.ordinal());
+            if (member != self) {
+                members.add(member);
+            }
+        }
+        // stable, so ties keep council order.
+        members.sort(Comparator.comparingLong(member -> snapshot[member.ordinal()]));
+        return members;
+    }
+}
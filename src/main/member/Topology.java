@@ -0,0 +1,94 @@
+package member;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the members of the council are, as named regions, such as the city and the Adelaide Hills. Messages
+ * within a region are quick, and messages between regions are slow, so members send to their own region first,
+ * and the leader batches and compresses the log entries it sends to other regions.
+ * A topology is written as "<region>=<member>,<member>;<region>=...", for example "hills=M2;coast=M7,M8".
+ * Members that aren't named are in the DEFAULT region, so by default every member is in the same region.
+ */
+public class Topology {
+    public static final String DEFAULT = "default"; // The region of members that aren't placed anywhere else.
+    public static final Topology FLAT = new Topology(new EnumMap<>(Members.class)); // everyone in one region.
+
+    private final Map<Members, String> regions; // member -> region, for members not in the default region.
+
+    private Topology(Map<Members, String> regions) {
+        this.regions = regions;
+    }
+
+    /**
+     * Parses a topology.
+     *
+     * @param spec : String : the topology, "<region>=<member>,<member>;<region>=...".
+     * @return : Topology : the topology.
+     * @throws IllegalArgumentException : if the topology is malformed, or places a member twice.
+     */
+    public static Topology parse(String spec) {
+        Map<Members, String> regions = new EnumMap<>(Members.class);
+        for (String region : spec.split(";")) {
+            String[] parts = region.split("=");
+            if (parts.length != 2 || parts[0].isBlank()) {
+                throw new IllegalArgumentException("Malformed region: " + region);
+            }
+            for (String member : parts[1].split(",")) {
+                if (regions.put(Members.valueOf(member.trim()), parts[0].trim()) != null) {
+                    throw new IllegalArgumentException(member + " is in more than one region.");
+                }
+            }
+        }
+        return new Topology(regions);
+    }
+
+    /**
+     * Returns the region a member is in.
+     *
+     * @param member : Members : the member.
+     * @return : String : the member's region.
+     */
+    public String regionOf(Members member) {
+        return regions.getOrDefault(member, DEFAULT);
+    }
+
+    /**
+     * Returns whether two members are in the same region.
+     *
+     * @param a : Members : one member.
+     * @param b : Members : the other member.
+     * @return : boolean : true if they are in the same region.
+     */
+    public boolean isLocal(Members a, Members b) {
+        return regionOf(a).equals(regionOf(b));
+    }
+
+    /**
+     * Returns every member, those in the given member's region first.
+     *
+     * @param from : Members : the member.
+     * @return : List<Members> : every member, nearest first.
+     */
+    public List<Members> byProximity(Members from) {
+        List<Members> members = new ArrayList<>();
+        for (Members member : Members.values()) {
+            if (isLocal(from, member)) {
+                members.add(member);
+            }
+        }
+        for (Members member : Members.values()) {
+            if (!isLocal(from, member)) {
+                members.add(member);
+            }
+        }
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return regions.isEmpty() ? DEFAULT : regions.toString();
+    }
+}
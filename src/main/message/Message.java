@@ -5,7 +5,20 @@ import member.Members;
 /**
  * This class represents a message that is sent between members of the Adelaide Suburbs Council.
  * The message contains a proposal number and a message, the sender of the message, and the value
- * that the sender is proposing.
+ * that the sender is proposing. Some messages carry an extra payload after the value, such as the
+ * proposer an ACCEPTED message refers to. The payload is null when the message has none.
  */
-public record Message(int proposalNum, Members sender, String message, Members value) {
+public record Message(int proposalNum, Members sender, String message, Members value, String payload) {
+
+    /**
+     * Creates a message without a payload.
+     *
+     * @param proposalNum : int : the proposal number of the message.
+     * @param sender      : Members : the sender of the message.
+     * @param message     : String : the type of the message.
+     * @param value       : Members : the value carried by the message, or null if it has none.
+     */
+    public Message(int proposalNum, Members sender, String message, Members value) {
+        this(proposalNum, sender, message, value, null);
+    }
 }
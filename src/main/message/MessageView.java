@@ -0,0 +1,382 @@
+package message;
+
+import member.Members;
+import util.ObjectPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable view of a single message, decoded in place from the bytes it was read into. Unlike Message, reading
+ * a message into a view creates no objects: the type is matched against the known message types, the proposal
+ * number, sender and value are parsed straight from the bytes, and the payload is only turned into a string if
+ * it is asked for. The same view can encode a reply into its buffer and write it out in a single write.
+ * Views are pooled. Take one with acquire(), and return it with close(), after which it must not be used, so
+ * they are best used in a try-with-resources block. Steady state message handling then produces no garbage for
+ * the collector, so an acceptor never stalls a quorum with a collection pause.
+ * The format is the same as Message's: "MESSAGE <member port>:<proposal number> <value|_> [payload]". Messages
+ * for one of a member's log groups other than the first tag the proposal number with the group, as
+ * "<proposal number>#<group>", so every group can share the member's port.
+ */
+public final class MessageView implements AutoCloseable {
+    private static final int INITIAL_SIZE = 1024; // The size of a view's buffer, enough for most messages.
+    private static final int MAX_SIZE = 16 * 1024 * 1024; // The longest message we will read.
+    private static final ObjectPool<MessageView> POOL = new ObjectPool<>(256, MessageView::new);
+    // The message types we know, so reading a message doesn't create a string for its type.
+    private static final String[] TYPES = {
+            "PRE-PREPARE", "PRE-PREPARE-OK", "PRE-PREPARE-REJECT", "PREPARE", "PREPARE-OK", "ACCEPT-REQUEST",
+            "ACCEPT-OK", "ACCEPT-REJECT", "DECIDE", "ACCEPTED", "TERMINATE", "READ-INDEX", "READ-INDEX-OK", "READ",
+            "READ-OK", "READ-STALE", "APPEND", "APPEND-OK", "APPEND-REJECT", "APPEND-BATCH", "APPEND-RELAY",
+            "COMMIT", "CATCHUP"
+    };
+
+    private byte[] line = new byte[INITIAL_SIZE]; // The message, without its line ending.
+    private int length; // How many bytes of the buffer the message takes up.
+    private String type; // The type of the message.
+    private Members sender; // The sender of the message.
+    private int proposalNum; // The proposal number of the message.
+    private int group; // The log group the message is for, 0 if it isn't tagged.
+    private Members value; // The value of the message, null if it has none.
+    private int payloadStart; // Where the payload starts in the buffer, -1 if there is no payload.
+    private int payloadEnd; // Where the payload ends in the buffer.
+
+    private MessageView() {
+    }
+
+    /**
+     * Takes a view from the pool.
+     *
+     * @return : MessageView : an empty view.
+     */
+    public static MessageView acquire() {
+        return POOL.acquire();
+    }
+
+    /**
+     * Reads a message from the stream into this view. Reading stops at the end of the line, or the end of the
+     * stream, and anything read past the end of the line is discarded, as every message is sent on its own
+     * connection.
+     *
+     * @param in : InputStream : the stream to read from.
+     * @return : MessageView : this view.
+     * @throws IOException : if the stream ended before a message was read, the message was too long, or it was
+     *                     not in the expected format.
+     */
+    public MessageView read(InputStream in) throws IOException {
+        length = 0;
+        while (true) {
+            if (length == line.length) {
+                grow();
+            }
+            int read = in.read(line, length, line.length - length);
+            if (read < 0) {
+                if (length == 0) {
+                    throw new EOFException("The connection closed before a message was received.");
+                }
+                break; // the last message on a stream needn't end with a new line.
+            }
+            int end = indexOf((byte) '\n', length, length + read);
+            if (end >= 0) {
+                length = end;
+                break;
+            }
+            length += read;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        parse();
+        return this;
+    }
+
+    /**
+     * Encodes a message into this view, ready to be written with writeTo().
+     *
+     * @param type        : String : the type of the message.
+     * @param sender      : Members : the member whose port goes in the message.
+     * @param proposalNum : int : the proposal number.
+     * @param value       : Members : the value, or null if there is none.
+     * @param payload     : String : the payload, or null if there is none.
+     * @return : MessageView : this view.
+     */
+    public MessageView encode(String type, Members sender, int proposalNum, Members value, String payload) {
+        return encode(type, sender, 0, proposalNum, value, payload);
+    }
+
+    /**
+     * Encodes a message for one of the member's log groups into this view, ready to be written with writeTo().
+     *
+     * @param type        : String : the type of the message.
+     * @param sender      : Members : the member whose port goes in the message.
+     * @param group       : int : the log group the message is for, 0 for the first, which isn't tagged.
+     * @param proposalNum : int : the proposal number, or slot.
+     * @param value       : Members : the value, or null if there is none.
+     * @param payload     : String : the payload, or null if there is none.
+     * @return : MessageView : this view.
+     */
+    public MessageView encode(String type, Members sender, int group, int proposalNum, Members value,
+                              String payload) {
+        length = 0;
+        putString(type);
+        put((byte) ' ');
+        putInt(sender.getPort());
+        put((byte) ':');
+        putInt(proposalNum);
+        if (group != 0) {
+            put((byte) '#');
+            putInt(group);
+        }
+        put((byte) ' ');
+        if (value == null) {
+            put((byte) '_');
+        } else {
+            putInt(Members.getMemberNumber(value));
+        }
+        payloadStart = -1;
+        if (payload != null) {
+            put((byte) ' ');
+            payloadStart = length;
+            putString(payload);
+            payloadEnd = length;
+        }
+        this.type = type;
+        this.sender = sender;
+        this.proposalNum = proposalNum;
+        this.group = group;
+        this.value = value;
+        return this;
+    }
+
+    /**
+     * Writes the message in this view, followed by a new line, to the stream in a single write, and flushes it.
+     *
+     * @param out : OutputStream : the stream to write to.
+     * @throws IOException : if the message could not be written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        put((byte) '\n');
+        out.write(line, 0, length);
+        out.flush();
+        length--; // leave the view holding just the message, without its line ending.
+    }
+
+    /**
+     * Returns the view to the pool. The view must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (line.length > INITIAL_SIZE * 64) {
+            line = new byte[INITIAL_SIZE]; // don't let the pool hold on to buffers grown for a rare large message.
+        }
+        length = 0;
+        type = null;
+        POOL.release(this);
+    }
+
+    public String message() {
+        return type;
+    }
+
+    public int proposalNum() {
+        return proposalNum;
+    }
+
+    public int group() {
+        return group;
+    }
+
+    public Members sender() {
+        return sender;
+    }
+
+    public Members value() {
+        return value;
+    }
+
+    public boolean hasPayload() {
+        return payloadStart >= 0;
+    }
+
+    /**
+     * Returns the payload as a string. Unlike the rest of the view, this creates a string, so it should only be
+     * used where the payload is kept or parsed anyway.
+     *
+     * @return : String : the payload, or null if there is none.
+     */
+    public String payload() {
+        return hasPayload() ? new String(line, payloadStart, payloadEnd - payloadStart, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Creates a Message with the same contents as this view, for code that keeps the message beyond the life
+     * of the view.
+     *
+     * @return : Message : the message.
+     */
+    public Message toMessage() {
+        return new Message(proposalNum, sender, type, value, payload());
+    }
+
+    @Override
+    public String toString() {
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the fields of the message in the buffer.
+     *
+     * @throws IOException : if the message is not in the expected format.
+     */
+    private void parse() throws IOException {
+        int typeEnd = indexOf((byte) ' ', 0, length);
+        int colon = typeEnd < 0 ? -1 : indexOf((byte) ':', typeEnd + 1, length);
+        int numberEnd = colon < 0 ? -1 : indexOf((byte) ' ', colon + 1, length);
+        if (numberEnd < 0) {
+            throw new IOException("Malformed message: " + this);
+        }
+        int valueEnd = indexOf((byte) ' ', numberEnd + 1, length);
+        if (valueEnd < 0) {
+            valueEnd = length;
+            payloadStart = -1;
+        } else {
+            payloadStart = valueEnd + 1;
+            payloadEnd = indexOf((byte) ' ', payloadStart, length);
+            if (payloadEnd < 0) {
+                payloadEnd = length;
+            }
+        }
+        try {
+            type = typeOf(typeEnd);
+            sender = Members.getMemberFromPort(parseInt(typeEnd + 1, colon));
+            int hash = indexOf((byte) '#', colon + 1, numberEnd);
+            proposalNum = parseInt(colon + 1, hash < 0 ? numberEnd : hash);
+            group = hash < 0 ? 0 : parseInt(hash + 1, numberEnd);
+            if (group < 0) {
+                throw new IllegalArgumentException("Negative group");
+            }
+            if (valueEnd == numberEnd + 2 && line[numberEnd + 1] == '_') {
+                value = null; // the message has no value.
+            } else {
+                value = Members.getMember(parseInt(numberEnd + 1, valueEnd));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed message: " + this);
+        }
+    }
+
+    /**
+     * Returns the type of the message, which is the known type matching the bytes if there is one, so that no
+     * string is created for it.
+     *
+     * @param typeEnd : int : where the type ends in the buffer.
+     * @return : String : the type.
+     */
+    private String typeOf(int typeEnd) {
+        for (String known : TYPES) {
+            if (known.length() == typeEnd && matches(known, 0)) {
+                return known;
+            }
+        }
+        return new String(line, 0, typeEnd, StandardCharsets.UTF_8);
+    }
+
+    private boolean matches(String text, int offset) {
+        for (int i = 0; i < text.length(); i++) {
+            if (line[offset + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal integer from the buffer.
+     *
+     * @param start : int : where the integer starts.
+     * @param end   : int : where the integer ends.
+     * @return : int : the integer.
+     * @throws IllegalArgumentException : if the bytes are not an integer.
+     */
+    private int parseInt(int start, int end) {
+        boolean negative = start < end && line[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 10) {
+            throw new IllegalArgumentException("Not an integer");
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Not an integer");
+            }
+            result = result * 10 + digit;
+        }
+        result = negative ? -result : result;
+        if (result != (int) result) {
+            throw new IllegalArgumentException("Not an integer");
+        }
+        return (int) result;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void grow() throws IOException {
+        if (line.length >= MAX_SIZE) {
+            throw new IOException("Message longer than " + MAX_SIZE + " bytes.");
+        }
+        line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_SIZE));
+    }
+
+    private void put(byte b) {
+        if (length == line.length) {
+            line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[length++] = b;
+    }
+
+    private void putString(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) { // not ASCII, which none of our messages should be, so take the slow path.
+                for (byte b : text.substring(i).getBytes(StandardCharsets.UTF_8)) {
+                    put(b);
+                }
+                return;
+            }
+            put((byte) c);
+        }
+    }
+
+    private void putInt(int number) {
+        if (number < 0) {
+            put((byte) '-');
+            if (number == Integer.MIN_VALUE) {
+                putString("2147483648");
+                return;
+            }
+            number = -number;
+        }
+        int digits = 1;
+        for (int rest = number / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = 0; i < digits; i++) {
+            put((byte) '0'); // make room, then fill in the digits from the right.
+        }
+        for (int i = length - 1; i >= length - digits; i--) {
+            line[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+    }
+}
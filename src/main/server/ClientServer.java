@@ -0,0 +1,144 @@
+package server;
+
+import log.ReplicatedLog;
+import log.Result;
+import log.ShardedLog;
+import member.Members;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Listens for clients on a member's client port and submits their commands to the replicated log.
+ * Clients send one command per line, in the format "SUBMIT <session>:<sequence> <command>", where the command is
+ * Base64 encoded. A client may send several commands on one connection without waiting for replies, and each reply
+ * names the command it is for:
+ * "RESULT <session>:<sequence> <slot> <result>" once the command has been applied, with the result Base64 encoded
+ * and the slot being the command's slot in the log group it was routed to,
+ * or "REDIRECT <session>:<sequence> <member number>" if this member isn't the president, naming the president, or
+ * "_" if we don't know who the president is yet.
+ */
+public class ClientServer implements Runnable {
+    private final static Logger logger = Logger.getLogger(ClientServer.class.getName());
+
+    private final Members member; // The member this server belongs to.
+    private final ShardedLog log; // The log groups to submit commands to.
+    private final Supplier<Members> leader; // Who the member knows to be president.
+    private final BooleanSupplier serving; // Whether the member is still serving clients.
+
+    /**
+     * Creates a client server for the given member.
+     *
+     * @param member  : Members : the member this server belongs to.
+     * @param log     : ShardedLog : the log groups to submit commands to.
+     * @param leader  : Supplier<Members> : supplies who the member knows to be president.
+     * @param serving : BooleanSupplier : whether the member is still serving clients.
+     */
+    public ClientServer(Members member, ShardedLog log, Supplier<Members> leader, BooleanSupplier serving) {
+        this.member = member;
+        this.log = log;
+        this.leader = leader;
+        this.serving = serving;
+    }
+
+
+    /**
+     * Accepts client connections on the member's client port until the member stops serving, handling each
+     * connection in its own thread.
+     */
+    @Override
+    public void run() {
+        try (ServerSocket listenSocket = new ServerSocket(member.getClientPort());
+             ExecutorService executorService = Executors.newCachedThreadPool()
+        ) {
+            listenSocket.setSoTimeout(5000); // check if we are still serving every 5 seconds
+            logger.info(member + " is accepting clients on port " + member.getClientPort());
+            while (serving.getAsBoolean()) {
+                try {
+                    Socket clientSocket = listenSocket.accept();
+                    executorService.submit(() -> handleClient(clientSocket));
+                } catch (SocketTimeoutException _) {
+                    // check if we are still serving
+                }
+            }
+        } catch (IOException e) {
+            logger.fine(member + "'s Client Server shut down. " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Reads commands from a client until it closes the connection, replying to each as it completes.
+     *
+     * @param clientSocket : Socket : the client's connection.
+     */
+    private void handleClient(Socket clientSocket) {
+        try (clientSocket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 3 || !parts[0].equals("SUBMIT")) {
+                    logger.fine(member + " received an unknown client request: " + line);
+                    continue;
+                }
+                String request = parts[1]; // <session>:<sequence>
+                String[] ids = request.split(":");
+                CompletableFuture<Result> future = submit(Long.parseLong(ids[0]), Long.parseLong(ids[1]),
+                        ReplicatedLog.decode(parts[2]));
+                if (future == null) {
+                    Members president = leader.get();
+                    reply(out, "REDIRECT " + request + " " +
+                            (president == null ? "_" : String.valueOf(Members.getMemberNumber(president))));
+                } else {
+                    future.thenAccept(result -> reply(out, "RESULT " + request + " " + result.slot() + " " +
+                            ReplicatedLog.encode(result.value())));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.fine(member + " lost a client connection. " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Submits a command to the log if this member is the president.
+     *
+     * @return : CompletableFuture<Result> : the pending result, or null if this member isn't the president.
+     */
+    private CompletableFuture<Result> submit(long sessionId, long seq, String command) {
+        if (leader.get() != member) {
+            return null;
+        }
+        try {
+            return log.submit(sessionId, seq, command);
+        } catch (IllegalStateException _) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Sends a reply to a client. Replies can complete on different threads, so we send one at a time.
+     *
+     * @param out   : PrintWriter : the client's connection.
+     * @param reply : String : the reply.
+     */
+    private void reply(PrintWriter out, String reply) {
+        synchronized (out) {
+            out.println(reply);
+        }
+    }
+}
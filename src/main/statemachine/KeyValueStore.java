@@ -0,0 +1,257 @@
+package statemachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * An in-memory key-value store from long keys to long values, replicated by the council. The store is kept in
+ * LongLongHashMaps, so it holds no boxed keys or values, however many mappings it has. Keys are split over a
+ * fixed number of partitions, each with its own map, so commands on keys in different partitions can be applied
+ * in parallel.
+ * Commands are strings of the form:
+ * "PUT <key> <value>" maps the key to the value and returns the previous value,
+ * "GET <key>" returns the value mapped to the key,
+ * "DEL <key>" removes the key's mapping and returns the value it had,
+ * "INCR <key> <delta>" adds the delta to the key's value, treating a missing value as 0, and returns the new value.
+ * Commands that return a value return "NONE" if there was none, and malformed commands return "ERROR <reason>".
+ * Commands on the same partition must not be applied at the same time.
+ */
+public class KeyValueStore implements StateMachine {
+    public static final String NONE = "NONE"; // The result when a key has no value.
+
+    private static final int PARTITIONS = 16; // a power of two, so a key's partition is a mask of its hash.
+
+    private final LongLongHashMap[] maps = new LongLongHashMap[PARTITIONS];
+
+    /**
+     * Creates an empty store.
+     */
+    public KeyValueStore() {
+        for (int i = 0; i < PARTITIONS; i++) {
+            maps[i] = new LongLongHashMap();
+        }
+    }
+
+    /**
+     * Returns the map holding the given key.
+     *
+     * @param key : long : the key.
+     * @return : LongLongHashMap : the map of the key's partition.
+     */
+    private LongLongHashMap map(long key) {
+        return maps[partitionOfKey(key)];
+    }
+
+    /**
+     * Returns the partition of the given key.
+     *
+     * @param key : long : the key.
+     * @return : int : the partition.
+     */
+    private static int partitionOfKey(long key) {
+        return (Long.hashCode(key * 0xC2B2AE3D27D4EB4FL) >>> 16) & (PARTITIONS - 1);
+    }
+
+    @Override
+    public int partitions() {
+        return PARTITIONS;
+    }
+
+    /**
+     * Returns the partition of the key the command touches. Every command touches exactly one key, which follows
+     * the command name, so we find it without splitting the whole command. A malformed command is treated as
+     * touching every partition, and is applied on its own to report its error.
+     *
+     * @param command : String : the command.
+     * @return : int : the partition, or -1 if the command is malformed.
+     */
+    @Override
+    public int partitionOf(String command) {
+        try {
+            return partitionOfKey(parseKey(command));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the log group of the key the command touches, so every command on a key goes to the same group.
+     * The key is hashed differently from its partition, so each group's keys still spread over every partition.
+     * A malformed command goes to the first group, which applies it to report its error.
+     *
+     * @param command : String : the command.
+     * @param groups  : int : how many log groups there are.
+     * @return : int : the group.
+     */
+    @Override
+    public int groupOf(String command, int groups) {
+        try {
+            return Math.floorMod(Long.hashCode(parseKey(command) * 0x9E3779B97F4A7C15L), groups);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the key the command touches, in its canonical form, so "PUT 07 1" and "GET 7" lock the same key.
+     *
+     * @param command : String : the command.
+     * @return : String : the key, or null if the command is malformed.
+     */
+    @Override
+    public String keyOf(String command) {
+        try {
+            return Long.toString(parseKey(command));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the key a command touches, which follows the command name, without splitting the whole command.
+     *
+     * @param command : String : the command.
+     * @return : long : the key.
+     * @throws NumberFormatException : if the command has no key, or it isn't a number.
+     */
+    private static long parseKey(String command) {
+        int start = command.indexOf(' ');
+        if (start < 0) {
+            throw new NumberFormatException("No key");
+        }
+        int end = command.indexOf(' ', start + 1);
+        return Long.parseLong(command, start + 1, end < 0 ? command.length() : end, 10);
+    }
+
+    /**
+     * Applies a command to the store.
+     *
+     * @param command : String : the command.
+     * @return : String : the result of the command.
+     */
+    @Override
+    public String apply(String command) {
+        String[] parts = command.trim().split(" +");
+        try {
+            switch (parts[0]) {
+                case "PUT":
+                    checkArgs(parts, 3);
+                    return put(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                case "GET":
+                    checkArgs(parts, 2);
+                    return get(Long.parseLong(parts[1]));
+                case "DEL":
+                    checkArgs(parts, 2);
+                    return delete(Long.parseLong(parts[1]));
+                case "INCR":
+                    checkArgs(parts, 3);
+                    return increment(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                default:
+                    return "ERROR unknown command " + parts[0];
+            }
+        } catch (IllegalArgumentException e) { // includes NumberFormatException
+            return "ERROR " + e.getMessage();
+        }
+    }
+
+    /**
+     * Checks a command has the expected number of parts.
+     *
+     * @param parts    : String[] : the parts of the command.
+     * @param expected : int : the number of parts expected, including the command name.
+     */
+    private static void checkArgs(String[] parts, int expected) {
+        if (parts.length != expected) {
+            throw new IllegalArgumentException(parts[0] + " takes " + (expected - 1) + " arguments");
+        }
+    }
+
+    private String put(long key, long value) {
+        String previous = get(key);
+        map(key).put(key, value);
+        return previous;
+    }
+
+    private String get(long key) {
+        LongLongHashMap map = map(key);
+        return map.containsKey(key) ? String.valueOf(map.get(key, 0)) : NONE;
+    }
+
+    private String delete(long key) {
+        String previous = get(key);
+        map(key).remove(key);
+        return previous;
+    }
+
+    private String increment(long key, long delta) {
+        LongLongHashMap map = map(key);
+        long value = map.get(key, 0) + delta;
+        map.put(key, value);
+        return String.valueOf(value);
+    }
+
+    /**
+     * Returns the number of keys in the store.
+     *
+     * @return : int : the number of keys.
+     */
+    public int size() {
+        int size = 0;
+        for (LongLongHashMap map : maps) {
+            size += map.size();
+        }
+        return size;
+    }
+
+    /**
+     * Takes a snapshot of the store: the number of mappings, followed by each key and value.
+     *
+     * @return : byte[] : the snapshot.
+     */
+    @Override
+    public byte[] snapshot() {
+        int size = size();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + size * 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(size);
+            for (LongLongHashMap map : maps) {
+                map.forEach((key, value) -> {
+                    try {
+                        out.writeLong(key);
+                        out.writeLong(value);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen writing to memory.
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the contents of the store with a snapshot taken by snapshot().
+     *
+     * @param snapshot : byte[] : the snapshot.
+     */
+    @Override
+    public void restore(byte[] snapshot) {
+        for (LongLongHashMap map : maps) {
+            map.clear();
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long key = in.readLong();
+                map(key).put(key, in.readLong());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt key-value store snapshot.", e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package statemachine;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to long values, stored in primitive arrays with open addressing and linear probing,
+ * so that neither keys nor values are boxed and there is no entry object per mapping. The table always has a
+ * power of two capacity and is grown once it is more than half full. Key 0 marks an empty slot in the table, so
+ * the mapping for key 0, if any, is kept separately.
+ * The map is not thread safe.
+ */
+public class LongLongHashMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private int mask; // capacity - 1, to map a hash to a slot.
+    private int size; // The number of mappings, not counting key 0.
+    private boolean hasZeroKey; // Whether there is a mapping for key 0.
+    private long zeroValue; // The value mapped to key 0.
+
+    /**
+     * Creates an empty map.
+     */
+    public LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an empty map with room for the given number of mappings before it needs to grow.
+     *
+     * @param expectedSize : int : the number of mappings expected.
+     */
+    public LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Allocates empty tables of the given capacity.
+     *
+     * @param capacity : int : the capacity, a power of two.
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Spreads the bits of a key, so keys that differ only in their high bits don't collide.
+     *
+     * @param key : long : the key.
+     * @return : int : the slot the key should be in, if it isn't taken.
+     */
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Finds the slot holding the given key, or the empty slot where it would go.
+     *
+     * @param key : long : the key, which must not be 0.
+     * @return : int : the slot.
+     */
+    private int find(long key) {
+        int slot = slot(key);
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Checks whether the map has a mapping for the given key.
+     *
+     * @param key : long : the key.
+     * @return : boolean : true if the key is mapped, false otherwise.
+     */
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        return keys[find(key)] != 0;
+    }
+
+    /**
+     * Returns the value mapped to the given key.
+     *
+     * @param key          : long : the key.
+     * @param defaultValue : long : the value to return if the key is not mapped.
+     * @return : long : the value mapped to the key, or the default value.
+     */
+    public long get(long key, long defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = find(key);
+        return keys[slot] != 0 ? values[slot] : defaultValue;
+    }
+
+    /**
+     * Maps the given key to the given value, replacing any previous value.
+     *
+     * @param key   : long : the key.
+     * @param value : long : the value.
+     */
+    public void put(long key, long value) {
+        if (key == 0) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = find(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                values[slot] = value;
+                grow();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Removes the mapping for the given key. The mappings after it in the same run of taken slots are shifted
+     * back, so lookups never stop early at the hole it leaves.
+     *
+     * @param key : long : the key.
+     * @return : boolean : true if the key was mapped, false otherwise.
+     */
+    public boolean remove(long key) {
+        if (key == 0) {
+            boolean had = hasZeroKey;
+            hasZeroKey = false;
+            return had;
+        }
+        int hole = find(key);
+        if (keys[hole] == 0) {
+            return false;
+        }
+        size--;
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (keys[slot] == 0) {
+                break;
+            }
+            int home = slot(keys[slot]);
+            // move the mapping into the hole unless its home slot lies between the hole and where it is now.
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = 0;
+        return true;
+    }
+
+    /**
+     * Doubles the capacity of the table and rehashes every mapping.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     *
+     * @return : int : the number of mappings.
+     */
+    public int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    /**
+     * Removes every mapping.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    /**
+     * Passes every mapping to the given consumer, in no particular order.
+     *
+     * @param consumer : EntryConsumer : the consumer.
+     */
+    public void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Accepts a mapping without boxing its key or value.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, long value);
+    }
+}
@@ -0,0 +1,115 @@
+package statemachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Applies a batch of decided commands to a state machine using several threads, while giving the same results as
+ * applying them one at a time in log order. The state machine splits its state into partitions, and says which
+ * partition each command touches. Commands touching different partitions can't conflict, so each partition's
+ * commands are applied in log order on their own ForkJoin task, and the partitions are applied in parallel.
+ * A command that may touch every partition is a barrier: everything before it is applied first, then it is applied
+ * on its own, and then the commands after it.
+ */
+public class ParallelApplier {
+    // Batches smaller than this are applied on the calling thread, as the tasks would cost more than they save.
+    private static final int MIN_PARALLEL_BATCH = 8;
+
+    private final StateMachine stateMachine;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an applier for the given state machine, using the common ForkJoin pool.
+     *
+     * @param stateMachine : StateMachine : the state machine to apply commands to.
+     */
+    public ParallelApplier(StateMachine stateMachine) {
+        this(stateMachine, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an applier for the given state machine, using the given ForkJoin pool.
+     *
+     * @param stateMachine : StateMachine : the state machine to apply commands to.
+     * @param pool         : ForkJoinPool : the pool to apply partitions on.
+     */
+    public ParallelApplier(StateMachine stateMachine, ForkJoinPool pool) {
+        this.stateMachine = stateMachine;
+        this.pool = pool;
+    }
+
+    /**
+     * Applies the given commands, which are in log order.
+     *
+     * @param commands : List<String> : the commands, in log order.
+     * @return : String[] : the result of each command, in the same order.
+     */
+    public String[] applyAll(List<String> commands) {
+        String[] results = new String[commands.size()];
+        if (stateMachine.partitions() == 1 || commands.size() < MIN_PARALLEL_BATCH) {
+            for (int i = 0; i < commands.size(); i++) {
+                results[i] = stateMachine.apply(commands.get(i));
+            }
+            return results;
+        }
+        int start = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            if (stateMachine.partitionOf(commands.get(i)) < 0) { // a barrier
+                applyRun(commands, start, i, results);
+                results[i] = stateMachine.apply(commands.get(i));
+                start = i + 1;
+            }
+        }
+        applyRun(commands, start, commands.size(), results);
+        return results;
+    }
+
+    /**
+     * Applies a run of commands containing no barriers, each partition's commands in order on its own task.
+     *
+     * @param commands : List<String> : the commands.
+     * @param from     : int : the index of the first command of the run.
+     * @param to       : int : the index after the last command of the run.
+     * @param results  : String[] : where to put the result of each command.
+     */
+    private void applyRun(List<String> commands, int from, int to, String[] results) {
+        if (to - from < MIN_PARALLEL_BATCH) {
+            for (int i = from; i < to; i++) {
+                results[i] = stateMachine.apply(commands.get(i));
+            }
+            return;
+        }
+        int partitions = stateMachine.partitions();
+        int[][] indices = new int[partitions][];
+        int[] counts = new int[partitions];
+        int[] partitionOf = new int[to - from];
+        for (int i = from; i < to; i++) {
+            int partition = stateMachine.partitionOf(commands.get(i));
+            partitionOf[i - from] = partition;
+            counts[partition]++;
+        }
+        for (int p = 0; p < partitions; p++) {
+            indices[p] = new int[counts[p]];
+            counts[p] = 0;
+        }
+        for (int i = from; i < to; i++) {
+            int partition = partitionOf[i - from];
+            indices[partition][counts[partition]++] = i;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int[] partitionIndices : indices) {
+            if (partitionIndices.length > 0) {
+                tasks.add(pool.submit(() -> {
+                    for (int i : partitionIndices) {
+                        results[i] = stateMachine.apply(commands.get(i));
+                    }
+                }));
+            }
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package statemachine;
+
+/**
+ * The state the council replicates. Every member applies the commands decided by the replicated log to its own
+ * state machine, in log order, so every member ends up with the same state. A state machine must therefore be
+ * deterministic: the same commands applied in the same order must always give the same results.
+ * A state machine can be snapshotted, so a member that falls behind can be sent the state rather than every
+ * command, and restored from a snapshot. It may also split its state into partitions, so that commands touching
+ * different partitions can be applied in parallel, and say which log group owns each command, so a member can
+ * run a separate log, with its own instance of the state machine, for each group.
+ */
+public interface StateMachine {
+    String apply(String command); // applies a decided command and returns its result.
+
+    byte[] snapshot(); // returns the whole state, to be restored by restore().
+
+    void restore(byte[] snapshot); // replaces the whole state with a snapshot taken by snapshot().
+
+    /**
+     * Returns how many independent partitions the state is split into. Commands touching different partitions
+     * may be applied at the same time on different threads. By default, there is a single partition and
+     * commands are applied one at a time.
+     *
+     * @return : int : the number of partitions.
+     */
+    default int partitions() {
+        return 1;
+    }
+
+    /**
+     * Returns the partition a command touches, or -1 if it may touch any partition and so conflicts with every
+     * other command.
+     *
+     * @param command : String : the command.
+     * @return : int : the partition, between 0 and partitions() - 1, or -1.
+     */
+    default int partitionOf(String command) {
+        return -1;
+    }
+
+    /**
+     * Returns the log group, out of the given number, that a command belongs to, when a member shards its state
+     * over several independent log groups. Commands on the same keys must always go to the same group, as each
+     * group orders only its own commands. By default, every command goes to the first group.
+     *
+     * @param command : String : the command.
+     * @param groups  : int : how many log groups there are.
+     * @return : int : the group, between 0 and groups - 1.
+     */
+    default int groupOf(String command, int groups) {
+        return 0;
+    }
+
+    /**
+     * Returns the key a command touches, so a transaction can lock it while it commits. By default, keys aren't
+     * known, and commands can't be part of a transaction.
+     *
+     * @param command : String : the command.
+     * @return : String : the key, or null if it isn't known.
+     */
+    default String keyOf(String command) {
+        return null;
+    }
+}
@@ -0,0 +1,306 @@
+package statemachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes a log group's state machine a participant in transactions that span several log groups. A transaction
+ * commits by Paxos Commit: each participant group votes on it through its own log, and the transaction commits
+ * only if every participant voted to prepare it. As every vote is decided by a group's log rather than held by
+ * the coordinator, any coordinator can later read the votes and finish the transaction, so a coordinator that
+ * fails can't leave it blocked.
+ * The participant understands these commands, as well as its state machine's own:
+ * "TXN-PREPARE <txid> <timestamp> <groups> <command>;<command>..." votes to prepare the transaction if none of the
+ * keys its commands touch are locked by another transaction, and locks them until the outcome is known. The
+ * groups are every participant of the transaction, separated by commas. Returns PREPARED, or ABORTED and why.
+ * "TXN-REFUSE <txid>" votes against the transaction if this group hasn't voted yet, so a coordinator finishing
+ * a transaction for another can make sure every participant has voted. Returns the group's vote.
+ * "TXN-COMMIT <txid>" applies the prepared commands, releases their locks, and returns COMMITTED followed by
+ * each command's result, separated by semicolons. "TXN-ABORT <txid>" releases the locks and returns ABORTED.
+ * A vote is never changed once it is made, and outcomes are remembered, so retried commands get the same answer.
+ * While a key is locked, other commands that touch it return LOCKED, so no one sees a transaction half applied.
+ * Transaction commands are applied on their own, as they touch several keys, and other commands are applied in
+ * parallel as the state machine allows.
+ */
+public class TransactionalStateMachine implements StateMachine {
+    public static final String PREPARED = "PREPARED"; // A vote to commit.
+    public static final String COMMITTED = "COMMITTED"; // The result of a committed transaction.
+    public static final String ABORTED = "ABORTED"; // A vote against, or the result of an aborted transaction.
+    public static final String LOCKED = "LOCKED"; // A key the command touches is locked by a transaction.
+    private static final int MAX_OUTCOMES = 10000; // How many finished transactions we remember the outcome of.
+
+    /**
+     * A transaction this group voted to prepare, whose outcome we don't know yet.
+     *
+     * @param txid      : String : the transaction's id.
+     * @param timestamp : long : when the coordinator started the transaction, in milliseconds.
+     * @param groups    : List<Integer> : every participant group of the transaction.
+     * @param commands  : List<String> : the transaction's commands for this group, in order.
+     */
+    public record Prepared(String txid, long timestamp, List<Integer> groups, List<String> commands) {
+    }
+
+    private final StateMachine stateMachine; // The state the commands are applied to.
+    // The transactions we voted to prepare, and the keys they lock. Changed only by transaction commands, which
+    // are applied on their own, but read while other commands are applied, and by a coordinator.
+    private final Map<String, Prepared> prepared = new ConcurrentHashMap<>();
+    private final Map<String, String> locks = new ConcurrentHashMap<>(); // key -> txid
+    // txid -> whether it committed, for transactions we know the outcome of, or voted against. Guarded by this.
+    private final LinkedHashMap<String, Boolean> outcomes = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_OUTCOMES;
+        }
+    };
+
+    /**
+     * Creates a participant that applies transactions to the given state machine.
+     *
+     * @param stateMachine : StateMachine : the state machine.
+     */
+    public TransactionalStateMachine(StateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+    }
+
+    @Override
+    public String apply(String command) {
+        if (!command.startsWith("TXN-")) {
+            if (!locks.isEmpty()) {
+                String key = stateMachine.keyOf(command);
+                if (key != null && locks.containsKey(key)) {
+                    return LOCKED;
+                }
+            }
+            return stateMachine.apply(command);
+        }
+        String[] parts = command.split(" ", 5);
+        switch (parts[0]) {
+            case "TXN-PREPARE":
+                if (parts.length != 5) {
+                    return "ERROR TXN-PREPARE takes 4 arguments";
+                }
+                try {
+                    return prepare(parts[1], Long.parseLong(parts[2]), parts[3], parts[4]);
+                } catch (NumberFormatException e) {
+                    return "ERROR " + e.getMessage();
+                }
+            case "TXN-REFUSE":
+                return parts.length == 2 ? refuse(parts[1]) : "ERROR TXN-REFUSE takes 1 argument";
+            case "TXN-COMMIT":
+                return parts.length == 2 ? commit(parts[1]) : "ERROR TXN-COMMIT takes 1 argument";
+            case "TXN-ABORT":
+                return parts.length == 2 ? abort(parts[1]) : "ERROR TXN-ABORT takes 1 argument";
+            default:
+                return "ERROR unknown command " + parts[0];
+        }
+    }
+
+    /**
+     * Votes on a transaction, preparing it if every key it touches is free.
+     */
+    private synchronized String prepare(String txid, long timestamp, String groups, String commands) {
+        String vote = voteOf(txid);
+        if (vote != null) {
+            return vote; // a vote is never changed.
+        }
+        List<Integer> participants = new ArrayList<>();
+        for (String group : groups.split(",")) {
+            participants.add(Integer.parseInt(group));
+        }
+        List<String> list = Arrays.asList(commands.split(";"));
+        List<String> keys = new ArrayList<>();
+        for (String command : list) {
+            String key = stateMachine.keyOf(command);
+            if (key == null) {
+                outcomes.put(txid, false);
+                return ABORTED + " " + command + " can't be part of a transaction";
+            }
+            String holder = locks.get(key);
+            if (holder != null && !holder.equals(txid)) {
+                outcomes.put(txid, false);
+                return ABORTED + " " + LOCKED; // the coordinator may retry it once the other transaction is done.
+            }
+            keys.add(key);
+        }
+        for (String key : keys) {
+            locks.put(key, txid);
+        }
+        prepared.put(txid, new Prepared(txid, timestamp, participants, list));
+        return PREPARED;
+    }
+
+    /**
+     * Votes against a transaction, unless this group already voted on it.
+     */
+    private synchronized String refuse(String txid) {
+        String vote = voteOf(txid);
+        if (vote != null) {
+            return vote;
+        }
+        outcomes.put(txid, false);
+        return ABORTED;
+    }
+
+    /**
+     * Returns how this group voted on a transaction.
+     *
+     * @return : String : PREPARED, ABORTED, or null if the group hasn't voted.
+     */
+    private String voteOf(String txid) {
+        if (prepared.containsKey(txid)) {
+            return PREPARED;
+        }
+        Boolean outcome = outcomes.get(txid);
+        return outcome == null ? null : outcome ? PREPARED : ABORTED; // only a yes vote can commit.
+    }
+
+    private synchronized String commit(String txid) {
+        Prepared transaction = prepared.remove(txid);
+        if (transaction == null) {
+            Boolean outcome = outcomes.get(txid);
+            // committed already, or a coordinator bug, as a transaction we didn't prepare can't commit.
+            return outcome != null && outcome ? COMMITTED : "ERROR " + txid + " was not prepared";
+        }
+        StringBuilder results = new StringBuilder(COMMITTED + " ");
+        for (int i = 0; i < transaction.commands().size(); i++) {
+            String command = transaction.commands().get(i);
+            locks.remove(stateMachine.keyOf(command), txid);
+            results.append(i == 0 ? "" : ";").append(stateMachine.apply(command));
+        }
+        outcomes.put(txid, true);
+        return results.toString();
+    }
+
+    private synchronized String abort(String txid) {
+        Prepared transaction = prepared.remove(txid);
+        if (transaction != null) {
+            for (String command : transaction.commands()) {
+                locks.remove(stateMachine.keyOf(command), txid);
+            }
+        }
+        outcomes.put(txid, false);
+        return ABORTED;
+    }
+
+    /**
+     * Returns the transactions this group prepared before the given time, and still doesn't know the outcome of,
+     * so a coordinator can finish them.
+     *
+     * @param before : long : the time, in milliseconds.
+     * @return : List<Prepared> : the transactions.
+     */
+    public List<Prepared> inDoubt(long before) {
+        List<Prepared> result = new ArrayList<>();
+        for (Prepared transaction : prepared.values()) {
+            if (transaction.timestamp() < before) {
+                result.add(transaction);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int partitions() {
+        return stateMachine.partitions();
+    }
+
+    @Override
+    public int partitionOf(String command) {
+        return command.startsWith("TXN-") ? -1 : stateMachine.partitionOf(command);
+    }
+
+    @Override
+    public int groupOf(String command, int groups) {
+        return stateMachine.groupOf(command, groups);
+    }
+
+    @Override
+    public String keyOf(String command) {
+        return stateMachine.keyOf(command);
+    }
+
+    /**
+     * Takes a snapshot of the state machine, followed by the prepared transactions and the outcomes we remember.
+     * The locks are those of the prepared transactions, so they aren't written.
+     *
+     * @return : byte[] : the snapshot.
+     */
+    @Override
+    public synchronized byte[] snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte[] state = stateMachine.snapshot();
+            out.writeInt(state.length);
+            out.write(state);
+            out.writeInt(prepared.size());
+            for (Prepared transaction : prepared.values()) {
+                out.writeUTF(transaction.txid());
+                out.writeLong(transaction.timestamp());
+                out.writeInt(transaction.groups().size());
+                for (int group : transaction.groups()) {
+                    out.writeInt(group);
+                }
+                out.writeInt(transaction.commands().size());
+                for (String command : transaction.commands()) {
+                    out.writeUTF(command);
+                }
+            }
+            out.writeInt(outcomes.size());
+            for (Map.Entry<String, Boolean> outcome : outcomes.entrySet()) {
+                out.writeUTF(outcome.getKey());
+                out.writeBoolean(outcome.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen writing to memory.
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the state machine and transactions with a snapshot taken by snapshot().
+     *
+     * @param snapshot : byte[] : the snapshot.
+     */
+    @Override
+    public synchronized void restore(byte[] snapshot) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+            byte[] state = new byte[in.readInt()];
+            in.readFully(state);
+            stateMachine.restore(state);
+            prepared.clear();
+            locks.clear();
+            outcomes.clear();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String txid = in.readUTF();
+                long timestamp = in.readLong();
+                List<Integer> groups = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    groups.add(in.readInt());
+                }
+                List<String> commands = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    String command = in.readUTF();
+                    commands.add(command);
+                    locks.put(stateMachine.keyOf(command), txid);
+                }
+                prepared.put(txid, new Prepared(txid, timestamp, groups, commands));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                outcomes.put(in.readUTF(), in.readBoolean());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt transactional snapshot.", e);
+        }
+    }
+}
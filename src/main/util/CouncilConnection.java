@@ -1,14 +1,14 @@
 package util;
 
+import member.FollowerRead;
 import member.Members;
 import message.Message;
+import message.MessageView;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.ConnectException;
 import java.net.Socket;
-import java.util.concurrent.atomic.AtomicReference;
+import java.net.SocketTimeoutException;
 import java.util.logging.Logger;
 
 /**
@@ -16,6 +16,7 @@ import java.util.logging.Logger;
  * members of the Adelaide Suburbs Council.
  */
 public class CouncilConnection {
+    private static final int READ_TIMEOUT_MS = 10000; // How long we wait for a message before giving up.
 
     /**
      * This class is a utility class and should not be instantiated.
@@ -56,48 +57,112 @@ public class CouncilConnection {
 
 
     /**
-     * This method reads a message from the BufferedReader and returns a Message object.
-     * The message is expected to be in the format "MESSAGE <member number>:<proposal number>".
-     * We read the message in a separate thread, so we can close the socket if it takes too long, or
-     * we can potentially get blocked forever. We time out after 10 seconds.
+     * This method asks the given member of the council for the president from its own state, so that reads can
+     * be spread over every member rather than all sent to the leader. The member will only answer if its state
+     * is no staler than the given bound.
+     *
+     * @param serverName     : String : the name of the server the member is running on.
+     * @param reader         : Members : the member the read is made on behalf of.
+     * @param member         : Members : the member to read from.
+     * @param maxStalenessMs : long : the most out of date, in milliseconds, the caller will accept.
+     * @return : FollowerRead : the member's answer, with its applied slot and how fresh it is.
+     * @throws IOException : if the member could not be reached, or its state was too stale.
+     */
+    public static FollowerRead followerRead(String serverName, Members reader, Members member, long maxStalenessMs)
+            throws IOException, InterruptedException {
+        try (Socket socket = getConnection(serverName, member.getPort())) {
+            if (socket == null) {
+                throw new IOException("Could not connect to " + member);
+            }
+            writeMessage(socket, "READ", reader, 0, null, String.valueOf(maxStalenessMs));
+            Message response = readMessage(socket);
+            if (!response.message().equals("READ-OK")) {
+                throw new IOException(member + "'s state is too stale to read from.");
+            }
+            return new FollowerRead(response.value(), response.proposalNum(), Long.parseLong(response.payload()));
+        }
+    }
+
+
+    /**
+     * This method reads a message from the socket and returns a Message object.
+     * The message is expected to be in the format "MESSAGE <member number>:<proposal number> <value>", optionally
+     * followed by a payload token, i.e. "MESSAGE <member number>:<proposal number> <value> <payload>".
+     * The read times out after 10 seconds, so we can't get blocked forever.
      *
      * @param clientSocket : Socket : the socket to read the message from.
      * @return : Message : the message object created from the message.
-     * @throws IOException : if the message could not be read from the BufferedReader.
+     * @throws IOException : if the message could not be read from the socket, or timed out.
      */
     public static Message readMessage(Socket clientSocket) throws IOException, InterruptedException {
-        AtomicReference<String> message = new AtomicReference<>();
-        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        // read the message in a separate thread, so we can time out if it takes too long
-        long startTime = System.currentTimeMillis(); // fetch starting time
-        new Thread(() -> {
-            try {
-                message.set(in.readLine());
-            } catch (IOException _) {
-                // die quietly
-            }
-        }).start();
-        // wait for the message to be read or time out after 10 seconds
-        while (message.get() == null && (System.currentTimeMillis() - startTime) < 10000) {
-            Thread.onSpinWait();
-            Thread.sleep(1000); // only check every second to avoid murdering the CPU
+        try (MessageView view = readView(clientSocket)) {
+            return view.toMessage();
         }
-        if (message.get() == null) {
-            // if the message is still null, we timed out
+    }
+
+
+    /**
+     * This method reads a message from the socket into a pooled MessageView, without creating any objects, for
+     * messages handled in the steady state, such as the replicated log's. The caller must close the view once
+     * it is done with it. The read times out after 10 seconds, in which case the socket is closed.
+     *
+     * @param clientSocket : Socket : the socket to read the message from.
+     * @return : MessageView : the message, decoded in place.
+     * @throws IOException : if the message could not be read from the socket, or timed out.
+     */
+    public static MessageView readView(Socket clientSocket) throws IOException {
+        MessageView view = MessageView.acquire();
+        try {
+            clientSocket.setSoTimeout(READ_TIMEOUT_MS);
+            return view.read(clientSocket.getInputStream());
+        } catch (SocketTimeoutException e) {
+            view.close();
             clientSocket.close(); // close the connection
             throw new IOException("Timed out while trying to read a message.");
+        } catch (IOException e) {
+            view.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * This method writes a message to the socket in the format "MESSAGE <port>:<proposal number> <value>",
+     * followed by the payload if there is one. The message is encoded into a pooled buffer and written in a
+     * single write, so no strings or writers are created.
+     *
+     * @param socket      : Socket : the socket to write the message to.
+     * @param type        : String : the type of the message.
+     * @param member      : Members : the member whose port goes in the message.
+     * @param proposalNum : int : the proposal number, or slot, of the message.
+     * @param value       : Members : the value of the message, or null if it has none.
+     * @param payload     : String : the payload of the message, or null if it has none.
+     * @throws IOException : if the message could not be written.
+     */
+    public static void writeMessage(Socket socket, String type, Members member, int proposalNum, Members value,
+                                    String payload) throws IOException {
+        writeMessage(socket, type, member, 0, proposalNum, value, payload);
+    }
+
+
+    /**
+     * This method writes a message for one of a member's log groups to the socket, in the same format as
+     * writeMessage, with the proposal number tagged with the group, unless it is the first group.
+     *
+     * @param socket      : Socket : the socket to write the message to.
+     * @param type        : String : the type of the message.
+     * @param member      : Members : the member whose port goes in the message.
+     * @param group       : int : the log group the message is for.
+     * @param proposalNum : int : the proposal number, or slot, of the message.
+     * @param value       : Members : the value of the message, or null if it has none.
+     * @param payload     : String : the payload of the message, or null if it has none.
+     * @throws IOException : if the message could not be written.
+     */
+    public static void writeMessage(Socket socket, String type, Members member, int group, int proposalNum,
+                                    Members value, String payload) throws IOException {
+        try (MessageView view = MessageView.acquire()) {
+            view.encode(type, member, group, proposalNum, value, payload).writeTo(socket.getOutputStream());
         }
-        String[] parts = message.get().split(" ");
-        String messageType = parts[0];
-        String[] proposalParts = parts[1].split(":");
-        Members sender = Members.getMemberFromPort(Integer.parseInt(proposalParts[0]));
-        int proposalNum = Integer.parseInt(proposalParts[1]);
-        String messageValue = parts[2];
-        if (messageValue.equals("_")) { // if the message value is "_", it means the message has no value
-            return new Message(proposalNum, sender, messageType, null);
-        } // otherwise, the message has a value, extract it as a Members constant
-        Members value = Members.getMember(Integer.parseInt(messageValue));
-        return new Message(proposalNum, sender, messageType, value);
     }
 
 }
@@ -0,0 +1,84 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A fixed-size, lock-free pool of reusable objects, such as message buffers. Objects are kept in an array of
+ * slots, and taken and returned with compare-and-set, so neither acquiring nor releasing allocates anything or
+ * blocks. Each thread starts looking at a different slot, so threads rarely contend for the same one.
+ * When the pool is empty a new object is created, and when it is full a released object is left to the garbage
+ * collector, so the pool never blocks and only the steady state is garbage free.
+ *
+ * @param <T> : the type of object pooled.
+ */
+public class ObjectPool<T> {
+    private final AtomicReferenceArray<T> slots; // The pooled objects, null where a slot is empty.
+    private final Supplier<T> factory; // Creates an object when the pool is empty.
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param capacity : int : the most objects the pool holds.
+     * @param factory  : Supplier<T> : creates an object when the pool is empty.
+     */
+    public ObjectPool(int capacity, Supplier<T> factory) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.factory = factory;
+    }
+
+    /**
+     * Takes an object from the pool, or creates one if the pool is empty.
+     *
+     * @return : T : the object.
+     */
+    public T acquire() {
+        int start = start();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            T item = slots.get(slot);
+            if (item != null && slots.compareAndSet(slot, item, null)) {
+                return item;
+            }
+        }
+        return factory.get();
+    }
+
+    /**
+     * Returns an object to the pool. The caller must not use the object afterwards.
+     *
+     * @param item : T : the object to return.
+     */
+    public void release(T item) {
+        int start = start();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, item)) {
+                return;
+            }
+        }
+        // the pool is full, so leave the object to the garbage collector.
+    }
+
+    /**
+     * Returns how many objects are in the pool.
+     *
+     * @return : int : the number of pooled objects.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private int start() {
+        return (int) (Thread.currentThread().threadId() % slots.length());
+    }
+}
@@ -0,0 +1,134 @@
+package client;
+
+import log.ReplicatedLog;
+import log.Result;
+import log.SessionTable;
+import member.Members;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CouncilClientTest {
+
+    private final static String HOST_DEFAULT = "localhost";
+
+
+    /**
+     * Tests that a reply that can't be parsed fails the command in flight rather than killing the client, which
+     * reconnects and carries on.
+     */
+    @Test
+    public void testMalformedReplyFailsCommandsInFlight() throws Exception {
+        try (ServerSocket server = new ServerSocket(Members.M1.getClientPort());
+             CouncilClient client = new CouncilClient(HOST_DEFAULT, 4)) {
+            CompletableFuture<Result> future = client.submit("PUT 1 1");
+            try (Connection member = new Connection(server.accept())) {
+                member.readSubmit();
+                member.out.println("RESULT garbage");
+                ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(IllegalStateException.class, e.getCause());
+            }
+            try (Connection member = new Connection(server.accept())) { // reconnected.
+                CompletableFuture<Result> next = client.submit("GET 1");
+                String request = member.readSubmit();
+                member.out.println("RESULT " + request + " 2 " + ReplicatedLog.encode("1"));
+                assertEquals(new Result(2, "1"), next.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+
+    /**
+     * Tests that a command whose session the council has forgotten fails, rather than completing with the
+     * SESSION-EXPIRED marker as if it were the command's result.
+     */
+    @Test
+    public void testExpiredSessionFails() throws Exception {
+        try (ServerSocket server = new ServerSocket(Members.M1.getClientPort());
+             CouncilClient client = new CouncilClient(HOST_DEFAULT, 4);
+             Connection member = new Connection(server.accept())) {
+            CompletableFuture<Result> future = client.submit("PUT 1 1");
+            String request = member.readSubmit();
+            member.out.println("RESULT " + request + " 0 " + ReplicatedLog.encode(SessionTable.EXPIRED));
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+    }
+
+
+    /**
+     * Tests that commands submitted from many threads at once are sent in the order they were numbered, so the
+     * council sees each session's commands in order.
+     */
+    @Test
+    public void testConcurrentSubmitsAreSentInOrder() throws Exception {
+        int threads = 8;
+        int perThread = 8;
+        try (ServerSocket server = new ServerSocket(Members.M1.getClientPort());
+             CouncilClient client = new CouncilClient(HOST_DEFAULT, threads * perThread);
+             Connection member = new Connection(server.accept())) {
+            List<Thread> submitters = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Thread submitter = new Thread(() -> {
+                    for (int j = 0; j < perThread; j++) {
+                        client.submit("INCR 1 1");
+                    }
+                });
+                submitters.add(submitter);
+                submitter.start();
+            }
+            for (long seq = 1; seq <= threads * perThread; seq++) {
+                assertEquals(seq, Long.parseLong(member.readSubmit().split(":")[1]));
+            }
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+        }
+    }
+
+
+    /**
+     * A connection the client made to a fake member, which the test drives by hand.
+     */
+    private static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+
+        /**
+         * Reads the next command the client submits.
+         *
+         * @return : String : the command's "<session>:<sequence>".
+         */
+        String readSubmit() throws IOException {
+            String[] parts = in.readLine().split(" ");
+            assertEquals("SUBMIT", parts[0]);
+            return parts[1];
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package log;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegionBatcherTest {
+
+    /**
+     * Tests that a batch is decoded to its entries, in the order they were sent.
+     */
+    @Test
+    public void testDecode() throws IOException {
+        String batch = batch(2, List.of(7, 5), List.of("1:1:PUT a 1", "1:2:PUT b é"), 0);
+        Map<Integer, String> entries = RegionBatcher.decode(batch);
+        assertEquals(List.of(7, 5), List.copyOf(entries.keySet()));
+        assertEquals("1:1:PUT a 1", entries.get(7));
+        assertEquals("1:2:PUT b é", entries.get(5));
+    }
+
+
+    /**
+     * Tests that a batch whose entries claim to be longer than the batch, or to have a negative length, or that
+     * isn't a batch at all, is refused as corrupt.
+     */
+    @Test
+    public void testCorruptBatches() throws IOException {
+        assertThrows(IOException.class, () -> RegionBatcher.decode(batch(1, List.of(1), List.of("entry"),
+                Integer.MAX_VALUE - 5))); // would need 2GB if we believed it.
+        assertThrows(IOException.class, () -> RegionBatcher.decode(batch(1, List.of(1), List.of("entry"), -10)));
+        assertThrows(IOException.class, () -> RegionBatcher.decode(batch(2, List.of(1), List.of("entry"), 0)));
+        assertThrows(IOException.class, () -> RegionBatcher.decode("not a batch!"));
+    }
+
+
+    /**
+     * Encodes a batch as RegionBatcher does, optionally claiming each entry is longer than it is.
+     *
+     * @param count   : int : how many entries the batch claims to hold.
+     * @param slots   : List<Integer> : the entries' slots.
+     * @param entries : List<String> : the entries.
+     * @param extra   : int : how much to add to each entry's length.
+     * @return : String : the batch.
+     */
+    private static String batch(int count, List<Integer> slots, List<String> entries, int extra) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(count);
+            for (int i = 0; i < slots.size(); i++) {
+                byte[] entry = entries.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(slots.get(i));
+                out.writeInt(entry.length + extra);
+                out.write(entry);
+            }
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+}
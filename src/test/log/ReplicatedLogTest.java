@@ -0,0 +1,552 @@
+package log;
+
+import member.Members;
+import member.RttTracker;
+import message.MessageView;
+import org.junit.jupiter.api.Test;
+import statemachine.KeyValueStore;
+import util.CouncilConnection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicatedLogTest {
+
+    /**
+     * Tests that a member whose APPEND failed isn't taken to have learned the commit index it carried, so a
+     * heartbeat still sends it a COMMIT.
+     */
+    @Test
+    public void testFailedSendsAreNotAnnounced() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M1, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M1"), executor);
+        List<FakeMember> others = new ArrayList<>();
+        try {
+            for (Members member : Members.values()) {
+                if (member != Members.M1) { // M2 to M5 make up a quorum with us for the first slot, and only it.
+                    boolean quorum = member.ordinal() <= Members.M5.ordinal();
+                    others.add(new FakeMember(member, message -> quorum && message.proposalNum() == 1));
+                }
+            }
+            assertEquals(1, log.submit(1, 1, "PUT 1 1").get(5, TimeUnit.SECONDS).slot());
+            log.submit(1, 2, "PUT 1 2"); // never stored by a quorum, but every APPEND of it carries commit index 1.
+            for (FakeMember member : others) {
+                assertTrue(member.waitFor("COMMIT 1", 5000), member.member + " wasn't sent the commit index.");
+            }
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that in thrifty mode an entry is only sent to the fastest members that make up a quorum with us, and
+     * the slow members only learn of it from the commit index.
+     */
+    @Test
+    public void testThriftySendsToTheFastestQuorum() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M1, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M1"), executor);
+        log.setThrifty(ranking());
+        List<FakeMember> others = new ArrayList<>();
+        try {
+            for (Members member : Members.values()) {
+                if (member != Members.M1) {
+                    others.add(new FakeMember(member, _ -> true));
+                }
+            }
+            assertEquals(1, log.submit(1, 1, "PUT 1 1").get(5, TimeUnit.SECONDS).slot());
+            for (FakeMember member : others.subList(4, 8)) { // M6 to M9.
+                assertTrue(member.waitFor("COMMIT 1", 5000), member.member + " wasn't sent the commit index.");
+                assertFalse(member.received.contains("APPEND 1"), member.member + " was sent the entry.");
+            }
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that in thrifty mode, if one of the fastest members doesn't store an entry, the slow members are sent
+     * it too, and it is still decided.
+     */
+    @Test
+    public void testThriftyFallsBackToTheRest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M1, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M1"), executor);
+        log.setThrifty(ranking());
+        List<FakeMember> others = new ArrayList<>();
+        try {
+            for (Members member : Members.values()) {
+                if (member != Members.M1) {
+                    others.add(new FakeMember(member, _ -> member != Members.M2));
+                }
+            }
+            assertEquals(1, log.submit(1, 1, "PUT 1 1").get(5, TimeUnit.SECONDS).slot());
+            for (FakeMember member : others) {
+                assertTrue(member.waitFor("APPEND 1", 5000), member.member + " wasn't sent the entry.");
+            }
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that the leader only takes the members a relay says stored an entry to have the commit index it
+     * carried, so a heartbeat still sends the rest a COMMIT.
+     */
+    @Test
+    public void testRelayAnnouncesOnlyTheMembersThatStored() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M1, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M1"), executor);
+        log.setRelays(1); // every other member is in the one relay group, so any of them may relay.
+        List<FakeMember> others = new ArrayList<>();
+        try {
+            for (Members member : Members.values()) {
+                if (member != Members.M1) { // the first slot is stored by a quorum, the second only by M2.
+                    others.add(new FakeMember(member, _ -> true,
+                            message -> message.proposalNum() == 1 ? "M2,M3,M4,M5" : "M2"));
+                }
+            }
+            assertEquals(1, log.submit(1, 1, "PUT 1 1").get(5, TimeUnit.SECONDS).slot());
+            log.submit(1, 2, "PUT 1 2"); // its relay carries commit index 1 to the whole group.
+            for (FakeMember member : others.subList(1, 8)) { // M3 to M9.
+                assertTrue(member.waitFor("COMMIT 1", 5000), member.member + " wasn't sent the commit index.");
+            }
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that a relay replies with the members of its group that stored the entry, once they all have replied,
+     * without holding the thread that handled the message while it waits for them.
+     */
+    @Test
+    public void testRelayRepliesOnceItsPeersHave() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M2, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M2"), executor);
+        CountDownLatch release = new CountDownLatch(1);
+        List<FakeMember> peers = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0);
+             Socket leader = new Socket("localhost", server.getLocalPort());
+             Socket relay = server.accept()) {
+            peers.add(new FakeMember(Members.M3, _ -> {
+                try {
+                    return release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }));
+            peers.add(new FakeMember(Members.M4, _ -> false));
+            CouncilConnection.writeMessage(leader, "APPEND-RELAY", Members.M1, 0, 1, null,
+                    "M3,M4;9:0:" + ReplicatedLog.encode("1:1:PUT 1 1"));
+            CompletableFuture<Void> replied;
+            try (MessageView message = CouncilConnection.readView(relay)) {
+                replied = log.handle(message, relay);
+            }
+            assertFalse(replied.isDone()); // M3 hasn't replied yet.
+            release.countDown();
+            replied.get(5, TimeUnit.SECONDS);
+            try (MessageView reply = CouncilConnection.readView(leader)) {
+                assertEquals("APPEND-OK", reply.message());
+                assertEquals(1, reply.proposalNum());
+                assertEquals("M2,M3", reply.payload());
+            }
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : peers) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that a new leader proposes again the entry with the highest ballot its promises report for each slot,
+     * fills a slot none of them stored with a no-op, and only then fills new slots.
+     */
+    @Test
+    public void testPrepareReproposesTheHighestBallots() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        KeyValueStore state = new KeyValueStore();
+        ReplicatedLog log = new ReplicatedLog(Members.M1, 0, () -> Members.M1, state, new WriteAheadLog("M1"),
+                executor);
+        List<FakeMember> others = new ArrayList<>();
+        try {
+            for (Members member : Members.values()) {
+                if (member != Members.M1) {
+                    others.add(new FakeMember(member, _ -> true));
+                }
+            }
+            others.get(0).promise = "0;1,3," + ReplicatedLog.encode("1:1:PUT 1 3");
+            others.get(1).promise = "0;1,7," + ReplicatedLog.encode("2:1:PUT 1 7") + ";3,2," +
+                    ReplicatedLog.encode("3:1:PUT 3 3");
+            assertEquals(4, log.submit(4, 1, "PUT 4 4").get(15, TimeUnit.SECONDS).slot());
+            assertEquals("7", state.apply("GET 1"));
+            assertEquals("3", state.apply("GET 3"));
+            assertTrue(others.get(0).received.contains("LOG-PREPARE 9"), "M2 wasn't asked to promise.");
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that a member refuses log messages with a lower ballot than it promised, and never acknowledges an
+     * entry for a slot it knows was decided with another, but does one it was decided with.
+     */
+    @Test
+    public void testRefusesLowerBallotsAndDecidedSlots() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M2, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M2"), executor);
+        String first = ReplicatedLog.encode("1:1:PUT 1 1");
+        try {
+            assertEquals("APPEND-OK _", send(log, "APPEND", 1, "18:0:" + first));
+            assertEquals("APPEND-REJECT 18", send(log, "APPEND", 2, "9:1:" + first));
+            assertEquals(0, log.getAppliedSlot()); // nor did it learn the lower ballot's commit index.
+            assertNull(send(log, "COMMIT", 1, "18"));
+            assertEquals(1, log.getAppliedSlot());
+            assertEquals("LOG-PROMISE 1", send(log, "LOG-PREPARE", 27, "0"));
+            assertEquals("LOG-REJECT 27", send(log, "LOG-PREPARE", 18, "0"));
+            assertEquals("APPEND-REJECT 27", send(log, "APPEND", 1, "27:1:" + ReplicatedLog.encode("1:1:PUT 1 2")));
+            assertEquals("APPEND-OK _", send(log, "APPEND", 1, "27:1:" + first));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Tests that a member catching up is sent entries too big for writeUTF, over 64KB.
+     */
+    @Test
+    public void testCatchUpCarriesLargeEntries() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog leader = new ReplicatedLog(Members.M1, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M1"), executor);
+        ReplicatedLog follower = new ReplicatedLog(Members.M2, 0, () -> Members.M1, new KeyValueStore(),
+                new WriteAheadLog("M2"), executor);
+        List<FakeMember> others = new ArrayList<>();
+        try (ServerSocket leaderPort = new ServerSocket(Members.M1.getPort());
+             ServerSocket followerPort = new ServerSocket(Members.M2.getPort())) {
+            serve(leaderPort, leader, null);
+            serve(followerPort, follower, "APPEND"); // only hears the leader's commits, so has to catch up.
+            for (Members member : Members.values()) {
+                if (member.ordinal() > Members.M2.ordinal()) {
+                    others.add(new FakeMember(member, _ -> true));
+                }
+            }
+            assertEquals(1, leader.submit(1, 1, "PUT 1 " + "1".repeat(100_000)).get(15, TimeUnit.SECONDS).slot());
+            long deadline = System.currentTimeMillis() + 15000;
+            while (follower.getAppliedSlot() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, follower.getAppliedSlot());
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+        }
+    }
+
+
+    /**
+     * Tests that a durable member keeps its snapshot in its data directory, and on restart loads it before
+     * replaying the entries after it from the write-ahead log.
+     */
+    @Test
+    public void testSnapshotSurvivesRestart() throws Exception {
+        Path data = Files.createTempDirectory("council-snapshots");
+        WriteAheadLog wal = new WriteAheadLog("M1");
+        wal.setDirectory(data);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReplicatedLog log = new ReplicatedLog(Members.M1, 0, () -> Members.M1, new KeyValueStore(), wal, executor);
+        List<FakeMember> others = new ArrayList<>();
+        try {
+            for (Members member : Members.values()) {
+                if (member != Members.M1) {
+                    others.add(new FakeMember(member, _ -> true));
+                }
+            }
+            wal.start(replayInto(log));
+            CompletableFuture<Result> last = null;
+            for (int i = 1; i <= 1003; i++) { // COMPACT_EVERY slots, and a few the snapshot doesn't cover.
+                last = log.submit(1, i, "PUT " + i + " " + i);
+                if (i == 1000) { // so the snapshot is taken at exactly 1000, not after a batch past it.
+                    assertEquals(1000, last.get(60, TimeUnit.SECONDS).slot());
+                }
+            }
+            assertEquals(1003, last.get(10, TimeUnit.SECONDS).slot());
+            assertTrue(Files.exists(data.resolve("snapshot-0-1000.bin")));
+            wal.close();
+
+            WriteAheadLog reopened = new WriteAheadLog("M1");
+            reopened.setDirectory(data);
+            KeyValueStore state = new KeyValueStore();
+            ReplicatedLog restarted = new ReplicatedLog(Members.M1, 0, () -> Members.M1, state, reopened, executor);
+            restarted.recoverSnapshot();
+            reopened.start(replayInto(restarted));
+            reopened.close();
+            assertEquals(1000, restarted.getAppliedSlot());
+            assertEquals("1000", state.apply("GET 1000"));
+            assertEquals(KeyValueStore.NONE, state.apply("GET 1001")); // only stored, the leader decides it again.
+        } finally {
+            executor.shutdownNow();
+            for (FakeMember member : others) {
+                member.close();
+            }
+            try (Stream<Path> files = Files.list(data)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(data);
+        }
+    }
+
+
+    /**
+     * Hands every message that arrives on a port to a replica, each on a thread of its own, until the port is
+     * closed.
+     *
+     * @param server  : ServerSocket : the port.
+     * @param log     : ReplicatedLog : the replica.
+     * @param dropped : String : a type of message to drop without a reply, or null to drop none.
+     */
+    private static void serve(ServerSocket server, ReplicatedLog log, String dropped) {
+        new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    new Thread(() -> {
+                        try (socket) {
+                            CompletableFuture<Void> replied = null;
+                            try (MessageView message = CouncilConnection.readView(socket)) {
+                                if (!message.message().equals(dropped)) {
+                                    replied = log.handle(message, socket);
+                                }
+                            }
+                            if (replied != null) {
+                                replied.get(5, TimeUnit.SECONDS); // the reply may be sent once we return.
+                            }
+                        } catch (Exception e) {
+                            // closed, or a message we couldn't handle.
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // closed.
+                }
+            }
+        }).start();
+    }
+
+
+    /**
+     * Returns a replay that restores what a write-ahead log holds into a replica.
+     *
+     * @param log : ReplicatedLog : the replica.
+     * @return : WriteAheadLog.Replay : the replay.
+     */
+    private static WriteAheadLog.Replay replayInto(ReplicatedLog log) {
+        return new WriteAheadLog.Replay() {
+            @Override
+            public void promise(int proposalNum) {
+            }
+
+            @Override
+            public void accept(int proposalNum, Members value) {
+            }
+
+            @Override
+            public void append(int group, int slot, int ballot, String entry) {
+                log.recover(slot, ballot, entry);
+            }
+
+            @Override
+            public void ballot(int group, int ballot) {
+                log.recoverBallot(ballot);
+            }
+        };
+    }
+
+
+    /**
+     * Sends a replica a log message from M1, and returns its reply.
+     *
+     * @param log     : ReplicatedLog : the replica.
+     * @param type    : String : the message's type.
+     * @param number  : int : the message's slot or ballot.
+     * @param payload : String : the message's payload.
+     * @return : String : the reply's type and payload, "_" if it has none, or null if there was no reply.
+     */
+    private static String send(ReplicatedLog log, String type, int number, String payload) throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             Socket leader = new Socket("localhost", server.getLocalPort())) {
+            try (Socket member = server.accept()) {
+                CouncilConnection.writeMessage(leader, type, Members.M1, number, null, payload);
+                CompletableFuture<Void> replied;
+                try (MessageView message = CouncilConnection.readView(member)) {
+                    replied = log.handle(message, member);
+                }
+                assertNotNull(replied);
+                replied.get(5, TimeUnit.SECONDS);
+            }
+            String reply = new BufferedReader(new InputStreamReader(leader.getInputStream())).readLine();
+            if (reply == null) {
+                return null; // no reply.
+            }
+            String[] parts = reply.split(" ");
+            return parts[0] + " " + (parts.length > 3 ? parts[3] : "_");
+        }
+    }
+
+
+    /**
+     * Returns a ranking with M2 to M5 much faster than M6 to M9.
+     *
+     * @return : RttTracker : the ranking.
+     */
+    private static RttTracker ranking() {
+        RttTracker ranking = new RttTracker();
+        for (Members member : Members.values()) {
+            ranking.record(member, member.ordinal() <= Members.M5.ordinal() ? 1_000_000 : 100_000_000);
+        }
+        return ranking;
+    }
+
+
+    /**
+     * A member that records the messages it is sent, stores the entries it is told to, and promises every ballot.
+     */
+    private static class FakeMember {
+        private final Members member;
+        // What it promises a new leader, "<applied slot>;<slot>,<ballot>,<encoded entry>;...".
+        private volatile String promise = "0";
+        private final ServerSocket server;
+        private final List<String> received = new CopyOnWriteArrayList<>(); // "<type> <number>".
+        private final Thread thread; // Accepts the leader's connections, one at a time.
+        private volatile Socket current = null; // The connection being handled, closed with us.
+
+        /**
+         * Starts a fake member on a member's port, which doesn't relay.
+         *
+         * @param member : Members : the member it stands in for.
+         * @param stores : Predicate<MessageView> : whether it stores an APPEND's entry, rather than refusing it.
+         */
+        FakeMember(Members member, Predicate<MessageView> stores) throws IOException {
+            this(member, stores, _ -> null);
+        }
+
+
+        /**
+         * Starts a fake member on a member's port.
+         *
+         * @param member  : Members : the member it stands in for.
+         * @param stores  : Predicate<MessageView> : whether it stores an APPEND's entry, rather than refusing it.
+         * @param relayed : Function<MessageView, String> : which members it says stored an APPEND-RELAY's entry,
+         *                null to refuse it.
+         */
+        FakeMember(Members member, Predicate<MessageView> stores, Function<MessageView, String> relayed)
+                throws IOException {
+            this.member = member;
+            this.server = new ServerSocket(member.getPort());
+            this.thread = Thread.ofVirtual().start(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept(); MessageView message = CouncilConnection.readView(
+                            current = socket)) {
+                        received.add(message.message() + " " + message.proposalNum());
+                        if (message.message().equals("LOG-PREPARE")) {
+                            CouncilConnection.writeMessage(socket, "LOG-PROMISE", message.sender(), message.group(),
+                                    message.proposalNum(), null, promise);
+                        } else if (message.message().equals("APPEND-RELAY")) {
+                            String stored = relayed.apply(message);
+                            CouncilConnection.writeMessage(socket, stored != null ? "APPEND-OK" : "APPEND-REJECT",
+                                    message.sender(), message.group(), message.proposalNum(), null, stored);
+                        } else if (message.message().startsWith("APPEND")) {
+                            CouncilConnection.writeMessage(socket, stores.test(message) ? "APPEND-OK" :
+                                    "APPEND-REJECT", message.sender(), message.group(), message.proposalNum(), null,
+                                    null);
+                        }
+                    } catch (IOException e) {
+                        // closed, or the leader gave up on us.
+                    }
+                }
+            });
+        }
+
+
+        /**
+         * Waits for a message to arrive.
+         *
+         * @param message : String : the message's "<type> <number>".
+         * @param millis  : long : how long to wait.
+         * @return : boolean : true if it arrived in time.
+         */
+        boolean waitFor(String message, long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            while (!received.contains(message)) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+
+
+        /**
+         * Stops the fake member, and waits until its port is free for the next test.
+         */
+        void close() throws IOException, InterruptedException {
+            server.close();
+            Socket socket = current;
+            if (socket != null) {
+                socket.close();
+            }
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package log;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionTableTest {
+
+    /**
+     * Tests that a command that has been applied returns its original result when it is retried.
+     */
+    @Test
+    public void testRetryReturnsRecordedResult() {
+        SessionTable table = new SessionTable(10);
+        assertNull(table.lookup(1, 1));
+        table.record(1, 1, new Result(7, "OK"));
+        Result retry = table.lookup(1, 1);
+        assertNotNull(retry);
+        assertEquals(7, retry.slot());
+        assertEquals("OK", retry.value());
+        assertNull(table.lookup(1, 2)); // the next command hasn't been applied.
+    }
+
+
+    /**
+     * Tests that a command arriving after a later command of the same session is still applied.
+     */
+    @Test
+    public void testOutOfOrderCommandIsApplied() {
+        SessionTable table = new SessionTable(10);
+        table.record(1, 1, new Result(1, "OK"));
+        table.record(1, 3, new Result(2, "OK"));
+        assertNull(table.lookup(1, 2));
+    }
+
+
+    /**
+     * Tests that the table holds a bounded number of sessions, and refuses commands from sessions it has evicted.
+     */
+    @Test
+    public void testEvictedSessionIsRefused() {
+        SessionTable table = new SessionTable(2);
+        table.record(1, 1, new Result(1, "OK"));
+        table.record(2, 1, new Result(2, "OK"));
+        table.record(3, 1, new Result(3, "OK"));
+        assertEquals(2, table.size());
+        assertEquals(SessionTable.EXPIRED, table.lookup(1, 2).value());
+    }
+
+
+    /**
+     * Tests that looking a command up, as a leader does when the command arrives, doesn't save its session from
+     * eviction, while applying a command of the session does.
+     */
+    @Test
+    public void testOnlyApplyingUsesASession() {
+        SessionTable table = new SessionTable(2);
+        table.record(1, 1, new Result(1, "OK"));
+        table.record(2, 1, new Result(2, "OK"));
+        assertNull(table.lookup(1, 2));
+        table.record(3, 1, new Result(3, "OK"));
+        assertEquals(SessionTable.EXPIRED, table.lookup(1, 2).value()); // the lookup didn't use session 1.
+        table.touch(2);
+        table.record(4, 1, new Result(4, "OK"));
+        assertEquals("OK", table.lookup(2, 1).value()); // touching kept session 2, so 3 was evicted.
+        assertEquals(SessionTable.EXPIRED, table.lookup(3, 2).value());
+    }
+
+    /**
+     * Tests that a session registered with a log group has its commands applied, whatever they are numbered, as
+     * its earlier commands went to other groups, and that its commands are refused once it has been evicted.
+     */
+    @Test
+    public void testRegisteredSession() {
+        SessionTable table = new SessionTable(1);
+        assertEquals(SessionTable.EXPIRED, table.lookup(1, 5).value()); // not registered, so we can't tell.
+        assertNull(table.lookup(1, SessionTable.REGISTRATION));
+        table.register(1);
+        assertEquals("", table.lookup(1, SessionTable.REGISTRATION).value()); // registering again does nothing.
+        assertNull(table.lookup(1, 5));
+        table.record(1, 5, new Result(1, "OK"));
+        table.register(1);
+        assertEquals("OK", table.lookup(1, 5).value());
+        table.register(2);
+        assertEquals(SessionTable.EXPIRED, table.lookup(1, 5).value());
+        assertEquals(SessionTable.EXPIRED, table.lookup(1, 6).value());
+    }
+
+    /**
+     * Tests that results older than the window are forgotten and refused rather than applied again.
+     */
+    @Test
+    public void testResultsOutsideWindowAreRefused() {
+        SessionTable table = new SessionTable(10);
+        for (int seq = 1; seq <= SessionTable.WINDOW + 1; seq++) {
+            table.record(1, seq, new Result(seq, "OK"));
+        }
+        assertEquals(SessionTable.EXPIRED, table.lookup(1, 1).value());
+        assertEquals(SessionTable.WINDOW + 1, table.lookup(1, SessionTable.WINDOW + 1).slot());
+    }
+}
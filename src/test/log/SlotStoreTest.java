@@ -0,0 +1,91 @@
+package log;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SlotStoreTest {
+
+    /**
+     * Tests that entries are stored and read back, and that only stored slots can be decided.
+     */
+    @Test
+    public void testPutAndDecide() {
+        try (SlotStore store = new SlotStore()) {
+            store.put(1, 1, "1:1:PUT a 1");
+            store.put(2, 1, "1:2:PUT b é"); // not ASCII.
+            assertEquals("1:1:PUT a 1", store.get(1));
+            assertEquals("1:2:PUT b é", store.get(2));
+            assertNull(store.get(3));
+            assertNull(store.getDecided(1));
+            assertTrue(store.decide(1));
+            assertFalse(store.decide(3));
+            assertEquals("1:1:PUT a 1", store.getDecided(1));
+            store.put(1, 1, "1:1:PUT a 2"); // a decided entry never changes.
+            assertEquals("1:1:PUT a 1", store.getDecided(1));
+        }
+    }
+
+
+    /**
+     * Tests that an undecided entry can be replaced, by a shorter entry stored over it, or by a longer one, along
+     * with the ballot it was stored for.
+     */
+    @Test
+    public void testReplaceUndecided() {
+        try (SlotStore store = new SlotStore()) {
+            store.put(1, 1, "1:1:PUT a 100");
+            store.put(2, 1, "1:2:PUT b 2");
+            store.put(1, 2, "2:1:DEL a"); // shorter, so stored over the old entry, by a later leader.
+            assertEquals("2:1:DEL a", store.get(1));
+            assertEquals(2, store.ballotOf(1));
+            assertEquals(1, store.ballotOf(2));
+            assertEquals(0, store.ballotOf(3)); // never stored.
+            assertEquals("1:2:PUT b 2", store.get(2)); // its neighbour is untouched.
+            store.put(1, 3, "2:1:PUT a 12345"); // longer, so stored afresh.
+            assertEquals("2:1:PUT a 12345", store.get(1));
+            assertEquals("1:2:PUT b 2", store.get(2));
+            assertTrue(store.decide(1));
+            assertEquals("2:1:PUT a 12345", store.getDecided(1));
+        }
+    }
+
+
+    /**
+     * Tests that entries bigger than a chunk, and enough entries to fill several chunks, are stored intact.
+     */
+    @Test
+    public void testLargeEntries() {
+        try (SlotStore store = new SlotStore()) {
+            String big = "x".repeat(300 * 1024);
+            store.put(5, 1, big);
+            for (int slot = 6; slot < 2000; slot++) {
+                store.put(slot, 1, "entry " + slot + " " + "y".repeat(500));
+            }
+            assertEquals(big, store.get(5));
+            assertEquals("entry 1999 " + "y".repeat(500), store.get(1999));
+        }
+    }
+
+
+    /**
+     * Tests that truncating drops every slot up to the given one, frees segments wholly before it, and ignores
+     * later puts to dropped slots.
+     */
+    @Test
+    public void testTruncate() {
+        try (SlotStore store = new SlotStore()) {
+            for (int slot = 1; slot <= 3 * SlotStore.SEGMENT_SLOTS; slot++) {
+                store.put(slot, 1, String.valueOf(slot));
+            }
+            assertEquals(4, store.segmentCount()); // slot 0 shares the first segment, so the last slot starts a fourth.
+            store.truncate(2 * SlotStore.SEGMENT_SLOTS + 5);
+            assertEquals(2, store.segmentCount());
+            assertNull(store.get(2 * SlotStore.SEGMENT_SLOTS + 5));
+            assertFalse(store.decide(2 * SlotStore.SEGMENT_SLOTS));
+            assertEquals(String.valueOf(2 * SlotStore.SEGMENT_SLOTS + 6), store.get(2 * SlotStore.SEGMENT_SLOTS + 6));
+            store.put(10, 1, "late");
+            assertNull(store.get(10));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package log;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTransferTest {
+
+    /**
+     * Tests that a snapshot spanning several windows of chunks arrives intact over plain streams, with the member
+     * acknowledging each window as it goes.
+     */
+    @Test
+    public void testTransfer() throws Exception {
+        byte[] data = snapshotData(SnapshotTransfer.CHUNK_SIZE * (SnapshotTransfer.WINDOW * 2 + 1) + 123, 1);
+        Path source = tempFile(data);
+        Path target = tempFile(new byte[0]);
+        PipedOutputStream toMember = new PipedOutputStream();
+        PipedInputStream memberIn = new PipedInputStream(toMember, SnapshotTransfer.CHUNK_SIZE);
+        PipedOutputStream toLeader = new PipedOutputStream();
+        PipedInputStream leaderIn = new PipedInputStream(toLeader);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Snapshot> received = executor.submit(() -> SnapshotTransfer.receive(
+                new DataInputStream(memberIn), new DataOutputStream(toLeader), target));
+        try (FileChannel file = FileChannel.open(source)) {
+            SnapshotTransfer.send(42, file, new DataOutputStream(toMember), new DataInputStream(leaderIn), null);
+        }
+        Snapshot snapshot = received.get();
+        executor.shutdown();
+        assertEquals(42, snapshot.lastSlot());
+        assertArrayEquals(data, Files.readAllBytes(snapshot.file()));
+    }
+
+
+    /**
+     * Tests that a snapshot sent with transferTo over a socket channel arrives intact.
+     */
+    @Test
+    public void testTransferOverSocketChannel() throws Exception {
+        byte[] data = snapshotData(SnapshotTransfer.CHUNK_SIZE * (SnapshotTransfer.WINDOW + 3) + 7, 3);
+        Path source = tempFile(data);
+        Path target = tempFile(new byte[0]);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            Future<Snapshot> received = executor.submit(() -> {
+                try (Socket socket = new Socket("localhost", server.socket().getLocalPort())) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    return SnapshotTransfer.receive(in, new DataOutputStream(socket.getOutputStream()), target);
+                }
+            });
+            try (SocketChannel channel = server.accept(); FileChannel file = FileChannel.open(source)) {
+                Socket socket = channel.socket();
+                SnapshotTransfer.send(7, file, new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())),
+                        new DataInputStream(socket.getInputStream()), channel);
+            }
+            Snapshot snapshot = received.get();
+            assertEquals(7, snapshot.lastSlot());
+            assertArrayEquals(data, Files.readAllBytes(snapshot.file()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Tests that a chunk corrupted on the way fails its checksum.
+     */
+    @Test
+    public void testCorruptChunkIsDetected() throws IOException {
+        Path source = tempFile(snapshotData(1000, 2));
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        // the member's acknowledgement of the only chunk.
+        DataInputStream acks = new DataInputStream(new ByteArrayInputStream(new byte[]{0, 0, 0, 1}));
+        try (FileChannel file = FileChannel.open(source)) {
+            SnapshotTransfer.send(1, file, new DataOutputStream(sent), acks, null);
+        }
+        byte[] stream = sent.toByteArray();
+        stream[stream.length - 1] ^= 1; // flip a bit in the last byte of the chunk.
+        Path target = tempFile(new byte[0]);
+        assertThrows(IOException.class, () -> SnapshotTransfer.receive(
+                new DataInputStream(new ByteArrayInputStream(stream)),
+                new DataOutputStream(OutputStream.nullOutputStream()), target));
+    }
+
+
+    private static byte[] snapshotData(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+
+    private static Path tempFile(byte[] data) throws IOException {
+        Path file = Files.createTempFile("snapshot-test-", ".bin");
+        file.toFile().deleteOnExit();
+        return Files.write(file, data);
+    }
+}
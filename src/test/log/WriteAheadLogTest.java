@@ -0,0 +1,172 @@
+package log;
+
+import member.Members;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    /**
+     * Records everything replayed from a write-ahead log.
+     */
+    private static class Recorder implements WriteAheadLog.Replay {
+        int promised = 0;
+        int acceptedNum = 0;
+        Members acceptedValue = null;
+        final Map<Integer, String> entries = new TreeMap<>(); // the first group's entries.
+        final Map<Integer, String> otherEntries = new TreeMap<>(); // the second group's entries.
+        final Map<Integer, Integer> ballots = new TreeMap<>(); // group -> the highest ballot replayed.
+
+        @Override
+        public void promise(int proposalNum) {
+            promised = Math.max(promised, proposalNum);
+        }
+
+        @Override
+        public void accept(int proposalNum, Members value) {
+            acceptedNum = proposalNum;
+            acceptedValue = value;
+        }
+
+        @Override
+        public void append(int group, int slot, int ballot, String entry) {
+            (group == 0 ? entries : otherEntries).put(slot, entry);
+            ballot(group, ballot);
+        }
+
+        @Override
+        public void ballot(int group, int ballot) {
+            ballots.merge(group, ballot, Math::max);
+        }
+    }
+
+
+    /**
+     * Tests that promises, accepts, ballots and entries written before a restart are replayed after it, each entry
+     * to the log group it was appended to.
+     */
+    @Test
+    public void testReplay() throws IOException {
+        Path directory = Files.createTempDirectory("wal-test-");
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.setDirectory(directory);
+            wal.start(new Recorder());
+            assertTrue(wal.await(wal.promise(3)));
+            assertTrue(wal.await(wal.accept(3, Members.M2)));
+            assertTrue(wal.await(wal.append(0, 1, 10, "1:1:PUT 1 1")));
+            assertTrue(wal.await(wal.append(0, 2, 10, "1:2:PUT 2 é")));
+            assertTrue(wal.await(wal.ballot(1, 20)));
+            assertTrue(wal.await(wal.append(1, 1, 10, "1:3:PUT 3 3")));
+        }
+        Recorder recorder = new Recorder();
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.setDirectory(directory);
+            wal.start(recorder);
+        }
+        assertEquals(3, recorder.promised);
+        assertEquals(3, recorder.acceptedNum);
+        assertEquals(Members.M2, recorder.acceptedValue);
+        assertEquals(Map.of(1, "1:1:PUT 1 1", 2, "1:2:PUT 2 é"), recorder.entries);
+        assertEquals(Map.of(1, "1:3:PUT 3 3"), recorder.otherEntries);
+        assertEquals(Map.of(0, 10, 1, 20), recorder.ballots);
+    }
+
+
+    /**
+     * Tests that a record torn by a crash at the end of a segment is ignored, and everything before it replayed.
+     */
+    @Test
+    public void testTornRecordIsIgnored() throws IOException {
+        Path directory = Files.createTempDirectory("wal-test-");
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.setDirectory(directory);
+            wal.start(new Recorder());
+            assertTrue(wal.await(wal.append(0, 7, 1, "kept")));
+        }
+        // the start of a record that never finished being written.
+        Files.write(directory.resolve("wal-0.log"), new byte[]{0, 0, 0, 50, 1, 2}, StandardOpenOption.APPEND);
+        Recorder recorder = new Recorder();
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.setDirectory(directory);
+            wal.start(recorder);
+        }
+        assertEquals(Map.of(7, "kept"), recorder.entries);
+    }
+
+
+    /**
+     * Tests that records written concurrently by many threads all become durable, and are all replayed.
+     */
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        Path directory = Files.createTempDirectory("wal-test-");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.setDirectory(directory);
+            wal.start(new Recorder());
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int slot = 1; slot <= 1000; slot++) {
+                int s = slot;
+                results.add(executor.submit(() -> wal.await(wal.append(0, s, 1, "entry " + s))));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Recorder recorder = new Recorder();
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.setDirectory(directory);
+            wal.start(recorder);
+        }
+        assertEquals(1000, recorder.entries.size());
+        assertEquals("entry 1000", recorder.entries.get(1000));
+    }
+
+
+    /**
+     * Tests that without a data directory nothing is written, and every record is durable straight away.
+     */
+    @Test
+    public void testInMemory() throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog("M1")) {
+            wal.start(new Recorder());
+            CompletableFuture<Void> done = wal.append(0, 1, 1, "entry");
+            assertTrue(done.isDone());
+            assertTrue(wal.await(done));
+        }
+    }
+
+
+    /**
+     * Tests that records logged after the log is closed fail, rather than being reported durable when nothing
+     * will write them.
+     */
+    @Test
+    public void testClosedLogFailsRecords() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog("M1");
+        wal.setDirectory(Files.createTempDirectory("wal-test-"));
+        wal.start(new Recorder());
+        assertTrue(wal.await(wal.promise(1)));
+        wal.close();
+        CompletableFuture<Void> done = wal.promise(2);
+        assertTrue(done.isCompletedExceptionally());
+        assertFalse(wal.await(done));
+        assertFalse(wal.await(wal.append(0, 1, 1, "entry")));
+    }
+}
@@ -0,0 +1,89 @@
+package member;
+
+import message.Message;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LearnerTest {
+
+    /**
+     * Returns the ACCEPTED message an acceptor broadcasts when it accepts a proposal.
+     *
+     * @param acceptor    : Members : the acceptor.
+     * @param proposer    : Members : the proposer whose proposal it accepted.
+     * @param proposalNum : int : the proposal number.
+     * @param value       : Members : the value it accepted.
+     * @return : Message : the message.
+     */
+    private static Message accepted(Members acceptor, Members proposer, int proposalNum, Members value) {
+        return new Message(proposalNum, acceptor, "ACCEPTED", value, String.valueOf(proposer.getPort()));
+    }
+
+
+    /**
+     * Tests that a value is chosen once a majority has accepted the same proposal, and not before.
+     */
+    @Test
+    public void testLearnsOnQuorum() {
+        Learner learner = new Learner();
+        Members[] acceptors = Members.values();
+        int majority = acceptors.length / 2 + 1;
+        for (int i = 0; i < majority - 1; i++) {
+            assertNull(learner.learn(accepted(acceptors[i], Members.M1, 1, Members.M4)));
+        }
+        assertNull(learner.getChosen());
+        assertEquals(Members.M4, learner.learn(accepted(acceptors[majority - 1], Members.M1, 1, Members.M4)));
+        assertEquals(Members.M4, learner.getChosen());
+    }
+
+
+    /**
+     * Tests that an acceptor broadcasting the same acceptance more than once is only counted once, and that
+     * acceptances of different proposals aren't added together.
+     */
+    @Test
+    public void testDuplicatesAndOtherProposals() {
+        Learner learner = new Learner();
+        for (int i = 0; i < 10; i++) {
+            assertNull(learner.learn(accepted(Members.M2, Members.M1, 1, Members.M4)));
+        }
+        assertNull(learner.learn(accepted(Members.M3, Members.M1, 2, Members.M4))); // a later proposal.
+        assertNull(learner.learn(accepted(Members.M4, Members.M2, 1, Members.M4))); // another proposer's.
+        assertNull(learner.learn(accepted(Members.M5, Members.M1, 1, null))); // no value, so not an acceptance.
+        assertNull(learner.getChosen());
+    }
+
+
+    /**
+     * Tests that a read waiting for the learner is woken once it learns the chosen value, and gives up if it
+     * doesn't learn one in time.
+     */
+    @Test
+    public void testAwaitChosen() throws InterruptedException {
+        Learner learner = new Learner();
+        assertNull(learner.awaitChosen(50));
+        Thread later = new Thread(() -> learner.chosen(Members.M4));
+        later.start();
+        assertEquals(Members.M4, learner.awaitChosen(5000));
+        later.join();
+        learner.chosen(Members.M6); // a chosen value can never change.
+        assertEquals(Members.M4, learner.awaitChosen(0));
+    }
+
+
+    /**
+     * Tests that once a value is chosen, late acceptances of other proposals can't change it.
+     */
+    @Test
+    public void testLateAcceptances() {
+        Learner learner = new Learner();
+        for (Members acceptor : new Members[]{Members.M2, Members.M3, Members.M7, Members.M8}) {
+            learner.learn(accepted(acceptor, Members.M1, 1, Members.M4));
+        }
+        assertEquals(Members.M4, learner.learn(accepted(Members.M9, Members.M1, 1, Members.M4)));
+        assertEquals(Members.M4, learner.learn(accepted(Members.M5, Members.M2, 3, Members.M6)));
+        assertEquals(Members.M4, learner.learn(accepted(Members.M6, Members.M2, 3, Members.M6)));
+        assertEquals(Members.M4, learner.getChosen());
+    }
+}
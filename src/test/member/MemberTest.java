@@ -10,6 +10,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,7 +49,7 @@ public class MemberTest {
 
     /**
      * Tests that a member set to proposer will try and connect to other members and
-     * send a prepare message in the correct format.
+     * send a pre-vote request for its first proposal number in the correct format, before it prepares.
      */
     @Test
     public void testPrepare() throws ExecutionException, InterruptedException {
@@ -65,14 +67,14 @@ public class MemberTest {
         Member mem = new MemberImpl(1, true);
         mem.prepare();
         String message = future.get();
-        assertTrue(message.contains("PREPARE 4005:1 _"));
+        assertTrue(message.startsWith("PRE-PREPARE 4005:1 _"));
         System.out.println("Message received: " + message);
     }
 
 
     /**
      * Tests that a member set to proposer will try and connect to multiple other members and
-     * send a prepare message in the correct format.
+     * send a pre-vote request in the correct format.
      */
     @Test
     public void testMultiPrepare() throws ExecutionException, InterruptedException {
@@ -85,7 +87,7 @@ public class MemberTest {
             messages.add(future.get());
         }
         for (String message : messages) {
-            assertTrue(message.contains("PREPARE 4005:1 _"));
+            assertTrue(message.startsWith("PRE-PREPARE 4005:1 _"));
             System.out.println("Message received: " + message);
         }
     }
@@ -93,7 +95,7 @@ public class MemberTest {
 
     /**
      * Tests that a member set to proposer will try and connect to multiple other members and
-     * send a prepare message to all 8 other members in the correct format.
+     * send a pre-vote request to all 8 other members in the correct format.
      */
     @Test
     public void testMultiPrepareAll8() throws ExecutionException, InterruptedException {
@@ -106,7 +108,7 @@ public class MemberTest {
             messages.add(future.get());
         }
         for (String message : messages) {
-            assertTrue(message.contains("PREPARE 4005:1 _"));
+            assertTrue(message.startsWith("PRE-PREPARE 4005:1 _"));
             System.out.println("Message received: " + message);
         }
     }
@@ -130,6 +132,238 @@ public class MemberTest {
     }
 
 
+    /**
+     * Tests that an acceptor won't pre-vote for a proposer while another proposer's round may be in progress,
+     * but will for the proposer whose round it is, and that pre-voting doesn't change what it has promised.
+     */
+    @Test
+    public void testPreVote() throws IOException, InterruptedException {
+        Member mem = new MemberImpl(4, false);
+        assertEquals("PRE-PREPARE-OK 4006:1 _", exchange(mem, "PRE-PREPARE 4006:1 _"));
+        assertEquals("PREPARE-OK 4005:1 _", exchange(mem, "PREPARE 4005:1 _")); // the pre-vote promised nothing.
+        assertEquals("PRE-PREPARE-REJECT 4006:1 _", exchange(mem, "PRE-PREPARE 4006:2 _"));
+        assertEquals("PRE-PREPARE-OK 4005:2 _", exchange(mem, "PRE-PREPARE 4005:2 _"));
+        assertEquals("PRE-PREPARE-REJECT 4005:1 _", exchange(mem, "PRE-PREPARE 4005:1 _")); // not above 1.
+    }
+
+
+    /**
+     * Tests that a member learns the president from a DECIDE, that a duplicate DECIDE changes nothing, and that a
+     * late DECIDE from a proposal below one it has since promised is ignored.
+     */
+    @Test
+    public void testDecide() throws IOException, InterruptedException {
+        Member mem = new MemberImpl(6, false);
+        assertNull(exchange(mem, "DECIDE 4005:1 3")); // DECIDE has no reply.
+        assertEquals(Members.M3, mem.whoIsPresident());
+        assertNull(exchange(mem, "DECIDE 4005:1 3"));
+        assertEquals(Members.M3, mem.whoIsPresident());
+        assertEquals("PREPARE-OK 4006:5 _", exchange(mem, "PREPARE 4006:5 _")); // it accepted nothing itself.
+        assertNull(exchange(mem, "DECIDE 4007:2 8")); // decided before our promise of 5, so it is stale.
+        assertEquals(Members.M3, mem.whoIsPresident());
+        assertNull(exchange(mem, "DECIDE 4006:5 3"));
+        assertEquals(Members.M3, mem.whoIsPresident());
+    }
+
+
+    /**
+     * Tests that a linearizable read returns the president once the member's learner has seen it chosen, without
+     * contacting anyone.
+     */
+    @Test
+    public void testReadPresidentOnceChosen() throws IOException, InterruptedException {
+        Member mem = new MemberImpl(7, false);
+        for (int acceptor = 1; acceptor <= Members.values().length / 2 + 1; acceptor++) {
+            exchange(mem, "ACCEPTED " + Members.getMember(acceptor).getPort() + ":1 3 4005");
+        }
+        long start = System.currentTimeMillis();
+        assertEquals(Members.M3, mem.readPresident());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+
+    /**
+     * Tests that a linearizable read fails, rather than returning the member's own view, when a majority of the
+     * council can't be reached, even if the member thinks it knows the president.
+     */
+    @Test
+    public void testReadPresidentWithoutQuorum() throws IOException, InterruptedException {
+        Member mem = new MemberImpl(8, false);
+        exchange(mem, "DECIDE 4005:1 3");
+        assertEquals(Members.M3, mem.whoIsPresident());
+        assertThrows(IllegalStateException.class, mem::readPresident); // nobody else is running.
+    }
+
+
+    /**
+     * Tests that a linearizable read only returns a value the member's learner learned was chosen, as the
+     * read-index replies of a majority show: none if no one has accepted anything, not a president it merely heard
+     * of, the value a majority accepted, or, if a member has learned one, what its own learner then learns.
+     */
+    @Test
+    public void testReadPresidentFromLearner() throws Exception {
+        AtomicReference<Function<Members, String>> replies = new AtomicReference<>(_ -> "_");
+        List<ServerSocket> servers = new ArrayList<>();
+        ExecutorService peers = Executors.newCachedThreadPool();
+        try {
+            for (Members peer : Members.values()) {
+                if (peer == Members.M7) {
+                    continue;
+                }
+                ServerSocket server = new ServerSocket(peer.getPort());
+                servers.add(server);
+                peers.submit(() -> {
+                    while (!server.isClosed()) {
+                        try (Socket socket = server.accept()) {
+                            String[] parts = new BufferedReader(new InputStreamReader(socket.getInputStream()))
+                                    .readLine().split(" ");
+                            String reply = "READ-INDEX-OK " + parts[1].split(":")[0] + ":" + replies.get().apply(peer);
+                            socket.getOutputStream().write((reply + "\n").getBytes());
+                        } catch (IOException e) {
+                            // closed.
+                        }
+                    }
+                    return null;
+                });
+            }
+            Member mem = new MemberImpl(7, false);
+            exchange(mem, "DECIDE 4005:1 8"); // heard of, but not learned.
+            replies.set(_ -> "0 _");
+            assertNull(mem.readPresident());
+
+            replies.set(peer -> Members.getMemberNumber(peer) <= 4 ? "0 3 1" : "0 _"); // 3 may have been chosen.
+            assertThrows(IllegalStateException.class, mem::readPresident);
+
+            replies.set(peer -> peer == Members.M1 ? "1 _" : "0 _"); // M1 has learned a value was chosen.
+            for (int acceptor = 1; acceptor < Members.values().length / 2 + 1; acceptor++) {
+                exchange(mem, "ACCEPTED " + Members.getMember(acceptor).getPort() + ":1 3 4005");
+            }
+            Thread learning = new Thread(() -> { // the last acceptance arrives during the read-index round.
+                try {
+                    exchange(mem, "ACCEPTED " + Members.getMember(Members.values().length / 2 + 1).getPort() +
+                            ":1 3 4005");
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            learning.start();
+            assertEquals(Members.M3, mem.readPresident());
+            learning.join();
+
+            Member other = new MemberImpl(7, false);
+            replies.set(peer -> Members.getMemberNumber(peer) <= 5 ? "0 3 1" : "0 _");
+            assertEquals(Members.M3, other.readPresident()); // a majority accepted it.
+            assertEquals(Members.M3, other.whoIsPresident());
+        } finally {
+            for (ServerSocket server : servers) {
+                server.close();
+            }
+            peers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Tests that a follower read is only as fresh as the last leader traffic the member received: reads don't
+     * refresh it, and a prepare does. A read with a malformed staleness bound is dropped without a reply.
+     */
+    @Test
+    public void testFollowerReadFreshness() throws IOException, InterruptedException {
+        Member mem = new MemberImpl(9, false);
+        Thread.sleep(2500); // a message may take up to a second to read.
+        assertEquals("READ-STALE 4006:0 _", exchange(mem, "READ 4006:0 _ 2000"));
+        assertEquals("READ-STALE 4006:0 _", exchange(mem, "READ 4006:0 _ 2000")); // the first read didn't count.
+        exchange(mem, "READ-INDEX 4006:0 _");
+        assertEquals("READ-STALE 4006:0 _", exchange(mem, "READ 4006:0 _ 2000"));
+        exchange(mem, "PREPARE 4006:1 _");
+        assertTrue(exchange(mem, "READ 4006:0 _ 2000").startsWith("READ-OK 4006:0 _ "));
+        assertNull(exchange(mem, "READ 4006:0 _ soon"));
+    }
+
+
+    /**
+     * Tests that a proposer whose promise quorum has accepted values asks for the value of the highest proposal
+     * they accepted, which may have been chosen, rather than the one it would like, or a lower proposal's value.
+     * Only M2 - M5 promise, so the quorum is exactly them and the proposer.
+     */
+    @Test
+    public void testReproposesHighestAcceptedValue() throws Exception {
+        Member mem = new MemberImpl(1, true);
+        List<String> requests = new CopyOnWriteArrayList<>(); // the ACCEPT-REQUEST messages.
+        List<ServerSocket> servers = new ArrayList<>();
+        ExecutorService acceptors = Executors.newCachedThreadPool();
+        try {
+            for (Members acceptor : Members.values()) {
+                if (acceptor == Members.M1) {
+                    continue;
+                }
+                boolean promises = Members.getMemberNumber(acceptor) <= 5;
+                ServerSocket server = new ServerSocket(acceptor.getPort());
+                servers.add(server);
+                acceptors.submit(() -> {
+                    while (!server.isClosed()) {
+                        try (Socket socket = server.accept()) {
+                            String[] parts = new BufferedReader(new InputStreamReader(socket.getInputStream()))
+                                    .readLine().split(" ");
+                            String reply = switch (parts[0]) {
+                                case "PREPARE" -> !promises ? null : switch (acceptor) {
+                                    case M2 -> "PREPARE-OK " + parts[1] + " 6 7"; // accepted 6 in proposal 7.
+                                    case M3, M4 -> "PREPARE-OK " + parts[1] + " 3 5";
+                                    default -> "PREPARE-OK " + parts[1] + " _";
+                                };
+                                case "ACCEPT-REQUEST" -> {
+                                    requests.add(parts[2]);
+                                    yield "ACCEPT-OK " + parts[1] + " " + parts[2];
+                                }
+                                default -> null;
+                            };
+                            if (reply != null) {
+                                socket.getOutputStream().write((reply + "\n").getBytes());
+                            }
+                        } catch (IOException e) {
+                            // closed.
+                        }
+                    }
+                    return null;
+                });
+            }
+            mem.prepare();
+            long deadline = System.currentTimeMillis() + DEFAULT_TIMEOUT;
+            while (requests.size() < 8 && System.currentTimeMillis() < deadline) { // the last may be read late.
+                Thread.sleep(10);
+            }
+            assertEquals(8, requests.size()); // an ACCEPT-REQUEST to each acceptor.
+            for (String value : requests) {
+                assertEquals("6", value);
+            }
+        } finally {
+            for (ServerSocket server : servers) {
+                server.close();
+            }
+            acceptors.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Sends a message to a member over a real connection, and returns its reply.
+     *
+     * @param member  : Member : the member.
+     * @param message : String : the message.
+     * @return : String : the reply, or null if there was none.
+     */
+    private String exchange(Member member, String message) throws IOException, InterruptedException {
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort())) {
+            client.getOutputStream().write((message + "\n").getBytes());
+            try (Socket accepted = server.accept()) {
+                member.handleMessages(accepted); // not every message has a reply, so close our side once handled.
+            }
+            return new BufferedReader(new InputStreamReader(client.getInputStream())).readLine();
+        }
+    }
+
+
     /**
      * Tests that members 1 - 3 will vote for themselves, and other members will vote for anyone.
      */
@@ -0,0 +1,41 @@
+package member;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuorumsTest {
+
+    /**
+     * Tests that a smaller phase 2 quorum needs a larger phase 1 quorum, and that quorums which might not
+     * intersect are refused.
+     */
+    @Test
+    public void testQuorums() {
+        assertEquals(new Quorums(5, 5), Quorums.MAJORITY);
+        assertEquals(new Quorums(7, 3), Quorums.withPhase2(3));
+        assertThrows(IllegalArgumentException.class, () -> new Quorums(6, 3));
+        assertThrows(IllegalArgumentException.class, () -> Quorums.withPhase2(6)); // larger than a majority.
+        assertThrows(IllegalArgumentException.class, () -> Quorums.withPhase2(0));
+    }
+
+
+    /**
+     * Tests that members are placed in the regions they are named in, the rest in the default region, and
+     * that a member's own region comes first.
+     */
+    @Test
+    public void testTopology() {
+        Topology topology = Topology.parse("hills=M2;coast=M7,M8");
+        assertEquals("hills", topology.regionOf(Members.M2));
+        assertEquals(Topology.DEFAULT, topology.regionOf(Members.M1));
+        assertTrue(topology.isLocal(Members.M7, Members.M8));
+        assertFalse(topology.isLocal(Members.M1, Members.M2));
+        assertEquals(List.of(Members.M7, Members.M8), topology.byProximity(Members.M8).subList(0, 2));
+        assertEquals(Members.M2, topology.byProximity(Members.M2).getFirst());
+        assertThrows(IllegalArgumentException.class, () -> Topology.parse("hills=M2;coast=M2"));
+        assertThrows(IllegalArgumentException.class, () -> Topology.parse("hills"));
+    }
+}
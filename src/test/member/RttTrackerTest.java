@@ -0,0 +1,36 @@
+package member;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RttTrackerTest {
+
+    /**
+     * Tests that members are ranked fastest first, that members we haven't heard from come before the rest, and
+     * that the estimate is smoothed rather than replaced by each sample.
+     */
+    @Test
+    public void testRanking() {
+        RttTracker rtts = new RttTracker();
+        for (Members member : Members.values()) {
+            rtts.record(member, 1000);
+        }
+        rtts.record(Members.M2, 9000);
+        rtts.record(Members.M4, 1);
+        rtts.fail(Members.M5);
+        assertEquals(2000, rtts.estimateOf(Members.M2)); // an eighth of the way from 1000 to 9000.
+        List<Members> ranked = rtts.ranked(Members.M1);
+        assertEquals(8, ranked.size());
+        assertFalse(ranked.contains(Members.M1));
+        assertEquals(Members.M4, ranked.getFirst());
+        assertEquals(List.of(Members.M2, Members.M5), ranked.subList(6, 8));
+        RttTracker fresh = new RttTracker();
+        fresh.record(Members.M1, 5);
+        // members we haven't heard from come first, in council order.
+        assertEquals(List.of(Members.M2, Members.M3), fresh.ranked(Members.M9).subList(0, 2));
+        assertEquals(Members.M1, fresh.ranked(Members.M9).getLast());
+    }
+}
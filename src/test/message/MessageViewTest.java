@@ -0,0 +1,113 @@
+package message;
+
+import member.Members;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageViewTest {
+
+    /**
+     * Tests that a message with a value and a payload is decoded in place, and that a known type comes back as
+     * the same string rather than a new one.
+     */
+    @Test
+    public void testRead() throws IOException {
+        try (MessageView view = MessageView.acquire()) {
+            view.read(new ByteArrayInputStream("ACCEPTED 4006:12 3 4005\n".getBytes()));
+            assertSame("ACCEPTED", view.message());
+            assertEquals(Members.M2, view.sender());
+            assertEquals(12, view.proposalNum());
+            assertEquals(Members.M3, view.value());
+            assertEquals("4005", view.payload());
+        }
+    }
+
+
+    /**
+     * Tests that a message without a value, payload or line ending is read, as the existing format allows.
+     */
+    @Test
+    public void testReadWithoutValue() throws IOException {
+        try (MessageView view = MessageView.acquire()) {
+            view.read(new ByteArrayInputStream("PREPARE-OK 4005:1 _".getBytes()));
+            assertEquals("PREPARE-OK", view.message());
+            assertNull(view.value());
+            assertFalse(view.hasPayload());
+            assertEquals(new Message(1, Members.M1, "PREPARE-OK", null, null), view.toMessage());
+        }
+    }
+
+
+    /**
+     * Tests that an encoded message is written as a single line in the usual format, and reads back the same.
+     */
+    @Test
+    public void testEncodeRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MessageView view = MessageView.acquire()) {
+            view.encode("APPEND", Members.M9, 1234567, null, "cGF5bG9hZA==").writeTo(out);
+        }
+        assertEquals("APPEND 4013:1234567 _ cGF5bG9hZA==\n", out.toString());
+        try (MessageView view = MessageView.acquire()) {
+            view.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals("APPEND 4013:1234567 _ cGF5bG9hZA==", view.toString());
+            assertEquals(1234567, view.proposalNum());
+            assertEquals("cGF5bG9hZA==", view.payload());
+        }
+    }
+
+
+    /**
+     * Tests that a message for a log group other than the first is tagged with the group, and reads back with it,
+     * while an untagged message is for the first group.
+     */
+    @Test
+    public void testGroupRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MessageView view = MessageView.acquire()) {
+            view.encode("COMMIT", Members.M1, 3, 42, null, null).writeTo(out);
+        }
+        assertEquals("COMMIT 4005:42#3 _\n", out.toString());
+        try (MessageView view = MessageView.acquire()) {
+            view.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(3, view.group());
+            assertEquals(42, view.proposalNum());
+            view.read(new ByteArrayInputStream("COMMIT 4005:42 _\n".getBytes()));
+            assertEquals(0, view.group());
+        }
+    }
+
+
+    /**
+     * Tests that a message longer than the view's buffer is still read whole.
+     */
+    @Test
+    public void testReadLongMessage() throws IOException {
+        String payload = "x".repeat(10_000);
+        try (MessageView view = MessageView.acquire()) {
+            view.read(new ByteArrayInputStream(("APPEND 4007:5 _ " + payload + "\n").getBytes()));
+            assertEquals(payload, view.payload());
+        }
+    }
+
+
+    /**
+     * Tests that a malformed message, or a stream that closes before a message arrives, is an IOException.
+     */
+    @Test
+    public void testBadInput() {
+        try (MessageView view = MessageView.acquire()) {
+            assertThrows(IOException.class, () -> view.read(new ByteArrayInputStream("".getBytes())));
+            assertThrows(IOException.class, () -> view.read(new ByteArrayInputStream("PREPARE\n".getBytes())));
+            assertThrows(IOException.class, () -> view.read(new ByteArrayInputStream("PREPARE 9999:1 _\n".getBytes())));
+            assertThrows(IOException.class, () -> view.read(new ByteArrayInputStream("PREPARE 4005:x _\n".getBytes())));
+            assertThrows(IOException.class,
+                    () -> view.read(new ByteArrayInputStream("COMMIT 4005:1#x _\n".getBytes())));
+        }
+    }
+}
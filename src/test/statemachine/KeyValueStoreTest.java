@@ -0,0 +1,74 @@
+package statemachine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyValueStoreTest {
+
+    /**
+     * Tests each command returns the expected result.
+     */
+    @Test
+    public void testCommands() {
+        KeyValueStore store = new KeyValueStore();
+        assertEquals(KeyValueStore.NONE, store.apply("GET 1"));
+        assertEquals(KeyValueStore.NONE, store.apply("PUT 1 10"));
+        assertEquals("10", store.apply("PUT 1 11"));
+        assertEquals("11", store.apply("GET 1"));
+        assertEquals("16", store.apply("INCR 1 5"));
+        assertEquals("3", store.apply("INCR 2 3"));
+        assertEquals("16", store.apply("DEL 1"));
+        assertEquals(KeyValueStore.NONE, store.apply("GET 1"));
+        assertEquals(1, store.size());
+    }
+
+
+    /**
+     * Tests that malformed commands are reported as errors rather than thrown.
+     */
+    @Test
+    public void testMalformedCommands() {
+        KeyValueStore store = new KeyValueStore();
+        assertTrue(store.apply("JUMP 1").startsWith("ERROR"));
+        assertTrue(store.apply("PUT 1").startsWith("ERROR"));
+        assertTrue(store.apply("PUT one 1").startsWith("ERROR"));
+    }
+
+
+    /**
+     * Tests that a store restored from a snapshot has the same contents as the original.
+     */
+    @Test
+    public void testSnapshotRestore() {
+        KeyValueStore store = new KeyValueStore();
+        for (int i = 0; i < 1000; i++) {
+            store.apply("PUT " + i + " " + (i * 2));
+        }
+        KeyValueStore restored = new KeyValueStore();
+        restored.apply("PUT 5000 1"); // restoring replaces what was there.
+        restored.restore(store.snapshot());
+        assertEquals(1000, restored.size());
+        assertEquals("1998", restored.apply("GET 999"));
+        assertEquals(KeyValueStore.NONE, restored.apply("GET 5000"));
+    }
+
+
+    /**
+     * Tests that every command on a key is routed to the same log group, that keys are spread over every group,
+     * and that a malformed command goes to the first group.
+     */
+    @Test
+    public void testGroupOf() {
+        KeyValueStore store = new KeyValueStore();
+        boolean[] used = new boolean[4];
+        for (int key = 0; key < 100; key++) {
+            int group = store.groupOf("PUT " + key + " 1", 4);
+            assertEquals(group, store.groupOf("GET " + key, 4));
+            assertEquals(group, store.groupOf("INCR " + key + " 5", 4));
+            used[group] = true;
+        }
+        assertArrayEquals(new boolean[]{true, true, true, true}, used);
+        assertEquals(0, store.groupOf("PUT one 1", 4));
+    }
+}
@@ -0,0 +1,58 @@
+package statemachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongLongHashMapTest {
+
+    /**
+     * Tests that mappings can be added, replaced, and removed, including for key 0.
+     */
+    @Test
+    public void testPutGetRemove() {
+        LongLongHashMap map = new LongLongHashMap();
+        map.put(5, 50);
+        map.put(0, 7);
+        assertEquals(50, map.get(5, -1));
+        assertEquals(7, map.get(0, -1));
+        assertEquals(-1, map.get(6, -1));
+        map.put(5, 51);
+        assertEquals(51, map.get(5, -1));
+        assertEquals(2, map.size());
+        assertTrue(map.remove(5));
+        assertFalse(map.remove(5));
+        assertTrue(map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals(0, map.size());
+    }
+
+
+    /**
+     * Tests the map against a HashMap over many random operations, so that growing and removing from runs of
+     * colliding keys are exercised.
+     */
+    @Test
+    public void testMatchesHashMap() {
+        LongLongHashMap map = new LongLongHashMap();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            } else {
+                expected.put(key, (long) i);
+                map.put(key, i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey(), Long.MIN_VALUE));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package statemachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelApplierTest {
+
+    /**
+     * Tests that applying a batch in parallel gives the same results and final state as applying it one command
+     * at a time, including when the batch contains conflicting commands and barriers.
+     */
+    @Test
+    public void testMatchesSequentialApply() {
+        Random random = new Random(7);
+        List<String> commands = new ArrayList<>();
+        String[] names = {"PUT", "GET", "DEL", "INCR"};
+        for (int i = 0; i < 5000; i++) {
+            if (random.nextInt(200) == 0) {
+                commands.add("BARRIER"); // malformed, so it touches every partition.
+                continue;
+            }
+            String name = names[random.nextInt(names.length)];
+            long key = random.nextInt(100);
+            commands.add(switch (name) {
+                case "PUT", "INCR" -> name + " " + key + " " + random.nextInt(1000);
+                default -> name + " " + key;
+            });
+        }
+        KeyValueStore sequential = new KeyValueStore();
+        String[] expected = new String[commands.size()];
+        for (int i = 0; i < commands.size(); i++) {
+            expected[i] = sequential.apply(commands.get(i));
+        }
+        KeyValueStore parallel = new KeyValueStore();
+        String[] actual = new ParallelApplier(parallel).applyAll(commands);
+        assertArrayEquals(expected, actual);
+        for (int key = 0; key < 100; key++) {
+            assertEquals(sequential.apply("GET " + key), parallel.apply("GET " + key));
+        }
+    }
+}
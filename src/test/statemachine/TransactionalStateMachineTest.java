@@ -0,0 +1,74 @@
+package statemachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransactionalStateMachineTest {
+
+    /**
+     * Tests that a prepared transaction locks its keys until it commits, and then applies its commands.
+     */
+    @Test
+    public void testPrepareAndCommit() {
+        TransactionalStateMachine participant = new TransactionalStateMachine(new KeyValueStore());
+        assertEquals("PREPARED", participant.apply("TXN-PREPARE t1 100 0,1 PUT 1 10;INCR 2 5"));
+        assertEquals("LOCKED", participant.apply("GET 1"));
+        assertEquals("NONE", participant.apply("GET 3"));
+        assertEquals("COMMITTED NONE;5", participant.apply("TXN-COMMIT t1"));
+        assertEquals("10", participant.apply("GET 1"));
+        assertEquals("COMMITTED", participant.apply("TXN-COMMIT t1")); // a resent commit changes nothing.
+        assertEquals("5", participant.apply("GET 2"));
+    }
+
+
+    /**
+     * Tests that a transaction touching a key another transaction has locked is voted against, and that an
+     * aborted transaction releases its locks without applying anything.
+     */
+    @Test
+    public void testConflictAndAbort() {
+        TransactionalStateMachine participant = new TransactionalStateMachine(new KeyValueStore());
+        assertEquals("PREPARED", participant.apply("TXN-PREPARE t1 100 0 PUT 1 10"));
+        assertEquals("ABORTED LOCKED", participant.apply("TXN-PREPARE t2 101 0 PUT 1 20"));
+        assertEquals("ABORTED", participant.apply("TXN-ABORT t1"));
+        assertEquals("NONE", participant.apply("GET 1"));
+        assertEquals("ABORTED", participant.apply("TXN-PREPARE t1 100 0 PUT 1 10")); // a vote never changes.
+    }
+
+
+    /**
+     * Tests that a refusal votes against a transaction that wasn't prepared, and reports the vote of one that was.
+     */
+    @Test
+    public void testRefuse() {
+        TransactionalStateMachine participant = new TransactionalStateMachine(new KeyValueStore());
+        assertEquals("ABORTED", participant.apply("TXN-REFUSE t1"));
+        assertEquals("ABORTED", participant.apply("TXN-PREPARE t1 100 0 PUT 1 10"));
+        assertEquals("PREPARED", participant.apply("TXN-PREPARE t2 100 0 PUT 1 10"));
+        assertEquals("PREPARED", participant.apply("TXN-REFUSE t2"));
+        assertEquals(List.of("t2"), participant.inDoubt(101).stream()
+                .map(TransactionalStateMachine.Prepared::txid).toList());
+        assertTrue(participant.inDoubt(100).isEmpty());
+    }
+
+
+    /**
+     * Tests that prepared transactions and their locks survive a snapshot.
+     */
+    @Test
+    public void testSnapshotRestore() {
+        TransactionalStateMachine participant = new TransactionalStateMachine(new KeyValueStore());
+        participant.apply("PUT 5 1");
+        participant.apply("TXN-PREPARE t1 100 0,2 PUT 1 10");
+        TransactionalStateMachine restored = new TransactionalStateMachine(new KeyValueStore());
+        restored.restore(participant.snapshot());
+        assertEquals("1", restored.apply("GET 5"));
+        assertEquals("LOCKED", restored.apply("GET 1"));
+        assertEquals(List.of(0, 2), restored.inDoubt(Long.MAX_VALUE).getFirst().groups());
+        assertEquals("COMMITTED NONE", restored.apply("TXN-COMMIT t1"));
+        assertEquals("10", restored.apply("GET 1"));
+    }
+}